@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides when {@link TripDetectionService} drops from listening to a wake up registration
+ * and accounts the time spent in each listening mode.
+ * <p>
+ * Once the filtered trip class has been {@code STATIONARY} for the stationary timeout, the
+ * trip updates are removed and only the service wake up stays registered, which costs nothing
+ * until the next trip starts and brings the service back with {@code START_AND_INITIALIZE}.
+ * A timeout of 0 disables the adaptive mode.
+ *
+ * @author Daniel Waslicki
+ */
+class AdaptiveListening {
+
+    static final int MODE_OFF = 0;
+    static final int MODE_LISTENING = 1;
+    static final int MODE_WAKE_ONLY = 2;
+
+    private static final String[] MODE_NAMES = {"OFF", "LISTENING", "WAKE_ONLY"};
+
+    static final long DEFAULT_STATIONARY_TIMEOUT_MILLIS = 20 * 60 * 1000;
+
+    private long stationaryTimeoutMillis = DEFAULT_STATIONARY_TIMEOUT_MILLIS;
+
+    private int mode = MODE_OFF;
+    private long modeSince;
+    private final long[] modeMillis = new long[MODE_NAMES.length];
+    private int wakeOnlyCount;
+    private int resumeCount;
+
+    synchronized long getStationaryTimeout() {
+        return stationaryTimeoutMillis;
+    }
+
+    synchronized void setStationaryTimeout(long stationaryTimeoutMillis) {
+        if (stationaryTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Stationary timeout must not be negative");
+        }
+        this.stationaryTimeoutMillis = stationaryTimeoutMillis;
+    }
+
+    /**
+     * Returns the time on the backend clock at which listening should drop to the wake up
+     * registration given the filtered trip class and its timestamp, {@link Long#MAX_VALUE} for
+     * never.
+     */
+    synchronized long getDeadline(int tripClass, long timestamp) {
+        if (stationaryTimeoutMillis == 0 || tripClass != TripClass.STATIONARY) {
+            return Long.MAX_VALUE;
+        }
+        return timestamp + stationaryTimeoutMillis;
+    }
+
+    synchronized int getMode() {
+        return mode;
+    }
+
+    /**
+     * Switches to the given mode at {@code now}, a {@link android.os.SystemClock#elapsedRealtime()}
+     * time so that deep sleep is accounted too.
+     */
+    synchronized void enter(int mode, long now) {
+        if (mode == this.mode) {
+            return;
+        }
+
+        if (modeSince != 0) {
+            modeMillis[this.mode] += now - modeSince;
+        }
+        if (mode == MODE_WAKE_ONLY) {
+            wakeOnlyCount++;
+        } else if (this.mode == MODE_WAKE_ONLY && mode == MODE_LISTENING) {
+            resumeCount++;
+        }
+
+        this.mode = mode;
+        this.modeSince = now;
+    }
+
+    /**
+     * Returns the time spent in the given mode until {@code now}.
+     */
+    synchronized long getTimeIn(int mode, long now) {
+        long millis = modeMillis[mode];
+        if (mode == this.mode && modeSince != 0) {
+            millis += now - modeSince;
+        }
+        return millis;
+    }
+
+    synchronized void dump(PrintWriter writer, long now) {
+        writer.print("  Listening mode: ");
+        writer.print(nameOf(mode));
+        writer.print(" stationary timeout=");
+        writer.print(stationaryTimeoutMillis);
+        writer.println(" ms");
+
+        writer.print("   ");
+        for (int i = 0; i < MODE_NAMES.length; i++) {
+            writer.print(' ');
+            writer.print(MODE_NAMES[i]);
+            writer.print('=');
+            writer.print(getTimeIn(i, now) / 1000);
+            writer.print('s');
+        }
+        writer.print(" wake only=");
+        writer.print(wakeOnlyCount);
+        writer.print(" resumed=");
+        writer.println(resumeCount);
+    }
+
+    static String nameOf(int mode) {
+        return mode >= 0 && mode < MODE_NAMES.length ? MODE_NAMES[mode] : String.valueOf(mode);
+    }
+
+}
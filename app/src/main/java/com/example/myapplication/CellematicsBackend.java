@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.content.Context;
+
+import com.cellepathy.cellematicsservice.tripdetection.TripDetection;
+
+/**
+ * {@link TripDetectionBackend} backed by the Cellematics Service, a handle on the
+ * {@link SharedCellematicsConnection} of the process.
+ * <p>
+ * Every handle connects, listens and disconnects as if it had a client of its own, while the
+ * connection counts the handles so that the Cellematics Service sees one client and one trip
+ * listener. The wake up registrations are kept by the Cellematics Service per action and
+ * component, they are passed through as they are.
+ *
+ * @author Daniel Waslicki
+ */
+class CellematicsBackend implements TripDetectionBackend {
+
+    static final Factory FACTORY = new Factory() {
+        @Override
+        public TripDetectionBackend create(Context context, Callbacks callbacks) {
+            return SharedCellematicsConnection.acquire(context, callbacks);
+        }
+    };
+
+    private final SharedCellematicsConnection connection;
+
+    final Callbacks callbacks;
+
+    // Written under the lock of the connection, read by its fan-out without it.
+    volatile boolean connectionRequested;
+    volatile boolean tripUpdatesRequested;
+    volatile boolean released;
+
+    CellematicsBackend(SharedCellematicsConnection connection, Callbacks callbacks) {
+        this.connection = connection;
+        this.callbacks = callbacks;
+    }
+
+    @Override
+    public long now() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public long toUptimeMillis(long millis) {
+        return millis;
+    }
+
+    @Override
+    public void connect() {
+        connection.connect(this);
+    }
+
+    @Override
+    public void disconnect() {
+        connection.disconnect(this);
+    }
+
+    @Override
+    public void teardown() {
+        connection.release(this);
+    }
+
+    @Override
+    public void requestTripUpdates() {
+        connection.setTripUpdatesRequested(this, true);
+    }
+
+    @Override
+    public void removeTripUpdates() {
+        connection.setTripUpdatesRequested(this, false);
+    }
+
+    @Override
+    public void wakeUpWithBroadcastOnTripStart(String action) {
+        TripDetection.TripDetectionApi.wakeUpWithBroadcastOnTripStart(connection.getClient(), action);
+    }
+
+    @Override
+    public void cancelWakeUpWithBroadcastOnTripStart(String action) {
+        TripDetection.TripDetectionApi.cancelWakeUpWithBroadcastOnTripStart(connection.getClient(), action);
+    }
+
+    @Override
+    public boolean isWakeUpWithBroadcastRegistered(String action) {
+        return TripDetection.TripDetectionApi.isWakeUpWithBroadcastRegistered(connection.getClient(), action);
+    }
+
+    @Override
+    public void wakeUpServiceOnTripStart(String packageName, String className, String action) {
+        TripDetection.TripDetectionApi.wakeUpServiceOnTripStart(
+                connection.getClient(), packageName, className, action);
+    }
+
+    @Override
+    public void cancelWakeUpServiceOnTripStart(String packageName, String className, String action) {
+        TripDetection.TripDetectionApi.cancelWakeUpServiceOnTripStart(
+                connection.getClient(), packageName, className, action);
+    }
+
+    @Override
+    public boolean isWakeUpServiceRegistered(String packageName, String className, String action) {
+        return TripDetection.TripDetectionApi.isWakeUpServiceRegistered(
+                connection.getClient(), packageName, className, action);
+    }
+
+}
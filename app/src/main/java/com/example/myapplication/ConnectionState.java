@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection lifecycle of {@link TripDetectionService} held in a single atomic word.
+ * <p>
+ * Every change is a compare and set along the legal transitions below, so concurrent
+ * callbacks can neither lose an update nor move the service into an inconsistent state, and
+ * reading the state never blocks:
+ * <pre>
+ * DISCONNECTED -&gt; CONNECTING, WOKEN
+ * CONNECTING   -&gt; CONNECTED, WOKEN, DISCONNECTED
+ * WOKEN        -&gt; LISTENING, DISCONNECTED
+ * CONNECTED    -&gt; LISTENING, DISCONNECTED
+ * LISTENING    -&gt; CONNECTED, DISCONNECTED
+ * </pre>
+ *
+ * @author Daniel Waslicki
+ */
+class ConnectionState {
+
+    private static final String TAG = "ConnectionState";
+
+    static final int DISCONNECTED = 0;
+    static final int CONNECTING = 1;
+    /**
+     * Connecting after a wake up, listening starts as soon as the connection is established.
+     */
+    static final int WOKEN = 2;
+    static final int CONNECTED = 3;
+    static final int LISTENING = 4;
+
+    private static final String[] NAMES = {"DISCONNECTED", "CONNECTING", "WOKEN", "CONNECTED", "LISTENING"};
+
+    // Bit i of TRANSITIONS[from] is set if the transition from -> i is legal.
+    private static final int[] TRANSITIONS = {
+            bit(CONNECTING) | bit(WOKEN),
+            bit(CONNECTED) | bit(WOKEN) | bit(DISCONNECTED),
+            bit(LISTENING) | bit(DISCONNECTED),
+            bit(LISTENING) | bit(DISCONNECTED),
+            bit(CONNECTED) | bit(DISCONNECTED),
+    };
+
+    private final AtomicInteger state = new AtomicInteger(DISCONNECTED);
+
+    int get() {
+        return state.get();
+    }
+
+    boolean isConnected() {
+        int current = state.get();
+        return current == CONNECTED || current == LISTENING;
+    }
+
+    boolean isListening() {
+        return state.get() == LISTENING;
+    }
+
+    /**
+     * Returns whether the service is connected or on its way there.
+     */
+    boolean isActive() {
+        return state.get() != DISCONNECTED;
+    }
+
+    /**
+     * Moves from {@code expected} to {@code next}, returns {@code false} if the state is no
+     * longer {@code expected}. An illegal transition is rejected as well.
+     */
+    boolean compareAndSet(int expected, int next) {
+        if (!isLegal(expected, next)) {
+            Log.w(TAG, "Illegal transition " + nameOf(expected) + " -> " + nameOf(next));
+            return false;
+        }
+        return state.compareAndSet(expected, next);
+    }
+
+    /**
+     * Moves to {@code next} from whatever the state is, returns {@code false} if that is not a
+     * legal transition.
+     */
+    boolean moveTo(int next) {
+        while (true) {
+            int current = state.get();
+            if (!isLegal(current, next)) {
+                return false;
+            }
+            if (state.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    static String nameOf(int state) {
+        return state >= 0 && state < NAMES.length ? NAMES[state] : String.valueOf(state);
+    }
+
+    private static boolean isLegal(int from, int to) {
+        return from >= 0 && from < TRANSITIONS.length && (TRANSITIONS[from] & bit(to)) != 0;
+    }
+
+    private static int bit(int state) {
+        return 1 << state;
+    }
+
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/**
+ * Runs a render callback at most once per display frame on the main thread, however often
+ * {@link #schedule()} is called in between.
+ * <p>
+ * Uses {@link Choreographer} where available and a handler ticking every
+ * {@link #FALLBACK_FRAME_MILLIS} before Jelly Bean. Must be used on the main thread only.
+ *
+ * @author Daniel Waslicki
+ */
+class FrameScheduler {
+
+    static final long FALLBACK_FRAME_MILLIS = 16;
+
+    private final Runnable onFrame;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ChoreographerFrames choreographerFrames;
+
+    private boolean scheduled;
+    private long lastFrameAt;
+
+    private final Runnable fallbackFrame = new Runnable() {
+        @Override
+        public void run() {
+            doFrame();
+        }
+    };
+
+    FrameScheduler(Runnable onFrame) {
+        this.onFrame = onFrame;
+        this.choreographerFrames = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                ? new ChoreographerFrames()
+                : null;
+    }
+
+    /**
+     * Requests the callback for the next frame, does nothing if it is requested already.
+     */
+    void schedule() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+
+        if (choreographerFrames != null) {
+            choreographerFrames.post();
+        } else {
+            long elapsed = SystemClock.uptimeMillis() - lastFrameAt;
+            handler.postDelayed(fallbackFrame, Math.max(0, FALLBACK_FRAME_MILLIS - elapsed));
+        }
+    }
+
+    void cancel() {
+        if (!scheduled) {
+            return;
+        }
+        scheduled = false;
+
+        if (choreographerFrames != null) {
+            choreographerFrames.remove();
+        } else {
+            handler.removeCallbacks(fallbackFrame);
+        }
+    }
+
+    private void doFrame() {
+        scheduled = false;
+        lastFrameAt = SystemClock.uptimeMillis();
+        onFrame.run();
+    }
+
+    /**
+     * Kept apart so that {@link Choreographer} is not resolved on older platforms.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private final class ChoreographerFrames implements Choreographer.FrameCallback {
+
+        private final Choreographer choreographer = Choreographer.getInstance();
+
+        void post() {
+            choreographer.postFrameCallback(this);
+        }
+
+        void remove() {
+            choreographer.removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            FrameScheduler.this.doFrame();
+        }
+
+    }
+
+}
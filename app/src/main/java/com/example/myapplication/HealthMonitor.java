@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import com.cellepathy.cellematicsservice.common.Malfunctions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks the {@link Malfunctions} reported by the Cellematics Service as a bitmask and
+ * decides when the listeners hear about them.
+ * <p>
+ * Reports which do not change the bitmask are dropped. A change is announced at most once per
+ * {@code minIntervalMillis}; a change within the interval is held back until the interval is
+ * over and is dropped if the bitmask returns to the announced one meanwhile, so a flapping
+ * malfunction does not raise an alert per flap. For every malfunction the monitor keeps the
+ * time it was last detected and cleared, how often it was detected and how long it lasted in
+ * total.
+ *
+ * @author Daniel Waslicki
+ */
+class HealthMonitor {
+
+    static final long DEFAULT_MIN_INTERVAL_MILLIS = 30 * 1000;
+
+    /**
+     * Returned by {@link #poll(long)} when there is nothing to announce.
+     */
+    static final int NOTHING_TO_ANNOUNCE = -1;
+
+    static final int[] MALFUNCTIONS = {
+            Malfunctions.GPS_TURNED_OFF,
+            Malfunctions.ENABLED_MOCK_LOCATIONS,
+            Malfunctions.SERVICE_VERSION_UPDATE_REQUIRED,
+    };
+
+    private static final String[] NAMES = {
+            "Turned off GPS",
+            "Enabled mock locations",
+            "Service version update required",
+    };
+
+    private final long minIntervalMillis;
+
+    private int malfunctions;
+    private int announcedMalfunctions;
+    private long announcedAt = Long.MIN_VALUE / 2;
+
+    private final long[] detectedAt = new long[MALFUNCTIONS.length];
+    private final long[] clearedAt = new long[MALFUNCTIONS.length];
+    private final long[] totalMillis = new long[MALFUNCTIONS.length];
+    private final int[] occurrences = new int[MALFUNCTIONS.length];
+
+    HealthMonitor() {
+        this(DEFAULT_MIN_INTERVAL_MILLIS);
+    }
+
+    HealthMonitor(long minIntervalMillis) {
+        this.minIntervalMillis = minIntervalMillis;
+    }
+
+    /**
+     * Records the malfunctions reported at {@code now}, returns whether they differ from the
+     * previous report. Whether the change is announced yet is up to {@link #poll(long)}.
+     */
+    synchronized boolean update(int malfunctions, long now) {
+        int changed = malfunctions ^ this.malfunctions;
+        if (changed == 0) {
+            return false;
+        }
+
+        for (int i = 0; i < MALFUNCTIONS.length; i++) {
+            int bit = MALFUNCTIONS[i];
+            if ((changed & bit) == 0) {
+                continue;
+            }
+            if ((malfunctions & bit) != 0) {
+                detectedAt[i] = now;
+                occurrences[i]++;
+            } else {
+                clearedAt[i] = now;
+                totalMillis[i] += Math.max(0, now - detectedAt[i]);
+            }
+        }
+
+        this.malfunctions = malfunctions;
+        return true;
+    }
+
+    /**
+     * Clears the malfunctions at {@code now}, the connection which reported them is gone. The
+     * clear is not held back by the rate limit, the next {@link #poll(long)} announces it. The
+     * history is kept.
+     */
+    synchronized void reset(long now) {
+        update(0, now);
+        announcedAt = Long.MIN_VALUE / 2;
+    }
+
+    /**
+     * Returns the malfunctions to announce at {@code now}, which count as announced from then
+     * on, or {@link #NOTHING_TO_ANNOUNCE} if they are announced already or the rate limit
+     * holds them back.
+     */
+    synchronized int poll(long now) {
+        if (malfunctions == announcedMalfunctions || now < announcedAt + minIntervalMillis) {
+            return NOTHING_TO_ANNOUNCE;
+        }
+
+        announcedMalfunctions = malfunctions;
+        announcedAt = now;
+        return malfunctions;
+    }
+
+    /**
+     * Returns the time at which a held back change is due, {@link Long#MAX_VALUE} if there is
+     * none.
+     */
+    synchronized long getDeadline() {
+        return malfunctions != announcedMalfunctions ? announcedAt + minIntervalMillis : Long.MAX_VALUE;
+    }
+
+    synchronized int getMalfunctions() {
+        return malfunctions;
+    }
+
+    synchronized int getAnnouncedMalfunctions() {
+        return announcedMalfunctions;
+    }
+
+    synchronized List<MalfunctionStatus> getStatuses(long now) {
+        List<MalfunctionStatus> statuses = new ArrayList<>(MALFUNCTIONS.length);
+
+        for (int i = 0; i < MALFUNCTIONS.length; i++) {
+            MalfunctionStatus status = new MalfunctionStatus();
+            status.malfunction = MALFUNCTIONS[i];
+            status.active = (malfunctions & MALFUNCTIONS[i]) != 0;
+            status.detectedAt = detectedAt[i];
+            status.clearedAt = clearedAt[i];
+            status.totalMillis = totalMillis[i] + (status.active ? Math.max(0, now - detectedAt[i]) : 0);
+            status.occurrences = occurrences[i];
+            statuses.add(status);
+        }
+
+        return statuses;
+    }
+
+    /**
+     * Returns the description of a single {@link Malfunctions} bit.
+     */
+    static String nameOf(int malfunction) {
+        for (int i = 0; i < MALFUNCTIONS.length; i++) {
+            if (MALFUNCTIONS[i] == malfunction) {
+                return NAMES[i];
+            }
+        }
+        return "Malfunction " + malfunction;
+    }
+
+}
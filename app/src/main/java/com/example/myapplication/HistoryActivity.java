@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.support.v7.app.AppCompatActivity;
+import android.util.LruCache;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import com.example.myapplication.TripDetectionService.TripDetectionServiceBinder;
+
+import java.text.DateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lists the stored trip history one day per row, the most recent day first.
+ * <p>
+ * A day is loaded only once its row is shown: its events are read from the journal of the
+ * service in a background task, capped at {@link #MAX_EVENTS_PER_DAY}, and condensed into a
+ * summary of the trips derived from them. Only the summaries of the last
+ * {@link #CACHED_DAYS} days shown are kept, so scrolling through a month of history costs a
+ * bounded amount of memory and reads.
+ *
+ * @author Daniel Waslicki
+ */
+public class HistoryActivity extends AppCompatActivity {
+
+    static final int MAX_EVENTS_PER_DAY = 2000;
+    static final int CACHED_DAYS = 31;
+    static final int MAX_TRIPS_PER_DAY = 64;
+    private static final int MAX_DAYS = 366;
+
+    private TripDetectionServiceBinder tripDetectionService;
+
+    private final LruCache<Integer, String> daySummaries = new LruCache<>(CACHED_DAYS);
+    private final Set<Integer> loadingDays = new HashSet<>();
+    private final Set<DayLoader> loaders = new HashSet<>();
+    private RangeLoader rangeLoader;
+
+    private long todayStart;
+    private int dayCount;
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
+            tripDetectionService = (TripDetectionServiceBinder) iBinder;
+            loadRange();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            tripDetectionService = null;
+        }
+
+    };
+
+    private final BaseAdapter adapter = new BaseAdapter() {
+
+        @Override
+        public int getCount() {
+            return dayCount;
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return daySummaries.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            View view = convertView != null
+                    ? convertView
+                    : getLayoutInflater().inflate(android.R.layout.simple_list_item_2, parent, false);
+
+            TextView dayText = (TextView) view.findViewById(android.R.id.text1);
+            TextView summaryText = (TextView) view.findViewById(android.R.id.text2);
+
+            dayText.setText(DateFormat.getDateInstance(DateFormat.FULL).format(new Date(dayStart(position))));
+
+            String summary = daySummaries.get(position);
+            if (summary != null) {
+                summaryText.setText(summary);
+            } else {
+                summaryText.setText(getString(R.string.history_loading));
+                loadDay(position);
+            }
+
+            return view;
+        }
+
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.activity_history);
+
+        ListView historyList = (ListView) findViewById(R.id.history_list);
+        historyList.setEmptyView(findViewById(R.id.history_empty));
+        historyList.setAdapter(adapter);
+
+        bindService(
+                new Intent(HistoryActivity.this, TripDetectionService.class),
+                serviceConnection,
+                BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onDestroy() {
+
+        if (rangeLoader != null) {
+            rangeLoader.cancel(false);
+            rangeLoader = null;
+        }
+        for (DayLoader loader : loaders) {
+            loader.cancel(false);
+        }
+        loaders.clear();
+
+        if (tripDetectionService != null) {
+            unbindService(serviceConnection);
+            tripDetectionService = null;
+        }
+
+        super.onDestroy();
+    }
+
+    private void loadRange() {
+        if (rangeLoader != null) {
+            rangeLoader.cancel(false);
+        }
+        rangeLoader = new RangeLoader(tripDetectionService);
+        rangeLoader.execute();
+    }
+
+    private void showDays(long oldest) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        todayStart = calendar.getTimeInMillis();
+
+        if (oldest == Long.MAX_VALUE) {
+            dayCount = 0;
+        } else {
+            dayCount = 1;
+            while (calendar.getTimeInMillis() > oldest && dayCount < MAX_DAYS) {
+                calendar.add(Calendar.DAY_OF_MONTH, -1);
+                dayCount++;
+            }
+        }
+
+        daySummaries.evictAll();
+        adapter.notifyDataSetChanged();
+    }
+
+    /**
+     * Returns the start of the day shown at the given position, today is at 0.
+     */
+    private long dayStart(int position) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(todayStart);
+        calendar.add(Calendar.DAY_OF_MONTH, -position);
+        return calendar.getTimeInMillis();
+    }
+
+    private void loadDay(int position) {
+        if (tripDetectionService == null || !loadingDays.add(position)) {
+            return;
+        }
+
+        DayLoader loader = new DayLoader(tripDetectionService, position, dayStart(position), dayStart(position - 1),
+                android.text.format.DateFormat.getTimeFormat(this));
+        loaders.add(loader);
+        loader.execute();
+    }
+
+    private void onDayLoaded(DayLoader loader, String summary) {
+        loaders.remove(loader);
+        loadingDays.remove(loader.position);
+        daySummaries.put(loader.position, summary);
+        adapter.notifyDataSetChanged();
+    }
+
+    /**
+     * Finds the time of the oldest stored event off the main thread, it takes a scan of the
+     * journal.
+     */
+    private class RangeLoader extends AsyncTask<Void, Void, Long> {
+
+        private final TripDetectionServiceBinder service;
+
+        RangeLoader(TripDetectionServiceBinder service) {
+            this.service = service;
+        }
+
+        @Override
+        protected Long doInBackground(Void... params) {
+            return service.getOldestEventTime();
+        }
+
+        @Override
+        protected void onPostExecute(Long oldest) {
+            rangeLoader = null;
+            showDays(oldest);
+        }
+
+    }
+
+    /**
+     * Reads the events of one day and derives its trips off the main thread.
+     */
+    private class DayLoader extends AsyncTask<Void, Void, String> {
+
+        private final TripDetectionServiceBinder service;
+        private final int position;
+        private final long from;
+        private final long to;
+        private final DateFormat timeFormat;
+
+        DayLoader(TripDetectionServiceBinder service, int position, long from, long to, DateFormat timeFormat) {
+            this.service = service;
+            this.position = position;
+            this.from = from;
+            this.to = to;
+            this.timeFormat = timeFormat;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            TripEventPage page = service.getEvents(from, to, MAX_EVENTS_PER_DAY);
+
+            TripSegmenter segmenter = new TripSegmenter(MAX_TRIPS_PER_DAY);
+            int changes = 0;
+            for (int i = 0; i < page.size(); i++) {
+                if (page.getType(i) == TripEventPage.TYPE_TRIP_CLASS) {
+                    segmenter.onTripClassChanged(page.getTimestamp(i), page.getValue(i));
+                    changes++;
+                }
+            }
+
+            if (changes == 0) {
+                return getString(R.string.history_no_events);
+            }
+
+            segmenter.advance(Math.min(to, System.currentTimeMillis()));
+            List<Trip> trips = segmenter.getRecentTrips(MAX_TRIPS_PER_DAY);
+            Trip currentTrip = segmenter.getCurrentTrip();
+
+            StringBuilder summary = new StringBuilder();
+            summary.append(getString(R.string.history_summary,
+                    trips.size() + (currentTrip != null ? 1 : 0),
+                    changes));
+            if (page.isTruncated()) {
+                summary.append('+');
+            }
+
+            for (int i = trips.size() - 1; i >= 0; i--) {
+                appendTrip(summary, trips.get(i));
+            }
+            if (currentTrip != null) {
+                appendTrip(summary, currentTrip);
+            }
+
+            return summary.toString();
+        }
+
+        @Override
+        protected void onPostExecute(String summary) {
+            onDayLoaded(this, summary);
+        }
+
+        private void appendTrip(StringBuilder summary, Trip trip) {
+            summary.append('\n');
+            summary.append(timeFormat.format(new Date(trip.getStartTime())));
+            summary.append(" - ");
+            summary.append(timeFormat.format(new Date(trip.getEndTime())));
+        }
+
+    }
+
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+/**
+ * {@link TripClassFilter} suppressing short flaps of the trip class.
+ * <p>
+ * A new class is only passed once it has lasted its minimum dwell time, and
+ * {@link TripClass#UNKNOWN} has to last at least {@code unknownHoldMillis} before it replaces
+ * a known class. Changing back to the passed class before that drops the pending change, as
+ * do repeats of the same class. The first class after a {@link #reset()} passes immediately.
+ * With all durations set to zero only the repeats are dropped.
+ *
+ * @author Daniel Waslicki
+ */
+class HysteresisTripClassFilter implements TripClassFilter {
+
+    static final long DEFAULT_STATIONARY_DWELL_MILLIS = 30 * 1000;
+    static final long DEFAULT_IN_TRANSIT_DWELL_MILLIS = 10 * 1000;
+    static final long DEFAULT_UNKNOWN_HOLD_MILLIS = 60 * 1000;
+
+    private final long stationaryDwellMillis;
+    private final long inTransitDwellMillis;
+    private final long unknownHoldMillis;
+
+    private int tripClass = TRIP_CLASS_NONE;
+    private long timestamp;
+
+    private int candidateClass = TRIP_CLASS_NONE;
+    private long candidateSince;
+
+    HysteresisTripClassFilter() {
+        this(DEFAULT_STATIONARY_DWELL_MILLIS, DEFAULT_IN_TRANSIT_DWELL_MILLIS, DEFAULT_UNKNOWN_HOLD_MILLIS);
+    }
+
+    HysteresisTripClassFilter(long stationaryDwellMillis, long inTransitDwellMillis, long unknownHoldMillis) {
+        this.stationaryDwellMillis = stationaryDwellMillis;
+        this.inTransitDwellMillis = inTransitDwellMillis;
+        this.unknownHoldMillis = unknownHoldMillis;
+    }
+
+    @Override
+    public boolean offer(long timestamp, int tripClass) {
+        if (tripClass == this.tripClass) {
+            candidateClass = TRIP_CLASS_NONE;
+            return false;
+        }
+
+        if (this.tripClass == TRIP_CLASS_NONE) {
+            candidateClass = TRIP_CLASS_NONE;
+            this.tripClass = tripClass;
+            this.timestamp = timestamp;
+            return true;
+        }
+
+        if (tripClass != candidateClass) {
+            candidateClass = tripClass;
+            candidateSince = timestamp;
+        }
+
+        return poll(timestamp);
+    }
+
+    @Override
+    public boolean poll(long now) {
+        if (candidateClass == TRIP_CLASS_NONE
+                || now < getDeadline()) {
+            return false;
+        }
+
+        tripClass = candidateClass;
+        timestamp = candidateSince;
+        candidateClass = TRIP_CLASS_NONE;
+        return true;
+    }
+
+    @Override
+    public long getDeadline() {
+        if (candidateClass == TRIP_CLASS_NONE) {
+            return Long.MAX_VALUE;
+        }
+        return candidateSince + dwellOf(candidateClass);
+    }
+
+    @Override
+    public int getTripClass() {
+        return tripClass;
+    }
+
+    @Override
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public void reset() {
+        tripClass = TRIP_CLASS_NONE;
+        candidateClass = TRIP_CLASS_NONE;
+    }
+
+    private long dwellOf(int tripClass) {
+        switch (tripClass) {
+            case TripClass.STATIONARY:
+                return stationaryDwellMillis;
+            case TripClass.IN_TRANSIT:
+                return inTransitDwellMillis;
+            case TripClass.UNKNOWN:
+                return unknownHoldMillis;
+            default:
+                return 0;
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of millisecond durations with fixed power of two buckets which can be recorded
+ * from any thread without locking or allocation.
+ * <p>
+ * Bucket 0 counts durations below 1 ms, bucket {@code i} durations in
+ * {@code [2^(i-1), 2^i)} ms and the last bucket everything longer.
+ *
+ * @author Daniel Waslicki
+ */
+class LatencyHistogram {
+
+    private static final int BUCKET_COUNT = 24;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        buckets.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+        count.incrementAndGet();
+        sum.addAndGet(millis);
+
+        long current;
+        while ((current = max.get()) < millis && !max.compareAndSet(current, millis)) {
+            // Retry until the maximum is at least this duration.
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile, in milliseconds.
+     */
+    long percentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return 1L << i;
+            }
+        }
+        return max.get();
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    void dump(PrintWriter writer) {
+        long total = count.get();
+        writer.print("  ");
+        writer.print(name);
+        writer.print(": count=");
+        writer.print(total);
+
+        if (total > 0) {
+            writer.print(" mean=");
+            writer.print(sum.get() / total);
+            writer.print("ms p50<");
+            writer.print(percentile(50));
+            writer.print("ms p90<");
+            writer.print(percentile(90));
+            writer.print("ms p99<");
+            writer.print(percentile(99));
+            writer.print("ms max=");
+            writer.print(max.get());
+            writer.print("ms");
+        }
+
+        writer.println();
+    }
+
+}
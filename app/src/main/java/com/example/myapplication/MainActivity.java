@@ -23,8 +23,6 @@ import com.cellepathy.cellematicsservice.common.ConnectionResult;
 import com.cellepathy.cellematicsservice.tripdetection.TripClass;
 import com.example.myapplication.TripDetectionService.TripDetectionServiceBinder;
 
-import java.util.ArrayList;
-
 /**
  * @author Daniel Waslicki
  */
@@ -36,11 +34,27 @@ public class MainActivity extends AppCompatActivity {
     private Button wakeServiceButton;
     private TextView connectionStatus;
     private TextView tripClassStatus;
+    private TripTimelineView tripTimeline;
+
+    private int tripClass = TripDetectionService.TRIP_CLASS_NONE;
+    private int renderedTripClass = TripDetectionService.TRIP_CLASS_NONE;
+
+    /**
+     * Renders the trip class once per frame however noisy the detector is.
+     */
+    private final FrameScheduler frameScheduler = new FrameScheduler(new Runnable() {
+        @Override
+        public void run() {
+            renderTripClass();
+        }
+    });
 
     private TripDetectionServiceBinder tripDetectionService;
 
     private boolean isResumed;
 
+    private AlertDialog malfunctionDialog;
+
     private final ServiceConnection serviceConnection = new ServiceConnection() {
 
         @Override
@@ -90,13 +104,13 @@ public class MainActivity extends AppCompatActivity {
                 }
 
                 @Override
-                public void onConnectionFailed(ConnectionResult reason) {
+                public void onConnectionFailed(int errorCode) {
 
                     disconnected();
 
                     String message;
 
-                    switch (reason.getErrorCode()) {
+                    switch (errorCode) {
                         case ConnectionResult.NO_NETWORK_CONNECTION:
                             message = "There is no Internet connection. "
                                     + "Please connect your device to the Internet.";
@@ -143,16 +157,27 @@ public class MainActivity extends AppCompatActivity {
                 }
 
                 @Override
-                public void onMissingPermissions(final ArrayList<String> issues) {
+                public void onMalfunctionsChanged(int malfunctions) {
+
+                    if (malfunctionDialog != null) {
+                        malfunctionDialog.dismiss();
+                        malfunctionDialog = null;
+                    }
+
+                    if (malfunctions == 0) {
+                        return;
+                    }
 
                     StringBuilder builder = new StringBuilder();
 
-                    for(String issue : issues) {
-                        builder.append(issue);
-                        builder.append("\n");
+                    for (int malfunction : HealthMonitor.MALFUNCTIONS) {
+                        if ((malfunctions & malfunction) != 0) {
+                            builder.append(HealthMonitor.nameOf(malfunction));
+                            builder.append("\n");
+                        }
                     }
 
-                    new AlertDialog.Builder(MainActivity.this)
+                    malfunctionDialog = new AlertDialog.Builder(MainActivity.this)
                             .setTitle("Ups! Something is wrong ...")
                             .setMessage("Below issues doesn't allow us to run correctly:\n\n" + builder.toString())
                             .setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
@@ -165,23 +190,20 @@ public class MainActivity extends AppCompatActivity {
                 }
 
                 @Override
-                public void onTripClassChanged(final TripClass tripClass) {
-                    String tripClassName;
-                    switch (tripClass.getTripClass()) {
-                        case TripClass.UNKNOWN:
-                            tripClassName = "UNKNOWN";
-                            break;
-                        case TripClass.STATIONARY:
-                            tripClassName = "STATIONARY";
-                            break;
-                        case TripClass.IN_TRANSIT:
-                            tripClassName = "IN TRANSIT";
-                            break;
-                        default:
-                            tripClassName = "Unknown class name";
-                            break;
+                public void onTripClassChanged(int tripClass, long timestamp) {
+                    MainActivity.this.tripClass = tripClass;
+                    tripTimeline.addTripClass(tripClass, timestamp);
+
+                    if (isResumed) {
+                        frameScheduler.schedule();
+                    }
+                }
+
+                @Override
+                public void onCommandCompleted(int command, boolean success) {
+                    if (isResumed && tripDetectionService != null) {
+                        updateViews();
                     }
-                    tripClassStatus.setText(tripClassName);
                 }
 
             };
@@ -268,21 +290,30 @@ public class MainActivity extends AppCompatActivity {
 
         connectButton.setEnabled(true);
 
+        updateViews();
+    }
+
+    /**
+     * Shows the state of the service, commands are executed asynchronously so this is called
+     * again whenever one of them completes.
+     */
+    private void updateViews() {
+
         if (tripDetectionService.isConnected()) {
             startButton.setEnabled(true);
             connectButton.setText(getString(R.string.disconnect_app));
 
-            if (tripDetectionService.isListening()) {
-                startButton.setText(getString(R.string.stop_listening));
-            }
+            startButton.setText(getString(tripDetectionService.isListening()
+                    ? R.string.stop_listening
+                    : R.string.start_listening));
 
-            if (tripDetectionService.isWakeUpWithBroadcastRegistered()) {
-                wakeButton.setText(getString(R.string.cancel_wake_me_up));
-            }
+            wakeButton.setText(getString(tripDetectionService.isWakeUpWithBroadcastRegistered()
+                    ? R.string.cancel_wake_me_up
+                    : R.string.wake_me_up));
 
-            if (tripDetectionService.isWakeUpWithServiceRegistered()) {
-                wakeServiceButton.setText(getString(R.string.cancel_wake_up_my_service));
-            }
+            wakeServiceButton.setText(getString(tripDetectionService.isWakeUpWithServiceRegistered()
+                    ? R.string.cancel_wake_up_my_service
+                    : R.string.wake_my_service));
         } else {
             startButton.setEnabled(false);
         }
@@ -301,6 +332,14 @@ public class MainActivity extends AppCompatActivity {
         wakeServiceButton = (Button) findViewById(R.id.wake_my_service_button);
         connectionStatus = (TextView) findViewById(R.id.connection_status);
         tripClassStatus = (TextView) findViewById(R.id.trip_class);
+        tripTimeline = (TripTimelineView) findViewById(R.id.trip_timeline);
+
+        findViewById(R.id.history_button).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                startActivity(new Intent(MainActivity.this, HistoryActivity.class));
+            }
+        });
 
         bindService(
                 new Intent(MainActivity.this, TripDetectionService.class),
@@ -311,6 +350,8 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
 
+        frameScheduler.cancel();
+
         if (tripDetectionService != null) {
             tripDetectionService.setListener(null);
             unbindService(serviceConnection);
@@ -324,6 +365,7 @@ public class MainActivity extends AppCompatActivity {
     protected void onPause() {
 
         isResumed = false;
+        frameScheduler.cancel();
 
         super.onPause();
     }
@@ -333,6 +375,7 @@ public class MainActivity extends AppCompatActivity {
         super.onResume();
 
         isResumed = true;
+        frameScheduler.schedule();
 
         if (tripDetectionService != null) {
             initializeViews();
@@ -340,7 +383,33 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void resetFields() {
+        tripClass = TripDetectionService.TRIP_CLASS_NONE;
+        renderedTripClass = TripDetectionService.TRIP_CLASS_NONE;
         tripClassStatus.setText("");
+        tripTimeline.clear();
+    }
+
+    private void renderTripClass() {
+        if (tripClass != renderedTripClass) {
+            renderedTripClass = tripClass;
+            tripClassStatus.setText(labelOf(tripClass));
+        }
+        tripTimeline.invalidate();
+    }
+
+    private static String labelOf(int tripClass) {
+        switch (tripClass) {
+            case TripClass.UNKNOWN:
+                return "UNKNOWN";
+            case TripClass.STATIONARY:
+                return "STATIONARY";
+            case TripClass.IN_TRANSIT:
+                return "IN TRANSIT";
+            case TripDetectionService.TRIP_CLASS_NONE:
+                return "";
+            default:
+                return "Unknown class name";
+        }
     }
 
 }
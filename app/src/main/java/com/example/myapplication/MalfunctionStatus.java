@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+/**
+ * History of a single {@code Malfunctions} bit kept by {@link HealthMonitor}.
+ *
+ * @author Daniel Waslicki
+ */
+public final class MalfunctionStatus {
+
+    int malfunction;
+    boolean active;
+    long detectedAt;
+    long clearedAt;
+    long totalMillis;
+    int occurrences;
+
+    MalfunctionStatus() {
+    }
+
+    /**
+     * Returns the {@code Malfunctions} bit.
+     */
+    public int getMalfunction() {
+        return malfunction;
+    }
+
+    public String getName() {
+        return HealthMonitor.nameOf(malfunction);
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Returns the time at which the malfunction was last detected, 0 if it never was.
+     */
+    public long getDetectedAt() {
+        return detectedAt;
+    }
+
+    /**
+     * Returns the time at which the malfunction was last cleared, 0 if it never was.
+     */
+    public long getClearedAt() {
+        return clearedAt;
+    }
+
+    /**
+     * Returns how long the malfunction lasted in total, including the current occurrence.
+     */
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public int getOccurrenceCount() {
+        return occurrences;
+    }
+
+    @Override
+    public String toString() {
+        return "MalfunctionStatus{" + getName()
+                + (active ? ", active" : "")
+                + ", detected=" + detectedAt
+                + ", cleared=" + clearedAt
+                + ", total=" + totalMillis
+                + ", occurrences=" + occurrences
+                + "}";
+    }
+
+}
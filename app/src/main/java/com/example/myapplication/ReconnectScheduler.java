@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+
+import com.cellepathy.cellematicsservice.common.ConnectionResult;
+
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * Schedules reconnection attempts after failed connections with an exponential, jittered and
+ * capped backoff chosen by the {@link ConnectionResult} error code.
+ * <p>
+ * While an attempt waits for a network related error, a connectivity receiver is registered
+ * on the handler and the attempt is made immediately once the device gets connected again.
+ *
+ * @author Daniel Waslicki
+ */
+class ReconnectScheduler {
+
+    /**
+     * Backoff parameters of one error code.
+     */
+    static final class Policy {
+
+        final long initialDelayMillis;
+        final long maxDelayMillis;
+        final float multiplier;
+
+        /**
+         * Fraction of the delay by which an attempt is randomly moved back or forth.
+         */
+        final float jitter;
+
+        /**
+         * Number of consecutive attempts after which the scheduler gives up, 0 for no limit.
+         */
+        final int maxAttempts;
+
+        final boolean waitsForConnectivity;
+
+        Policy(long initialDelayMillis, long maxDelayMillis, float multiplier, float jitter,
+               int maxAttempts, boolean waitsForConnectivity) {
+            this.initialDelayMillis = initialDelayMillis;
+            this.maxDelayMillis = maxDelayMillis;
+            this.multiplier = multiplier;
+            this.jitter = jitter;
+            this.maxAttempts = maxAttempts;
+            this.waitsForConnectivity = waitsForConnectivity;
+        }
+
+        long delayOf(int attempt, Random random) {
+            double delay = initialDelayMillis * Math.pow(multiplier, attempt);
+            delay = Math.min(delay, maxDelayMillis);
+            delay *= 1 - jitter + 2 * jitter * random.nextDouble();
+            return (long) delay;
+        }
+
+    }
+
+    private static final Policy SERVICE_STOPPED_POLICY =
+            new Policy(1000, 5 * 60 * 1000, 2f, 0.2f, 20, false);
+    private static final Policy INITIALIZATION_ERROR_POLICY =
+            new Policy(2000, 2 * 60 * 1000, 2f, 0.2f, 20, false);
+    private static final Policy NO_NETWORK_CONNECTION_POLICY =
+            new Policy(30 * 1000, 30 * 60 * 1000, 2f, 0.2f, 0, true);
+    private static final Policy NETWORK_ERROR_POLICY =
+            new Policy(5000, 10 * 60 * 1000, 2f, 0.2f, 0, true);
+
+    private final Context context;
+    private final Handler handler;
+    private final Runnable reconnect;
+    private final Random random = new Random();
+
+    private final Runnable attempt = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ReconnectScheduler.this) {
+                if (!pending) {
+                    return;
+                }
+                pending = false;
+                attemptCount++;
+                totalAttemptCount++;
+                unregisterConnectivityReceiver();
+            }
+            reconnect.run();
+        }
+    };
+
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            boolean connected = isNetworkConnected();
+
+            synchronized (ReconnectScheduler.this) {
+                boolean returned = connected && !networkConnected;
+                networkConnected = connected;
+
+                if (!returned || !pending) {
+                    return;
+                }
+                connectivityRetryCount++;
+                handler.removeCallbacks(attempt);
+            }
+            attempt.run();
+        }
+    };
+
+    private boolean pending;
+    private boolean receiverRegistered;
+
+    /**
+     * Connectivity seen by the receiver, only a change to connected triggers an attempt.
+     */
+    private boolean networkConnected;
+
+    private int attemptCount;
+    private int totalAttemptCount;
+    private int connectivityRetryCount;
+
+    /**
+     * @param handler   handler on which the attempts are made
+     * @param reconnect action starting a new connection
+     */
+    ReconnectScheduler(Context context, Handler handler, Runnable reconnect) {
+        this.context = context;
+        this.handler = handler;
+        this.reconnect = reconnect;
+    }
+
+    /**
+     * Returns the backoff policy of the error code or {@code null} if connections failing with
+     * it should not be retried.
+     */
+    static Policy policyOf(int errorCode) {
+        switch (errorCode) {
+            case ConnectionResult.SERVICE_STOPPED:
+                return SERVICE_STOPPED_POLICY;
+            case ConnectionResult.INITIALIZATION_ERROR:
+                return INITIALIZATION_ERROR_POLICY;
+            case ConnectionResult.NO_NETWORK_CONNECTION:
+                return NO_NETWORK_CONNECTION_POLICY;
+            case ConnectionResult.NETWORK_ERROR:
+                return NETWORK_ERROR_POLICY;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Schedules the next attempt after a connection failed with the given error code.
+     *
+     * @return {@code false} if the error is not retried or the attempts are exhausted
+     */
+    synchronized boolean schedule(int errorCode) {
+        Policy policy = policyOf(errorCode);
+        if (policy == null
+                || (policy.maxAttempts > 0 && attemptCount >= policy.maxAttempts)) {
+            return false;
+        }
+
+        handler.removeCallbacks(attempt);
+        pending = true;
+        handler.postDelayed(attempt, policy.delayOf(attemptCount, random));
+
+        if (policy.waitsForConnectivity) {
+            registerConnectivityReceiver();
+        } else {
+            unregisterConnectivityReceiver();
+        }
+
+        return true;
+    }
+
+    /**
+     * Drops the pending attempt, if any.
+     */
+    synchronized void cancel() {
+        pending = false;
+        handler.removeCallbacks(attempt);
+        unregisterConnectivityReceiver();
+    }
+
+    /**
+     * Starts the backoff from the beginning, to be called once a connection is established.
+     */
+    synchronized void reset() {
+        cancel();
+        attemptCount = 0;
+    }
+
+    synchronized int getTotalAttemptCount() {
+        return totalAttemptCount;
+    }
+
+    /**
+     * Returns the number of attempts made early because connectivity returned.
+     */
+    synchronized int getConnectivityRetryCount() {
+        return connectivityRetryCount;
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.print("  Reconnect: pending=");
+        writer.print(pending);
+        writer.print(" attempts=");
+        writer.print(attemptCount);
+        writer.print(" total=");
+        writer.print(totalAttemptCount);
+        writer.print(" on connectivity=");
+        writer.println(connectivityRetryCount);
+    }
+
+    private void registerConnectivityReceiver() {
+        if (!receiverRegistered) {
+            networkConnected = isNetworkConnected();
+            // Delivered on the handler, so the early attempt runs where the scheduled ones do.
+            context.registerReceiver(connectivityReceiver,
+                    new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION), null, handler);
+            receiverRegistered = true;
+        }
+    }
+
+    private void unregisterConnectivityReceiver() {
+        if (receiverRegistered) {
+            context.unregisterReceiver(connectivityReceiver);
+            receiverRegistered = false;
+        }
+    }
+
+    private boolean isNetworkConnected() {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+}
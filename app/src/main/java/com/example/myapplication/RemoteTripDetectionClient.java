@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * Binds {@link TripDetectionService} from another process of the app through
+ * {@link ITripDetectionService} and hands its batched events to a {@link Callback} on a
+ * looper of the caller's choice.
+ * <p>
+ * The client watches the service binder and reports its death through
+ * {@link Callback#onServiceDisconnected()}; the system rebinds the service on its own, after
+ * which the callback is registered again.
+ *
+ * @author Daniel Waslicki
+ */
+public class RemoteTripDetectionClient {
+
+    private static final String TAG = "RemoteTripClient";
+
+    public interface Callback {
+
+        void onServiceConnected(ITripDetectionService service);
+
+        void onServiceDisconnected();
+
+        void onConnected();
+
+        /**
+         * @param errorCode one of the {@code ConnectionResult} error codes
+         */
+        void onConnectionFailed(int errorCode);
+
+        /**
+         * @param malfunctions bitmask of the {@code Malfunctions} detected
+         */
+        void onMalfunctionsChanged(int malfunctions);
+
+        /**
+         * @param tripClasses the {@code TripClass} classes in the order of detection
+         * @param timestamps  times at which the classes were detected
+         */
+        void onTripClassesChanged(int[] tripClasses, long[] timestamps);
+
+        void onCommandCompleted(int command, boolean success);
+
+    }
+
+    private final Context context;
+    private final Callback callback;
+    private final Handler handler;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    private final boolean rawTripClasses;
+
+    private volatile ITripDetectionService service;
+    private boolean bound;
+
+    private final IBinder.DeathRecipient deathRecipient = new IBinder.DeathRecipient() {
+        @Override
+        public void binderDied() {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleServiceGone();
+                }
+            });
+        }
+    };
+
+    private final ITripEventCallback.Stub eventCallback = new ITripEventCallback.Stub() {
+
+        @Override
+        public void onConnected() {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onConnected();
+                }
+            });
+        }
+
+        @Override
+        public void onConnectionFailed(final int errorCode) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onConnectionFailed(errorCode);
+                }
+            });
+        }
+
+        @Override
+        public void onMalfunctionsChanged(final int malfunctions) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onMalfunctionsChanged(malfunctions);
+                }
+            });
+        }
+
+        @Override
+        public void onTripClassesChanged(final int[] tripClasses, final long[] timestamps) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onTripClassesChanged(tripClasses, timestamps);
+                }
+            });
+        }
+
+        @Override
+        public void onCommandCompleted(final int command, final boolean success) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onCommandCompleted(command, success);
+                }
+            });
+        }
+
+    };
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            final ITripDetectionService service = ITripDetectionService.Stub.asInterface(binder);
+
+            try {
+                binder.linkToDeath(deathRecipient, 0);
+                service.registerCallback(eventCallback, maxBatchSize, maxDelayMillis, rawTripClasses);
+            } catch (RemoteException e) {
+                // Died meanwhile, the system calls onServiceDisconnected.
+                Log.w(TAG, "Trip detection service died while connecting", e);
+                return;
+            }
+
+            RemoteTripDetectionClient.this.service = service;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onServiceConnected(service);
+                }
+            });
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleServiceGone();
+                }
+            });
+        }
+
+    };
+
+    /**
+     * @param looper         looper on which the callback is called
+     * @param maxBatchSize   maximum number of trip class changes per batch
+     * @param maxDelayMillis maximum time a trip class change waits for its batch to fill up
+     */
+    public RemoteTripDetectionClient(Context context, Callback callback, Looper looper,
+                                     int maxBatchSize, long maxDelayMillis, boolean rawTripClasses) {
+        this.context = context.getApplicationContext();
+        this.callback = callback;
+        this.handler = new Handler(looper);
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.rawTripClasses = rawTripClasses;
+    }
+
+    /**
+     * Binds the service, to be called on the main thread like {@link #unbind()}.
+     */
+    public boolean bind() {
+        if (!bound) {
+            Intent intent = new Intent(context, TripDetectionService.class);
+            intent.setAction(TripDetectionService.REMOTE_ACTION);
+            bound = context.bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE);
+        }
+        return bound;
+    }
+
+    /**
+     * Unregisters the callback and unbinds the service.
+     */
+    public void unbind() {
+        if (!bound) {
+            return;
+        }
+
+        ITripDetectionService service = this.service;
+        if (service != null) {
+            service.asBinder().unlinkToDeath(deathRecipient, 0);
+            try {
+                service.unregisterCallback(eventCallback);
+            } catch (RemoteException e) {
+                // Gone already.
+            }
+            this.service = null;
+        }
+
+        context.unbindService(serviceConnection);
+        bound = false;
+    }
+
+    /**
+     * Returns the service or {@code null} while it is not connected.
+     */
+    @Nullable
+    public ITripDetectionService getService() {
+        return service;
+    }
+
+    private void handleServiceGone() {
+        if (service != null) {
+            service = null;
+            callback.onServiceDisconnected();
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Listener which forwards the events of {@link TripDetectionService} to an
+ * {@link ITripEventCallback} in another process, packing the trip class changes into batches
+ * so that a busy trip costs one binder transaction per batch instead of one per change.
+ * <p>
+ * A batch is sent once it holds {@code maxBatchSize} changes, or {@code maxDelayMillis} after
+ * its first change, whichever comes first. Any other event sends the pending batch before
+ * itself to keep the order. All methods run on the looper the batcher is created with.
+ *
+ * @author Daniel Waslicki
+ */
+class RemoteTripEventBatcher implements TripDetectionService.TripDetectionServiceListener {
+
+    private static final String TAG = "RemoteTripEventBatcher";
+
+    static final int MAX_BATCH_SIZE = 512;
+    static final long MAX_DELAY_MILLIS = 60 * 1000;
+
+    private final ITripEventCallback callback;
+    private final Handler handler;
+    private final long maxDelayMillis;
+
+    private final int[] tripClasses;
+    private final long[] timestamps;
+    private int count;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    RemoteTripEventBatcher(ITripEventCallback callback, Looper looper, int maxBatchSize, long maxDelayMillis) {
+        this.callback = callback;
+        this.handler = new Handler(looper);
+        this.maxDelayMillis = Math.max(0, Math.min(maxDelayMillis, MAX_DELAY_MILLIS));
+
+        int batchSize = Math.max(1, Math.min(maxBatchSize, MAX_BATCH_SIZE));
+        this.tripClasses = new int[batchSize];
+        this.timestamps = new long[batchSize];
+    }
+
+    ITripEventCallback getCallback() {
+        return callback;
+    }
+
+    /**
+     * Drops the pending batch, called once the callback is gone.
+     */
+    void cancel() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                handler.removeCallbacks(flush);
+                count = 0;
+            }
+        });
+    }
+
+    @Override
+    public boolean isVisible() {
+        return false;
+    }
+
+    @Override
+    public void onConnected() {
+        flush();
+        try {
+            callback.onConnected();
+        } catch (RemoteException e) {
+            logDelivery(e);
+        }
+    }
+
+    @Override
+    public void onConnectionFailed(int errorCode) {
+        flush();
+        try {
+            callback.onConnectionFailed(errorCode);
+        } catch (RemoteException e) {
+            logDelivery(e);
+        }
+    }
+
+    @Override
+    public void onMalfunctionsChanged(int malfunctions) {
+        flush();
+        try {
+            callback.onMalfunctionsChanged(malfunctions);
+        } catch (RemoteException e) {
+            logDelivery(e);
+        }
+    }
+
+    @Override
+    public void onTripClassChanged(int tripClass, long timestamp) {
+        tripClasses[count] = tripClass;
+        timestamps[count] = timestamp;
+        count++;
+
+        if (count == tripClasses.length || maxDelayMillis == 0) {
+            flush();
+        } else if (count == 1) {
+            handler.postDelayed(flush, maxDelayMillis);
+        }
+    }
+
+    @Override
+    public void onCommandCompleted(int command, boolean success) {
+        flush();
+        try {
+            callback.onCommandCompleted(command, success);
+        } catch (RemoteException e) {
+            logDelivery(e);
+        }
+    }
+
+    private void flush() {
+        if (count == 0) {
+            return;
+        }
+
+        handler.removeCallbacks(flush);
+
+        int[] batchClasses = Arrays.copyOf(tripClasses, count);
+        long[] batchTimestamps = Arrays.copyOf(timestamps, count);
+        count = 0;
+
+        try {
+            callback.onTripClassesChanged(batchClasses, batchTimestamps);
+        } catch (RemoteException e) {
+            logDelivery(e);
+        }
+    }
+
+    /**
+     * A failed one way call means the other process died, the death notification of the
+     * callback list removes this batcher.
+     */
+    private static void logDelivery(RemoteException e) {
+        Log.d(TAG, "Remote callback is gone", e);
+    }
+
+}
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hot path instrumentation of {@link TripDetectionService}, exported through
+ * {@code adb shell dumpsys activity service TripDetectionService}.
+ * <p>
+ * Recording is off by default and every recording method returns after a single volatile read
+ * while it is off. Enable it with {@code dumpsys ... metrics on} or through the binder. The
+ * wake up to first event latency is the exception, it is recorded and logged for every wake up
+ * so that it can be compared across releases.
+ *
+ * @author Daniel Waslicki
+ */
+class ServiceMetrics {
+
+    private static final String TAG = "ServiceMetrics";
+
+    private static final int ERROR_CODE_SLOTS = 16;
+
+    private volatile boolean enabled;
+
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram("Trip class delivery latency");
+    private final LatencyHistogram listenerTime = new LatencyHistogram("Listener callback time");
+    private final LatencyHistogram connectDuration = new LatencyHistogram("Connect duration");
+    private final LatencyHistogram firstEventLatency = new LatencyHistogram("Time to first event");
+    private final LatencyHistogram wakeUpLatency = new LatencyHistogram("Wake up to first event");
+
+    private final AtomicLong rawEventCount = new AtomicLong();
+    private final AtomicLong filteredEventCount = new AtomicLong();
+    private final AtomicLong deliveredEventCount = new AtomicLong();
+
+    private final AtomicIntegerArray connectionFailures = new AtomicIntegerArray(ERROR_CODE_SLOTS);
+    private final AtomicIntegerArray reconnects = new AtomicIntegerArray(ERROR_CODE_SLOTS);
+
+    private final AtomicInteger maxCommandQueueDepth = new AtomicInteger();
+    private final AtomicInteger maxDispatchQueueDepth = new AtomicInteger();
+
+    private volatile long connectStartedAt;
+    private volatile long listeningStartedAt;
+    private volatile long wokenUpAt;
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    void reset() {
+        deliveryLatency.reset();
+        listenerTime.reset();
+        connectDuration.reset();
+        firstEventLatency.reset();
+        wakeUpLatency.reset();
+        rawEventCount.set(0);
+        filteredEventCount.set(0);
+        deliveredEventCount.set(0);
+        for (int i = 0; i < ERROR_CODE_SLOTS; i++) {
+            connectionFailures.set(i, 0);
+            reconnects.set(i, 0);
+        }
+        maxCommandQueueDepth.set(0);
+        maxDispatchQueueDepth.set(0);
+    }
+
+    void onConnectStarted() {
+        if (enabled) {
+            connectStartedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    void onConnected() {
+        if (enabled && connectStartedAt != 0) {
+            connectDuration.record(SystemClock.elapsedRealtime() - connectStartedAt);
+            connectStartedAt = 0;
+        }
+    }
+
+    void onConnectionFailed(int errorCode, boolean reconnecting) {
+        if (enabled) {
+            connectStartedAt = 0;
+            connectionFailures.incrementAndGet(slotOf(errorCode));
+            if (reconnecting) {
+                reconnects.incrementAndGet(slotOf(errorCode));
+            }
+        }
+    }
+
+    void onListeningStarted() {
+        if (enabled) {
+            listeningStartedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Records that the service was started to listen for a trip which has just begun.
+     */
+    void onWokenUp() {
+        wokenUpAt = SystemClock.elapsedRealtime();
+    }
+
+    void onRawTripClass() {
+        long wokenAt = wokenUpAt;
+        if (wokenAt != 0) {
+            wokenUpAt = 0;
+            long latency = SystemClock.elapsedRealtime() - wokenAt;
+            wakeUpLatency.record(latency);
+            Log.i(TAG, "First trip class " + latency + " ms after wake up");
+        }
+
+        if (enabled) {
+            rawEventCount.incrementAndGet();
+
+            long startedAt = listeningStartedAt;
+            if (startedAt != 0) {
+                listeningStartedAt = 0;
+                firstEventLatency.record(SystemClock.elapsedRealtime() - startedAt);
+            }
+        }
+    }
+
+    void onFilteredTripClass() {
+        if (enabled) {
+            filteredEventCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a trip class detected at {@code timestamp} and handed to a listener which took
+     * {@code callbackMillis} to handle it.
+     */
+    void onTripClassDelivered(long timestamp, long callbackMillis) {
+        if (enabled) {
+            deliveredEventCount.incrementAndGet();
+            deliveryLatency.record(System.currentTimeMillis() - timestamp);
+            listenerTime.record(callbackMillis);
+        }
+    }
+
+    void onCommandQueueDepth(int depth) {
+        if (enabled) {
+            updateMax(maxCommandQueueDepth, depth);
+        }
+    }
+
+    void onDispatchQueueDepth(int depth) {
+        if (enabled) {
+            updateMax(maxDispatchQueueDepth, depth);
+        }
+    }
+
+    /**
+     * Writes the metrics, the current queue depths are sampled by the caller.
+     */
+    void dump(PrintWriter writer, int commandQueueDepth, int dispatchQueueDepth, int reconnectAttempts) {
+        writer.print("Metrics (");
+        writer.print(enabled ? "enabled" : "disabled");
+        writer.println("):");
+
+        deliveryLatency.dump(writer);
+        listenerTime.dump(writer);
+        connectDuration.dump(writer);
+        firstEventLatency.dump(writer);
+        wakeUpLatency.dump(writer);
+
+        writer.print("  Trip class events: raw=");
+        writer.print(rawEventCount.get());
+        writer.print(" filtered=");
+        writer.print(filteredEventCount.get());
+        writer.print(" delivered=");
+        writer.println(deliveredEventCount.get());
+
+        writer.print("  Queue depths: commands=");
+        writer.print(commandQueueDepth);
+        writer.print(" (max ");
+        writer.print(maxCommandQueueDepth.get());
+        writer.print(") dispatch=");
+        writer.print(dispatchQueueDepth);
+        writer.print(" (max ");
+        writer.print(maxDispatchQueueDepth.get());
+        writer.println(")");
+
+        writer.print("  Reconnect attempts: ");
+        writer.println(reconnectAttempts);
+
+        dumpPerErrorCode(writer, "  Connection failures by code:", connectionFailures);
+        dumpPerErrorCode(writer, "  Reconnects scheduled by code:", reconnects);
+    }
+
+    private static void dumpPerErrorCode(PrintWriter writer, String title, AtomicIntegerArray counts) {
+        writer.print(title);
+        boolean any = false;
+        for (int i = 0; i < ERROR_CODE_SLOTS; i++) {
+            int count = counts.get(i);
+            if (count > 0) {
+                writer.print(' ');
+                writer.print(i == ERROR_CODE_SLOTS - 1 ? "other" : String.valueOf(i));
+                writer.print('=');
+                writer.print(count);
+                any = true;
+            }
+        }
+        writer.println(any ? "" : " none");
+    }
+
+    private static int slotOf(int errorCode) {
+        return errorCode >= 0 && errorCode < ERROR_CODE_SLOTS - 1 ? errorCode : ERROR_CODE_SLOTS - 1;
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        while ((current = max.get()) < value && !max.compareAndSet(current, value)) {
+            // Retry until the maximum is at least this value.
+        }
+    }
+
+}
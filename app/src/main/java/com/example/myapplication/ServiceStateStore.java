@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.support.v4.util.AtomicFile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Snapshot of the state of {@link TripDetectionService} which survives the process, so that a
+ * sticky restart can pick up where the killed service left off.
+ * <p>
+ * The snapshot is a single fixed size record replaced through an {@link AtomicFile}, a reader
+ * sees either the previous or the new record, never a torn one. It is not thread safe, the
+ * service saves from its worker thread only and loads before the worker runs any command.
+ *
+ * @author Daniel Waslicki
+ */
+class ServiceStateStore {
+
+    static final int FLAG_CONNECTED = 1;
+    static final int FLAG_LISTENING = 1 << 1;
+    static final int FLAG_WAKE_UP_WITH_BROADCAST = 1 << 2;
+    static final int FLAG_WAKE_UP_WITH_SERVICE = 1 << 3;
+    static final int FLAG_WAKE_ONLY = 1 << 4;
+    static final int FLAG_ADAPTIVE_WAKE_UP = 1 << 5;
+
+    private static final int MAGIC = 0x54525353;
+    private static final int VERSION = 2;
+
+    // magic, version, flags, trip class, timestamp, raw trip class, raw timestamp,
+    // stationary timeout, saved at
+    private static final int RECORD_SIZE = 4 + 4 + 4 + 4 + 8 + 4 + 8 + 8 + 8;
+
+    private final AtomicFile file;
+    private final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+
+    private int flags;
+    private int tripClass = TripDetectionService.TRIP_CLASS_NONE;
+    private long tripClassTimestamp;
+    private int rawTripClass = TripDetectionService.TRIP_CLASS_NONE;
+    private long rawTripClassTimestamp;
+    private long stationaryTimeout = AdaptiveListening.DEFAULT_STATIONARY_TIMEOUT_MILLIS;
+    private long savedAt;
+
+    ServiceStateStore(File file) {
+        this.file = new AtomicFile(file);
+    }
+
+    /**
+     * Reads the last saved snapshot, returns {@code false} if there is none or it is not
+     * readable, in which case the getters return the initial state.
+     */
+    boolean load() {
+        byte[] bytes;
+        try {
+            bytes = file.readFully();
+        } catch (IOException e) {
+            return false;
+        }
+
+        if (bytes.length != RECORD_SIZE) {
+            return false;
+        }
+
+        ByteBuffer record = ByteBuffer.wrap(bytes);
+        if (record.getInt() != MAGIC || record.getInt() != VERSION) {
+            return false;
+        }
+
+        flags = record.getInt();
+        tripClass = record.getInt();
+        tripClassTimestamp = record.getLong();
+        rawTripClass = record.getInt();
+        rawTripClassTimestamp = record.getLong();
+        stationaryTimeout = record.getLong();
+        savedAt = record.getLong();
+        return true;
+    }
+
+    void save(int flags, int tripClass, long tripClassTimestamp, int rawTripClass, long rawTripClassTimestamp,
+              long stationaryTimeout) throws IOException {
+
+        if (flags == this.flags
+                && tripClass == this.tripClass
+                && tripClassTimestamp == this.tripClassTimestamp
+                && rawTripClass == this.rawTripClass
+                && rawTripClassTimestamp == this.rawTripClassTimestamp
+                && stationaryTimeout == this.stationaryTimeout) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(flags);
+        buffer.putInt(tripClass);
+        buffer.putLong(tripClassTimestamp);
+        buffer.putInt(rawTripClass);
+        buffer.putLong(rawTripClassTimestamp);
+        buffer.putLong(stationaryTimeout);
+        buffer.putLong(now);
+
+        FileOutputStream out = file.startWrite();
+        try {
+            out.write(buffer.array(), 0, RECORD_SIZE);
+        } catch (IOException e) {
+            file.failWrite(out);
+            throw e;
+        }
+        file.finishWrite(out);
+
+        this.flags = flags;
+        this.tripClass = tripClass;
+        this.tripClassTimestamp = tripClassTimestamp;
+        this.rawTripClass = rawTripClass;
+        this.rawTripClassTimestamp = rawTripClassTimestamp;
+        this.stationaryTimeout = stationaryTimeout;
+        this.savedAt = now;
+    }
+
+    boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    int getTripClass() {
+        return tripClass;
+    }
+
+    long getTripClassTimestamp() {
+        return tripClassTimestamp;
+    }
+
+    int getRawTripClass() {
+        return rawTripClass;
+    }
+
+    long getRawTripClassTimestamp() {
+        return rawTripClassTimestamp;
+    }
+
+    long getStationaryTimeout() {
+        return stationaryTimeout;
+    }
+
+    /**
+     * Returns the wall clock time at which the snapshot was saved.
+     */
+    long getSavedAt() {
+        return savedAt;
+    }
+
+}
@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.content.Context;
+
+import com.cellepathy.cellematicsservice.CellematicsServiceClient;
+import com.cellepathy.cellematicsservice.common.ConnectionResult;
+import com.cellepathy.cellematicsservice.common.Malfunctions;
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+import com.cellepathy.cellematicsservice.tripdetection.TripDetection;
+import com.cellepathy.cellematicsservice.tripdetection.TripListener;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The single {@link CellematicsServiceClient} of the process, shared by any number of
+ * {@link CellematicsBackend} handles.
+ * <p>
+ * A license key may only have one active connection, so every component goes through this
+ * class instead of building a client of its own. The client is connected while at least one
+ * handle asked for the connection and one {@link TripListener} is registered upstream while at
+ * least one handle asked for trip updates; the events are fanned out to the handles which
+ * asked for them. The client is torn down once the last handle is released, the next
+ * {@link #acquire(Context, TripDetectionBackend.Callbacks)} builds a new one.
+ * <p>
+ * The state of the upstream client is guarded by the connection, the callbacks of the handles
+ * are made outside of the lock on the thread of the client.
+ *
+ * @author Daniel Waslicki
+ */
+class SharedCellematicsConnection {
+
+    // TODO: insert your license key
+    private static final String LICENSE_KEY = "ApplicationsKey";
+
+    private static SharedCellematicsConnection instance;
+
+    private final CellematicsServiceClient client;
+
+    private final List<CellematicsBackend> handles = new CopyOnWriteArrayList<>();
+
+    private boolean connecting;
+    private boolean connected;
+    private boolean tripUpdatesRegistered;
+
+    private final TripListener tripListener = new TripListener() {
+        @Override
+        public void tripClassChanged(long l, TripClass tripClass) {
+            int value = tripClass.getTripClass();
+            for (CellematicsBackend handle : handles) {
+                if (handle.tripUpdatesRequested) {
+                    handle.callbacks.onTripClassChanged(l, value);
+                }
+            }
+        }
+    };
+
+    private SharedCellematicsConnection(Context context) {
+        this.client = new CellematicsServiceClient.Builder(context)
+                .addApi(TripDetection.API)
+                .setLicenseKey(LICENSE_KEY)
+                .addConnectionCallbacks(new CellematicsServiceClient.ConnectionCallbacks() {
+
+                    @Override
+                    public void onConnected() {
+                        handleConnected();
+                    }
+
+                    @Override
+                    public void onConnectionFailed(ConnectionResult connectionResult) {
+                        handleConnectionFailed(connectionResult.getErrorCode());
+                    }
+
+                })
+                .addEventListener(new CellematicsServiceClient.CellematicsServiceListener() {
+
+                    @Override
+                    public void detectedMalfunctions(Malfunctions malfunctions) {
+                        int value = malfunctions.getMalfunctions();
+                        for (CellematicsBackend handle : handles) {
+                            if (handle.connectionRequested) {
+                                handle.callbacks.onMalfunctionsDetected(value);
+                            }
+                        }
+                    }
+
+                })
+                .build();
+    }
+
+    /**
+     * Returns a new handle on the shared connection, building the client if there is none.
+     */
+    static synchronized CellematicsBackend acquire(Context context, TripDetectionBackend.Callbacks callbacks) {
+        if (instance == null) {
+            instance = new SharedCellematicsConnection(context.getApplicationContext());
+        }
+
+        CellematicsBackend handle = new CellematicsBackend(instance, callbacks);
+        instance.handles.add(handle);
+        return handle;
+    }
+
+    /**
+     * Returns the number of handles which are not released, 0 if there is no client.
+     */
+    static synchronized int getHandleCount() {
+        return instance != null ? instance.handles.size() : 0;
+    }
+
+    CellematicsServiceClient getClient() {
+        return client;
+    }
+
+    void connect(CellematicsBackend handle) {
+        boolean alreadyConnected;
+
+        synchronized (this) {
+            if (handle.released) {
+                return;
+            }
+            handle.connectionRequested = true;
+
+            alreadyConnected = connected;
+            if (!connected && !connecting) {
+                connecting = true;
+                client.connect();
+            }
+        }
+
+        if (alreadyConnected) {
+            handle.callbacks.onConnected();
+        }
+    }
+
+    synchronized void disconnect(CellematicsBackend handle) {
+        handle.connectionRequested = false;
+        handle.tripUpdatesRequested = false;
+
+        if (isAnyConnectionRequested()) {
+            updateTripUpdates();
+            return;
+        }
+
+        if (connected || connecting) {
+            connecting = false;
+            connected = false;
+            tripUpdatesRegistered = false;
+            client.disconnect();
+        }
+    }
+
+    synchronized void setTripUpdatesRequested(CellematicsBackend handle, boolean requested) {
+        if (handle.released) {
+            return;
+        }
+        handle.tripUpdatesRequested = requested;
+        updateTripUpdates();
+    }
+
+    /**
+     * Drops the handle, the last one tears the client down.
+     */
+    void release(CellematicsBackend handle) {
+        synchronized (SharedCellematicsConnection.class) {
+            synchronized (this) {
+                if (handle.released) {
+                    return;
+                }
+
+                disconnect(handle);
+                handle.released = true;
+                handles.remove(handle);
+
+                if (handles.isEmpty()) {
+                    client.teardown();
+                    if (instance == this) {
+                        instance = null;
+                    }
+                }
+            }
+        }
+    }
+
+    private void handleConnected() {
+        synchronized (this) {
+            connecting = false;
+            connected = true;
+            updateTripUpdates();
+        }
+
+        for (CellematicsBackend handle : handles) {
+            if (handle.connectionRequested) {
+                handle.callbacks.onConnected();
+            }
+        }
+    }
+
+    private void handleConnectionFailed(int errorCode) {
+        synchronized (this) {
+            connecting = false;
+            connected = false;
+            tripUpdatesRegistered = false;
+        }
+
+        // The handles connect again on their own, like they would with a client of their own.
+        for (CellematicsBackend handle : handles) {
+            if (handle.connectionRequested) {
+                handle.connectionRequested = false;
+                handle.tripUpdatesRequested = false;
+                handle.callbacks.onConnectionFailed(errorCode);
+            }
+        }
+    }
+
+    /**
+     * Registers or removes the upstream trip listener to match the requests of the handles.
+     */
+    private void updateTripUpdates() {
+        boolean requested = false;
+        for (CellematicsBackend handle : handles) {
+            requested |= handle.tripUpdatesRequested;
+        }
+
+        if (requested && !tripUpdatesRegistered && connected) {
+            TripDetection.TripDetectionApi.requestTripUpdates(client, tripListener);
+            tripUpdatesRegistered = true;
+        } else if (!requested && tripUpdatesRegistered) {
+            TripDetection.TripDetectionApi.removeTripUpdates(client, tripListener);
+            tripUpdatesRegistered = false;
+        }
+    }
+
+    private boolean isAnyConnectionRequested() {
+        for (CellematicsBackend handle : handles) {
+            if (handle.connectionRequested) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
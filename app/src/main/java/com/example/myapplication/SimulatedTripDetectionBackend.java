@@ -0,0 +1,383 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.content.Context;
+import android.content.Intent;
+
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-process {@link TripDetectionBackend} which replays a {@link TripTrace}, for load testing
+ * the service without the Cellematics Service.
+ * <p>
+ * The replay runs on its own thread, which also makes all callbacks, like the callbacks of the
+ * real client arrive on a foreign thread. It starts once the first connection is listened to,
+ * when trip updates are requested or a wake up is registered, so that no event is lost however
+ * long the service takes to get there. Trace time passes {@code speedUp} times faster than
+ * wall time, a speed-up of {@link Float#POSITIVE_INFINITY} delivers the events as fast as the
+ * callbacks return. Timestamps are reported in trace time, starting at the wall clock time the
+ * replay starts, and {@link #now()} reads the same clock: it stands still until then and while
+ * disconnected and, with an infinite speed-up, jumps to every event and runs at wall speed in
+ * between. A {@link TripTrace#EVENT_CONNECTION_FAILED} event drops the connection and the
+ * replay waits for the next {@link #connect()}; trip class events are only reported while
+ * trip updates are requested. Otherwise a change to {@code IN_TRANSIT} fires the registered
+ * wake ups, like a trip start does, so the wake up paths of the service can be replayed too.
+ *
+ * @author Daniel Waslicki
+ */
+class SimulatedTripDetectionBackend implements TripDetectionBackend {
+
+    private static final String BROADCAST_KEY_PREFIX = "broadcast:";
+    private static final String SERVICE_KEY_PREFIX = "service:";
+
+    private final Context context;
+    private final Callbacks callbacks;
+    private final TripTrace trace;
+    private final float speedUp;
+    private final boolean loop;
+
+    private final Map<String, Intent> wakeUpRegistrations = new HashMap<>();
+
+    private Thread thread;
+
+    private boolean connected;
+    private boolean connectPending;
+    private boolean receivingTripUpdates;
+    private boolean tornDown;
+
+    // Trace time clockTimestamp was read at wall clock nanos clockNanos, the trace clock only
+    // runs while clockRunning.
+    private long clockTimestamp = System.currentTimeMillis();
+    private long clockNanos = System.nanoTime();
+    private boolean clockRunning;
+
+    private volatile long deliveredEventCount;
+    private volatile int wakeUpCount;
+
+    SimulatedTripDetectionBackend(Context context, Callbacks callbacks, TripTrace trace, float speedUp,
+                                  boolean loop) {
+        if (!(speedUp > 0)) {
+            throw new IllegalArgumentException("Speed-up must be positive");
+        }
+
+        this.context = context;
+        this.callbacks = callbacks;
+        this.trace = trace;
+        this.speedUp = speedUp;
+        this.loop = loop;
+    }
+
+    static Factory factory(final TripTrace trace, final float speedUp, final boolean loop) {
+        return new Factory() {
+            @Override
+            public TripDetectionBackend create(Context context, Callbacks callbacks) {
+                return new SimulatedTripDetectionBackend(context, callbacks, trace, speedUp, loop);
+            }
+        };
+    }
+
+    /**
+     * Returns the number of trace events reported to the callbacks so far.
+     */
+    long getDeliveredEventCount() {
+        return deliveredEventCount;
+    }
+
+    /**
+     * Returns the number of trip starts which fired the wake ups so far.
+     */
+    int getWakeUpCount() {
+        return wakeUpCount;
+    }
+
+    @Override
+    public synchronized long now() {
+        if (!clockRunning) {
+            return clockTimestamp;
+        }
+
+        long elapsedNanos = System.nanoTime() - clockNanos;
+        return speedUp == Float.POSITIVE_INFINITY
+                ? clockTimestamp + elapsedNanos / 1000000
+                : clockTimestamp + (long) (elapsedNanos * (double) speedUp / 1000000.0);
+    }
+
+    @Override
+    public long toUptimeMillis(long millis) {
+        // Rounded up, so that a check does not run before its deadline on the trace clock.
+        return speedUp == Float.POSITIVE_INFINITY ? millis : (long) Math.ceil(millis / (double) speedUp);
+    }
+
+    @Override
+    public synchronized void connect() {
+        if (tornDown || connected) {
+            return;
+        }
+
+        connectPending = true;
+
+        if (thread == null) {
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    replay();
+                }
+            }, "SimulatedTripDetection");
+            thread.start();
+        } else {
+            notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized void disconnect() {
+        stopClock();
+        connected = false;
+        connectPending = false;
+        receivingTripUpdates = false;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void teardown() {
+        stopClock();
+        tornDown = true;
+        connected = false;
+        connectPending = false;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void requestTripUpdates() {
+        receivingTripUpdates = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void removeTripUpdates() {
+        receivingTripUpdates = false;
+    }
+
+    @Override
+    public synchronized void wakeUpWithBroadcastOnTripStart(String action) {
+        wakeUpRegistrations.put(broadcastKey(action), new Intent(action));
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void cancelWakeUpWithBroadcastOnTripStart(String action) {
+        wakeUpRegistrations.remove(broadcastKey(action));
+    }
+
+    @Override
+    public synchronized boolean isWakeUpWithBroadcastRegistered(String action) {
+        return wakeUpRegistrations.containsKey(broadcastKey(action));
+    }
+
+    @Override
+    public synchronized void wakeUpServiceOnTripStart(String packageName, String className, String action) {
+        wakeUpRegistrations.put(serviceKey(packageName, className, action),
+                new Intent(action).setClassName(packageName, className));
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void cancelWakeUpServiceOnTripStart(String packageName, String className, String action) {
+        wakeUpRegistrations.remove(serviceKey(packageName, className, action));
+    }
+
+    @Override
+    public synchronized boolean isWakeUpServiceRegistered(String packageName, String className, String action) {
+        return wakeUpRegistrations.containsKey(serviceKey(packageName, className, action));
+    }
+
+    private void replay() {
+        boolean started = false;
+        long baseTimestamp = 0;
+        long lapOffset = 0;
+        int index = 0;
+
+        int lastTripClass = TripDetectionService.TRIP_CLASS_NONE;
+
+        while (true) {
+            boolean reconnected = false;
+
+            synchronized (this) {
+                while (!tornDown && !connected && !connectPending) {
+                    waitQuietly(0);
+                }
+                if (tornDown) {
+                    return;
+                }
+                if (connectPending) {
+                    connectPending = false;
+                    connected = true;
+                    reconnected = true;
+
+                    // Restart the clock at the next event, so that the time spent disconnected
+                    // is not caught up.
+                    if (started) {
+                        startClock(index < trace.size()
+                                ? baseTimestamp + lapOffset + trace.offsetAt(index)
+                                : clockTimestamp);
+                    }
+                }
+            }
+
+            if (reconnected) {
+                callbacks.onConnected();
+                continue;
+            }
+
+            if (!started) {
+                synchronized (this) {
+                    while (!tornDown && connected && !receivingTripUpdates && wakeUpRegistrations.isEmpty()) {
+                        waitQuietly(0);
+                    }
+                    if (tornDown || !connected) {
+                        continue;
+                    }
+                    startClock(System.currentTimeMillis());
+                    baseTimestamp = clockTimestamp;
+                    started = true;
+                }
+            }
+
+            if (index == trace.size()) {
+                if (!loop || trace.size() == 0) {
+                    synchronized (this) {
+                        while (!tornDown && (connected || !connectPending)) {
+                            waitQuietly(0);
+                        }
+                    }
+                    continue;
+                }
+                lapOffset += trace.duration() + 1;
+                index = 0;
+                synchronized (this) {
+                    startClock(baseTimestamp + lapOffset + trace.offsetAt(0));
+                }
+            }
+
+            long timestamp = baseTimestamp + lapOffset + trace.offsetAt(index);
+
+            synchronized (this) {
+                if (speedUp != Float.POSITIVE_INFINITY) {
+                    long dueNanos = clockNanos + (long) ((timestamp - clockTimestamp) * 1000000.0 / speedUp);
+                    long remaining = dueNanos - System.nanoTime();
+                    if (remaining > 0) {
+                        waitQuietly(Math.max(1, remaining / 1000000));
+                        continue;
+                    }
+                }
+                if (!connected) {
+                    continue;
+                }
+                if (speedUp == Float.POSITIVE_INFINITY) {
+                    startClock(timestamp);
+                }
+            }
+
+            int event = trace.eventAt(index);
+            int value = trace.valueAt(index);
+            index++;
+
+            switch (event) {
+                case TripTrace.EVENT_TRIP_CLASS:
+                    if (isReceivingTripUpdates()) {
+                        deliveredEventCount++;
+                        callbacks.onTripClassChanged(timestamp, value);
+                    } else if (value == TripClass.IN_TRANSIT && lastTripClass != TripClass.IN_TRANSIT) {
+                        fireWakeUps();
+                    }
+                    lastTripClass = value;
+                    break;
+                case TripTrace.EVENT_MALFUNCTIONS:
+                    deliveredEventCount++;
+                    callbacks.onMalfunctionsDetected(value);
+                    break;
+                case TripTrace.EVENT_CONNECTION_FAILED:
+                    synchronized (this) {
+                        stopClock();
+                        connected = false;
+                        receivingTripUpdates = false;
+                    }
+                    deliveredEventCount++;
+                    callbacks.onConnectionFailed(value);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Runs the trace clock from {@code timestamp}, or from where it is if that is later, so that
+     * it never goes back. Called with the lock held.
+     */
+    private void startClock(long timestamp) {
+        clockTimestamp = Math.max(timestamp, now());
+        clockNanos = System.nanoTime();
+        clockRunning = true;
+    }
+
+    /**
+     * Stops the trace clock where it is. Called with the lock held.
+     */
+    private void stopClock() {
+        clockTimestamp = now();
+        clockRunning = false;
+    }
+
+    private void fireWakeUps() {
+        List<Map.Entry<String, Intent>> wakeUps;
+        synchronized (this) {
+            wakeUps = new ArrayList<>(wakeUpRegistrations.entrySet());
+        }
+        if (wakeUps.isEmpty()) {
+            return;
+        }
+
+        wakeUpCount++;
+        for (Map.Entry<String, Intent> wakeUp : wakeUps) {
+            if (wakeUp.getKey().startsWith(SERVICE_KEY_PREFIX)) {
+                context.startService(wakeUp.getValue());
+            } else {
+                context.sendBroadcast(wakeUp.getValue());
+            }
+        }
+    }
+
+    private synchronized boolean isReceivingTripUpdates() {
+        return connected && receivingTripUpdates;
+    }
+
+    private void waitQuietly(long millis) {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            tornDown = true;
+        }
+    }
+
+    private static String broadcastKey(String action) {
+        return BROADCAST_KEY_PREFIX + action;
+    }
+
+    private static String serviceKey(String packageName, String className, String action) {
+        return SERVICE_KEY_PREFIX + packageName + "/" + className + ":" + action;
+    }
+
+}
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+/**
+ * Time spent in each trip class per hour or day, read from {@link TimeInStateRollups} by
+ * {@link TripDetectionService.TripDetectionServiceBinder#getHourlyTimeInState(long, long)} and
+ * {@link TripDetectionService.TripDetectionServiceBinder#getDailyTimeInState(long, long)}.
+ * <p>
+ * Buckets are aligned to UTC, bucket {@code i} starts at {@link #getBucketStart(int)} and lasts
+ * {@link #getBucketMillis()}. Time in which the service did not know the trip class is not
+ * counted at all.
+ *
+ * @author Daniel Waslicki
+ */
+public final class TimeInState {
+
+    final long bucketMillis;
+    final long firstBucketStart;
+    final long[] unknownMillis;
+    final long[] stationaryMillis;
+    final long[] inTransitMillis;
+
+    TimeInState(long bucketMillis, long firstBucketStart, int size) {
+        this.bucketMillis = bucketMillis;
+        this.firstBucketStart = firstBucketStart;
+        this.unknownMillis = new long[size];
+        this.stationaryMillis = new long[size];
+        this.inTransitMillis = new long[size];
+    }
+
+    public int size() {
+        return unknownMillis.length;
+    }
+
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    public long getBucketStart(int index) {
+        return firstBucketStart + index * bucketMillis;
+    }
+
+    public long getUnknownMillis(int index) {
+        return unknownMillis[index];
+    }
+
+    public long getStationaryMillis(int index) {
+        return stationaryMillis[index];
+    }
+
+    public long getInTransitMillis(int index) {
+        return inTransitMillis[index];
+    }
+
+}
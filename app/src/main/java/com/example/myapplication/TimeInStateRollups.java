@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.support.v4.util.AtomicFile;
+
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Incremental rollups of the time spent in each trip class per UTC hour and day.
+ * <p>
+ * The interval since the last trip class change is added to the buckets once the class changes
+ * again, split at every bucket boundary it crosses. The buckets are two rings of primitive
+ * arrays, {@link #HOURS} hours and {@link #DAYS} days, indexed by the number of the bucket since
+ * the epoch, so the oldest bucket is reused once a new one is needed and nothing is allocated
+ * while counting. A bucket holds at most a day of milliseconds, which fits an {@code int}.
+ * <p>
+ * The rings are saved to a single {@link AtomicFile} of about 4 KB together with the open
+ * interval, which is worth saving again whenever it crosses into the next hour, see
+ * {@link #getCheckpointTime()}. After a restart the open interval is closed at the time of the
+ * last save, the time the process was gone is not attributed to any class. Time before the
+ * epoch is not counted.
+ *
+ * @author Daniel Waslicki
+ */
+class TimeInStateRollups {
+
+    static final long HOUR_MILLIS = 60 * 60 * 1000;
+    static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    static final int HOURS = 7 * 24;
+    static final int DAYS = 92;
+
+    private static final int CLASS_UNKNOWN = 0;
+    private static final int CLASS_STATIONARY = 1;
+    private static final int CLASS_IN_TRANSIT = 2;
+    private static final int CLASSES = 3;
+
+    private static final int MAGIC = 0x54495352;
+    private static final int VERSION = 1;
+
+    // magic, version, trip class, since, saved at, then index and millis of every bucket
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8;
+    private static final int FILE_SIZE = HEADER_SIZE + (HOURS + DAYS) * 4 * (1 + CLASSES);
+
+    private final AtomicFile file;
+
+    private final int[] hourIndices = new int[HOURS];
+    private final int[] hourMillis = new int[HOURS * CLASSES];
+    private final int[] dayIndices = new int[DAYS];
+    private final int[] dayMillis = new int[DAYS * CLASSES];
+
+    /**
+     * Class of the open interval, -1 if the trip class is not known.
+     */
+    private int openClass = -1;
+    private long openSince;
+
+    private boolean dirty;
+    private long savedAt;
+
+    TimeInStateRollups(File file) {
+        this.file = new AtomicFile(file);
+
+        Arrays.fill(hourIndices, -1);
+        Arrays.fill(dayIndices, -1);
+    }
+
+    /**
+     * Closes the open interval at {@code timestamp} and opens one of the given trip class,
+     * {@link TripDetectionService#TRIP_CLASS_NONE} stops counting.
+     */
+    synchronized void onTripClassChanged(long timestamp, int tripClass) {
+        if (openClass >= 0) {
+            add(openClass, openSince, timestamp);
+        }
+
+        openClass = indexOf(tripClass);
+        openSince = timestamp;
+        dirty = true;
+    }
+
+    /**
+     * Returns the hours or days, as chosen by {@code bucketMillis}, overlapping {@code [from, to)},
+     * at most the retained ones and the latest if more are asked for. The open interval is
+     * counted until {@code now}.
+     */
+    synchronized TimeInState query(long bucketMillis, long from, long to, long now) {
+        boolean hourly = bucketMillis == HOUR_MILLIS;
+        int[] indices = hourly ? hourIndices : dayIndices;
+        int[] millis = hourly ? hourMillis : dayMillis;
+
+        from = Math.max(0, from);
+        if (to <= from) {
+            return new TimeInState(bucketMillis, from - from % bucketMillis, 0);
+        }
+
+        long first = from / bucketMillis;
+        long last = (to - 1) / bucketMillis;
+        first = Math.max(first, last - indices.length + 1);
+
+        TimeInState result = new TimeInState(bucketMillis, first * bucketMillis, (int) (last - first + 1));
+
+        for (long bucket = first; bucket <= last; bucket++) {
+            int slot = (int) (bucket % indices.length);
+            if (indices[slot] != bucket) {
+                continue;
+            }
+
+            int i = (int) (bucket - first);
+            result.unknownMillis[i] = millis[slot * CLASSES + CLASS_UNKNOWN];
+            result.stationaryMillis[i] = millis[slot * CLASSES + CLASS_STATIONARY];
+            result.inTransitMillis[i] = millis[slot * CLASSES + CLASS_IN_TRANSIT];
+        }
+
+        if (openClass >= 0) {
+            long start = Math.max(openSince, first * bucketMillis);
+            long end = Math.min(now, (last + 1) * bucketMillis);
+            long[] open = openClass == CLASS_IN_TRANSIT
+                    ? result.inTransitMillis
+                    : openClass == CLASS_STATIONARY ? result.stationaryMillis : result.unknownMillis;
+
+            while (start < end) {
+                long bucket = start / bucketMillis;
+                long bucketEnd = Math.min(end, (bucket + 1) * bucketMillis);
+                open[(int) (bucket - first)] += bucketEnd - start;
+                start = bucketEnd;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads the saved rollups and closes their open interval at the time they were saved.
+     *
+     * @return {@code false} if there are none or they are not readable
+     */
+    synchronized boolean load() {
+        byte[] bytes;
+        try {
+            bytes = file.readFully();
+        } catch (IOException e) {
+            return false;
+        }
+
+        if (bytes.length != FILE_SIZE) {
+            return false;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return false;
+        }
+
+        int savedClass = buffer.getInt();
+        long savedSince = buffer.getLong();
+        long savedAt = buffer.getLong();
+
+        readRing(buffer, hourIndices, hourMillis);
+        readRing(buffer, dayIndices, dayMillis);
+
+        openClass = -1;
+        if (savedClass >= 0 && savedClass < CLASSES) {
+            add(savedClass, savedSince, savedAt);
+        }
+        dirty = true;
+
+        return true;
+    }
+
+    /**
+     * Returns the time at which the open interval crosses into the next hour since the last
+     * save, when saving it again bounds what a crash loses to that hour. {@link Long#MAX_VALUE}
+     * if no interval is open.
+     */
+    synchronized long getCheckpointTime() {
+        return openClass >= 0 ? (Math.max(savedAt, openSince) / HOUR_MILLIS + 1) * HOUR_MILLIS : Long.MAX_VALUE;
+    }
+
+    /**
+     * Writes the rollups if they changed since the last save or the open interval is due for a
+     * checkpoint, call it off the main thread.
+     */
+    synchronized void save(long now) throws IOException {
+        if (!dirty && now < getCheckpointTime()) {
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(FILE_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(openClass);
+        buffer.putLong(openSince);
+        buffer.putLong(now);
+        writeRing(buffer, hourIndices, hourMillis);
+        writeRing(buffer, dayIndices, dayMillis);
+
+        FileOutputStream out = file.startWrite();
+        try {
+            out.write(buffer.array(), 0, FILE_SIZE);
+        } catch (IOException e) {
+            file.failWrite(out);
+            throw e;
+        }
+        file.finishWrite(out);
+
+        dirty = false;
+        savedAt = now;
+    }
+
+    private void add(int classIndex, long from, long to) {
+        // Older time would only land in buckets which are reused already.
+        from = Math.max(Math.max(0, from), to - DAYS * DAY_MILLIS);
+
+        addToRing(hourIndices, hourMillis, HOUR_MILLIS, classIndex, from, to);
+        addToRing(dayIndices, dayMillis, DAY_MILLIS, classIndex, from, to);
+    }
+
+    private static void addToRing(int[] indices, int[] millis, long bucketMillis, int classIndex,
+                                  long from, long to) {
+        while (from < to) {
+            long bucket = from / bucketMillis;
+            long end = Math.min(to, (bucket + 1) * bucketMillis);
+
+            int slot = (int) (bucket % indices.length);
+            if (indices[slot] < bucket) {
+                indices[slot] = (int) bucket;
+                Arrays.fill(millis, slot * CLASSES, (slot + 1) * CLASSES, 0);
+            }
+            if (indices[slot] == bucket) {
+                millis[slot * CLASSES + classIndex] += (int) (end - from);
+            }
+
+            from = end;
+        }
+    }
+
+    private static void readRing(ByteBuffer buffer, int[] indices, int[] millis) {
+        for (int slot = 0; slot < indices.length; slot++) {
+            indices[slot] = buffer.getInt();
+            for (int i = 0; i < CLASSES; i++) {
+                millis[slot * CLASSES + i] = buffer.getInt();
+            }
+        }
+    }
+
+    private static void writeRing(ByteBuffer buffer, int[] indices, int[] millis) {
+        for (int slot = 0; slot < indices.length; slot++) {
+            buffer.putInt(indices[slot]);
+            for (int i = 0; i < CLASSES; i++) {
+                buffer.putInt(millis[slot * CLASSES + i]);
+            }
+        }
+    }
+
+    private static int indexOf(int tripClass) {
+        switch (tripClass) {
+            case TripClass.UNKNOWN:
+                return CLASS_UNKNOWN;
+            case TripClass.STATIONARY:
+                return CLASS_STATIONARY;
+            case TripClass.IN_TRANSIT:
+                return CLASS_IN_TRANSIT;
+            default:
+                return -1;
+        }
+    }
+
+}
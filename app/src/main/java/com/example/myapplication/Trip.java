@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+/**
+ * Trip derived from the trip class changes by {@link TripSegmenter}.
+ *
+ * @author Daniel Waslicki
+ */
+public final class Trip {
+
+    long startTime;
+    long endTime;
+    long stationaryMillis;
+    long unknownMillis;
+    int stopCount;
+    boolean ongoing;
+
+    Trip() {
+    }
+
+    /**
+     * Returns the time at which the device started to be in transit.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Returns the time at which the trip ended or, for an ongoing trip, the time of the latest
+     * trip class change.
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public long getDurationMillis() {
+        return endTime - startTime;
+    }
+
+    /**
+     * Returns the time spent in short stops which did not end the trip.
+     */
+    public long getStationaryMillis() {
+        return stationaryMillis;
+    }
+
+    /**
+     * Returns the time within the trip during which the trip class was unknown.
+     */
+    public long getUnknownMillis() {
+        return unknownMillis;
+    }
+
+    public int getStopCount() {
+        return stopCount;
+    }
+
+    public boolean isOngoing() {
+        return ongoing;
+    }
+
+    @Override
+    public String toString() {
+        return "Trip{start=" + startTime
+                + ", end=" + endTime
+                + ", stationary=" + stationaryMillis
+                + ", unknown=" + unknownMillis
+                + ", stops=" + stopCount
+                + (ongoing ? ", ongoing" : "")
+                + "}";
+    }
+
+}
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+/**
+ * Stage between the raw trip class changes and the listeners of {@link TripDetectionService}.
+ * <p>
+ * A filter may hold a change back; the service then calls {@link #poll(long)} once the
+ * {@link #getDeadline() deadline} has passed. Calls are serialized by the service.
+ *
+ * @author Daniel Waslicki
+ */
+interface TripClassFilter {
+
+    /**
+     * Trip class of a filter which has not seen one yet, the same as
+     * {@link TripDetectionService#TRIP_CLASS_NONE}.
+     */
+    int TRIP_CLASS_NONE = -1;
+
+    /**
+     * Feeds a raw trip class change.
+     *
+     * @return {@code true} if the filtered trip class changed
+     */
+    boolean offer(long timestamp, int tripClass);
+
+    /**
+     * Releases a change held back until the given time.
+     *
+     * @return {@code true} if the filtered trip class changed
+     */
+    boolean poll(long now);
+
+    /**
+     * Returns the time at which {@link #poll(long)} may release a change or
+     * {@link Long#MAX_VALUE} if no change is held back.
+     */
+    long getDeadline();
+
+    /**
+     * Returns the filtered trip class or {@link #TRIP_CLASS_NONE}.
+     */
+    int getTripClass();
+
+    /**
+     * Returns the time at which the filtered trip class was first detected.
+     */
+    long getTimestamp();
+
+    /**
+     * Forgets the trip class, the next change passes without delay.
+     */
+    void reset();
+
+}
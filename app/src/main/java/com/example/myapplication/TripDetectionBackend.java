@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.content.Context;
+
+/**
+ * Connection to a trip detection provider used by {@link TripDetectionService}.
+ * <p>
+ * {@link CellematicsBackend} talks to the Cellematics Service, {@link SimulatedTripDetectionBackend}
+ * replays recorded traces in-process. Events are reported with the primitive values of the
+ * Cellematics API: error codes of {@code ConnectionResult}, bitmasks of {@code Malfunctions} and
+ * classes of {@code TripClass}.
+ *
+ * @author Daniel Waslicki
+ */
+interface TripDetectionBackend {
+
+    interface Callbacks {
+
+        void onConnected();
+
+        void onConnectionFailed(int errorCode);
+
+        void onMalfunctionsDetected(int malfunctions);
+
+        void onTripClassChanged(long timestamp, int tripClass);
+
+    }
+
+    interface Factory {
+
+        TripDetectionBackend create(Context context, Callbacks callbacks);
+
+    }
+
+    /**
+     * Returns the current time on the clock of the timestamps reported to
+     * {@link Callbacks#onTripClassChanged(long, int)}, deadlines derived from those timestamps
+     * come due on it.
+     */
+    long now();
+
+    /**
+     * Converts a duration on the {@link #now()} clock to the delay to post a deadline check
+     * with. The check may still run before the deadline and then has to be posted again for
+     * the rest.
+     */
+    long toUptimeMillis(long millis);
+
+    void connect();
+
+    void disconnect();
+
+    /**
+     * Releases the backend, it cannot be used afterwards.
+     */
+    void teardown();
+
+    void requestTripUpdates();
+
+    void removeTripUpdates();
+
+    void wakeUpWithBroadcastOnTripStart(String action);
+
+    void cancelWakeUpWithBroadcastOnTripStart(String action);
+
+    boolean isWakeUpWithBroadcastRegistered(String action);
+
+    void wakeUpServiceOnTripStart(String packageName, String className, String action);
+
+    void cancelWakeUpServiceOnTripStart(String packageName, String className, String action);
+
+    boolean isWakeUpServiceRegistered(String packageName, String className, String action);
+
+}
@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+
+/**
+ * Serializes the {@link TripDetectionService} commands on a dedicated worker thread.
+ * <p>
+ * Commands come in pairs switching one target on and off (connection, listening and the two
+ * wake up registrations). Only the newest command of a target which has not been executed yet
+ * is kept and it moves behind the commands submitted before it, so start, stop, start of the
+ * listening executes a single start. Commands of different targets execute in the order they
+ * were submitted.
+ *
+ * @author Daniel Waslicki
+ */
+class TripDetectionCommandQueue implements Handler.Callback {
+
+    interface Executor {
+
+        /**
+         * Executes the command on the worker thread.
+         *
+         * @return {@code true} if the command succeeded
+         */
+        boolean execute(int command);
+
+        void onCommandCompleted(int command, boolean success);
+
+    }
+
+    private static final int MSG_DRAIN = 1;
+
+    private static final int TARGET_CONNECTION = 0;
+    private static final int TARGET_LISTENING = 1;
+    private static final int TARGET_WAKE_UP_WITH_BROADCAST = 2;
+    private static final int TARGET_WAKE_UP_WITH_SERVICE = 3;
+    private static final int TARGET_COUNT = 4;
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Executor executor;
+
+    /**
+     * Pending command per target, 0 if there is none.
+     */
+    private final int[] pendingCommands = new int[TARGET_COUNT];
+
+    /**
+     * Targets with a pending command in submission order, at most one entry per target.
+     */
+    private final int[] order = new int[TARGET_COUNT];
+    private int orderSize;
+
+    TripDetectionCommandQueue(Executor executor) {
+        this.executor = executor;
+        this.thread = new HandlerThread("TripDetectionCommands", Process.THREAD_PRIORITY_BACKGROUND);
+        this.thread.start();
+        this.handler = new Handler(thread.getLooper(), this);
+    }
+
+    /**
+     * Returns the handler of the worker thread.
+     */
+    Handler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Queues one of the {@code TripDetectionService.COMMAND_*} commands.
+     */
+    void submit(int command) {
+        int target = targetOf(command);
+
+        synchronized (this) {
+            if (pendingCommands[target] != 0) {
+                removeFromOrder(target);
+            }
+            pendingCommands[target] = command;
+            order[orderSize++] = target;
+
+            if (!handler.hasMessages(MSG_DRAIN)) {
+                handler.sendEmptyMessage(MSG_DRAIN);
+            }
+        }
+    }
+
+    /**
+     * Runs internal work on the worker thread behind the commands queued so far.
+     */
+    void post(Runnable runnable) {
+        handler.post(runnable);
+    }
+
+    /**
+     * Runs internal work on the worker thread ahead of the commands queued so far.
+     */
+    void postAtFront(Runnable runnable) {
+        handler.postAtFrontOfQueue(runnable);
+    }
+
+    /**
+     * Returns the number of commands waiting for execution.
+     */
+    synchronized int size() {
+        return orderSize;
+    }
+
+    /**
+     * Drops the pending commands and stops the worker thread.
+     */
+    void quit() {
+        synchronized (this) {
+            for (int i = 0; i < TARGET_COUNT; i++) {
+                pendingCommands[i] = 0;
+            }
+            orderSize = 0;
+        }
+        handler.removeCallbacksAndMessages(null);
+        thread.quit();
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        if (msg.what != MSG_DRAIN) {
+            return false;
+        }
+
+        while (true) {
+            int command;
+
+            synchronized (this) {
+                if (orderSize == 0) {
+                    return true;
+                }
+                int target = order[0];
+                removeFromOrder(target);
+                command = pendingCommands[target];
+                pendingCommands[target] = 0;
+            }
+
+            boolean success;
+            try {
+                success = executor.execute(command);
+            } catch (RuntimeException e) {
+                success = false;
+            }
+            executor.onCommandCompleted(command, success);
+        }
+    }
+
+    private void removeFromOrder(int target) {
+        for (int i = 0; i < orderSize; i++) {
+            if (order[i] == target) {
+                System.arraycopy(order, i + 1, order, i, orderSize - i - 1);
+                orderSize--;
+                return;
+            }
+        }
+    }
+
+    private static int targetOf(int command) {
+        switch (command) {
+            case TripDetectionService.COMMAND_CONNECT:
+            case TripDetectionService.COMMAND_DISCONNECT:
+                return TARGET_CONNECTION;
+            case TripDetectionService.COMMAND_START_LISTENING:
+            case TripDetectionService.COMMAND_STOP_LISTENING:
+                return TARGET_LISTENING;
+            case TripDetectionService.COMMAND_WAKE_UP_WITH_BROADCAST:
+            case TripDetectionService.COMMAND_CANCEL_WAKE_UP_WITH_BROADCAST:
+                return TARGET_WAKE_UP_WITH_BROADCAST;
+            case TripDetectionService.COMMAND_WAKE_UP_WITH_SERVICE:
+            case TripDetectionService.COMMAND_CANCEL_WAKE_UP_WITH_SERVICE:
+                return TARGET_WAKE_UP_WITH_SERVICE;
+            default:
+                throw new IllegalArgumentException("Unknown command " + command);
+        }
+    }
+
+}
@@ -12,42 +12,87 @@ import android.content.Intent;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Process;
+import android.os.RemoteCallbackList;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
+import android.util.Log;
 
-import com.cellepathy.cellematicsservice.CellematicsServiceClient;
-import com.cellepathy.cellematicsservice.common.ConnectionResult;
-import com.cellepathy.cellematicsservice.common.Malfunctions;
 import com.cellepathy.cellematicsservice.tripdetection.TripClass;
-import com.cellepathy.cellematicsservice.tripdetection.TripDetection;
-import com.cellepathy.cellematicsservice.tripdetection.TripListener;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Daniel Waslicki
  */
 public class TripDetectionService extends Service {
 
-    // TODO: insert your license key
-    private static final String LICENSE_KEY = "ApplicationsKey";
+    private static final String TAG = "TripDetectionService";
+
     private static final String WAKE_UP_ACTION = "com.example.myapplication_WAKE_UP";
+    static final String JOURNAL_FILE_NAME = "trip_events.journal";
+    private static final String STATE_FILE_NAME = "trip_detection_state";
+    private static final String ROLLUPS_FILE_NAME = "trip_time_in_state";
+    private static final long TRIP_CLASS_SAVE_DELAY_MILLIS = 1000;
 
-    private static final String[] MALFUNCTIONS = { "Turned off GPS", "Enabled mock locations", "Service version update required" };
 
     public static final String START_AND_INITIALIZE = "START_AND_INITIALIZE_ACTION";
 
-    public interface TripDetectionServiceListener {
-
-        boolean isVisible();
-
-        void onConnected();
-
-        void onConnectionFailed(ConnectionResult reason);
-
-        void onMissingPermissions(ArrayList<String> issues);
-
-        void onTripClassChanged(TripClass tripClass);
+    /**
+     * Trip class reported while no class is known.
+     */
+    public static final int TRIP_CLASS_NONE = TripClassFilter.TRIP_CLASS_NONE;
+
+    /**
+     * Action of the intent which binds {@link ITripDetectionService} for use from another
+     * process, any other intent binds {@link TripDetectionServiceBinder}.
+     */
+    public static final String REMOTE_ACTION = "com.example.myapplication.action.BIND_REMOTE";
+
+    public static final int STATE_DISCONNECTED = ConnectionState.DISCONNECTED;
+    public static final int STATE_CONNECTING = ConnectionState.CONNECTING;
+    /**
+     * Connecting after a wake up, listening starts as soon as the connection is established.
+     */
+    public static final int STATE_WOKEN = ConnectionState.WOKEN;
+    public static final int STATE_CONNECTED = ConnectionState.CONNECTED;
+    public static final int STATE_LISTENING = ConnectionState.LISTENING;
+
+    public static final int LISTENING_MODE_OFF = AdaptiveListening.MODE_OFF;
+    public static final int LISTENING_MODE_LISTENING = AdaptiveListening.MODE_LISTENING;
+    /**
+     * Trip updates were removed after a stationary period, a service wake up brings them back.
+     */
+    public static final int LISTENING_MODE_WAKE_ONLY = AdaptiveListening.MODE_WAKE_ONLY;
+
+    public static final int COMMAND_CONNECT = 1;
+    public static final int COMMAND_DISCONNECT = 2;
+    public static final int COMMAND_START_LISTENING = 3;
+    public static final int COMMAND_STOP_LISTENING = 4;
+    public static final int COMMAND_WAKE_UP_WITH_BROADCAST = 5;
+    public static final int COMMAND_CANCEL_WAKE_UP_WITH_BROADCAST = 6;
+    public static final int COMMAND_WAKE_UP_WITH_SERVICE = 7;
+    public static final int COMMAND_CANCEL_WAKE_UP_WITH_SERVICE = 8;
+
+    /**
+     * Listener of the service, its events are declared by {@link TripEventListener} so that
+     * the dispatch does not depend on the service.
+     */
+    public interface TripDetectionServiceListener extends TripEventListener {
 
     }
 
@@ -98,25 +143,25 @@ public class TripDetectionService extends Service {
 
         public void cancelWakeUpWithBroadcast() {
             if (tripDetectionService != null) {
-                tripDetectionService.cancelWakeUpWithBroadcast();
+                tripDetectionService.submit(COMMAND_CANCEL_WAKE_UP_WITH_BROADCAST);
             }
         }
 
         public void cancelWakeUpWithService() {
             if (tripDetectionService != null) {
-                tripDetectionService.cancelWakeUpWithService();
+                tripDetectionService.submit(COMMAND_CANCEL_WAKE_UP_WITH_SERVICE);
             }
         }
 
         public void connect() {
             if (tripDetectionService != null) {
-                tripDetectionService.connect();
+                tripDetectionService.submit(COMMAND_CONNECT);
             }
         }
 
         public void disconnect() {
             if (tripDetectionService != null) {
-                tripDetectionService.disconnect();
+                tripDetectionService.submit(COMMAND_DISCONNECT);
             }
         }
 
@@ -128,6 +173,210 @@ public class TripDetectionService extends Service {
             return tripDetectionService != null && tripDetectionService.isListening();
         }
 
+        /**
+         * Returns one of the {@code STATE_*} constants.
+         */
+        public int getState() {
+            return tripDetectionService != null ? tripDetectionService.connectionState.get() : STATE_DISCONNECTED;
+        }
+
+        /**
+         * Returns one of the {@code LISTENING_MODE_*} constants.
+         */
+        public int getListeningMode() {
+            return tripDetectionService != null
+                    ? tripDetectionService.adaptiveListening.getMode()
+                    : LISTENING_MODE_OFF;
+        }
+
+        /**
+         * Returns the time spent in one of the {@code LISTENING_MODE_*} modes since the service
+         * was created.
+         *
+         * @throws IllegalArgumentException if {@code mode} is not one of the listening modes
+         */
+        public long getTimeInListeningMode(int mode) {
+            if (mode < LISTENING_MODE_OFF || mode > LISTENING_MODE_WAKE_ONLY) {
+                throw new IllegalArgumentException("Unknown listening mode " + mode);
+            }
+            return tripDetectionService != null
+                    ? tripDetectionService.adaptiveListening.getTimeIn(mode, SystemClock.elapsedRealtime())
+                    : 0;
+        }
+
+        public long getStationaryTimeout() {
+            return tripDetectionService != null ? tripDetectionService.adaptiveListening.getStationaryTimeout() : 0;
+        }
+
+        /**
+         * Sets how long the trip class has to stay {@code STATIONARY} before listening drops to
+         * the service wake up, 0 keeps listening until stopped.
+         */
+        public void setStationaryTimeout(long stationaryTimeoutMillis) {
+            if (tripDetectionService != null) {
+                tripDetectionService.setStationaryTimeout(stationaryTimeoutMillis);
+            }
+        }
+
+        /**
+         * Sets the window in which the wake up triggers following the first one, from the
+         * broadcast and the service wake up alike, are suppressed; 0 lets every trigger through.
+         */
+        public void setWakeCoalescingWindow(long windowMillis) {
+            WakeCoalescer.getInstance().setWindow(windowMillis);
+        }
+
+        public long getWakeCoalescingWindow() {
+            return WakeCoalescer.getInstance().getWindow();
+        }
+
+        /**
+         * Returns the number of wake up triggers suppressed as duplicates in this process.
+         */
+        public int getSuppressedWakeUpCount() {
+            return WakeCoalescer.getInstance().getSuppressedCount();
+        }
+
+        /**
+         * Returns the number of automatic reconnection attempts made so far.
+         */
+        public int getReconnectAttemptCount() {
+            return tripDetectionService != null ? tripDetectionService.getReconnectAttemptCount() : 0;
+        }
+
+        /**
+         * Returns the number of automatic reconnection attempts made early because the network
+         * connection returned.
+         */
+        public int getConnectivityReconnectCount() {
+            return tripDetectionService != null ? tripDetectionService.reconnectScheduler.getConnectivityRetryCount() : 0;
+        }
+
+        /**
+         * Returns the trip the device is on or {@code null}.
+         */
+        @Nullable
+        public Trip getCurrentTrip() {
+            return tripDetectionService != null ? tripDetectionService.getCurrentTrip() : null;
+        }
+
+        /**
+         * Returns up to {@code max} finished trips, the most recent first.
+         */
+        public List<Trip> getRecentTrips(int max) {
+            return tripDetectionService != null
+                    ? tripDetectionService.getRecentTrips(max)
+                    : Collections.<Trip>emptyList();
+        }
+
+        /**
+         * Returns the time of the oldest stored event, {@link Long#MAX_VALUE} if there is none.
+         */
+        public long getOldestEventTime() {
+            return tripDetectionService != null ? tripDetectionService.getOldestEventTime() : Long.MAX_VALUE;
+        }
+
+        /**
+         * Returns up to {@code maxEvents}, at most {@link TripEventPage#MAX_SIZE}, stored events
+         * with times in {@code [from, to)}. The range is found through the time index of the
+         * journal so the cost depends on the size of the page only.
+         */
+        public TripEventPage getEvents(long from, long to, int maxEvents) {
+            return tripDetectionService != null
+                    ? tripDetectionService.getEvents(from, to, maxEvents)
+                    : TripEventPage.EMPTY;
+        }
+
+        /**
+         * Writes the stored events with times in {@code [from, to)} to {@code out} in the
+         * {@link TripEventExporter} format, optionally deflated, and returns their number. The
+         * events are streamed from the journal, the stream is not closed. Reads the journal on
+         * the calling thread, which must not be the main one.
+         */
+        public int exportEvents(long from, long to, OutputStream out, boolean deflate) throws IOException {
+            if (tripDetectionService == null) {
+                throw new IOException("Service is destroyed");
+            }
+            return tripDetectionService.exportEvents(from, to, out, deflate);
+        }
+
+        /**
+         * Returns the time spent in each trip class per UTC hour overlapping {@code [from, to)},
+         * at most the last {@link TimeInStateRollups#HOURS} hours. Reads the rollups only, the
+         * cost depends on the number of hours.
+         */
+        public TimeInState getHourlyTimeInState(long from, long to) {
+            return getTimeInState(TimeInStateRollups.HOUR_MILLIS, from, to);
+        }
+
+        /**
+         * Returns the time spent in each trip class per UTC day overlapping {@code [from, to)},
+         * at most the last {@link TimeInStateRollups#DAYS} days.
+         */
+        public TimeInState getDailyTimeInState(long from, long to) {
+            return getTimeInState(TimeInStateRollups.DAY_MILLIS, from, to);
+        }
+
+        private TimeInState getTimeInState(long bucketMillis, long from, long to) {
+            return tripDetectionService != null
+                    ? tripDetectionService.rollups.query(bucketMillis, from, to,
+                            tripDetectionService.backend.now())
+                    : new TimeInState(bucketMillis, from, 0);
+        }
+
+        /**
+         * Returns the bitmask of the {@code Malfunctions} detected at the moment.
+         */
+        public int getMalfunctions() {
+            return tripDetectionService != null ? tripDetectionService.healthMonitor.getMalfunctions() : 0;
+        }
+
+        /**
+         * Returns the history of every known malfunction.
+         */
+        public List<MalfunctionStatus> getMalfunctionStatuses() {
+            return tripDetectionService != null
+                    ? tripDetectionService.healthMonitor.getStatuses(System.currentTimeMillis())
+                    : Collections.<MalfunctionStatus>emptyList();
+        }
+
+        /**
+         * Sets how trips are derived from the trip classes.
+         *
+         * @param minStopMillis    shortest stationary pause which ends a trip
+         * @param maxUnknownMillis shortest pause of unknown class which ends a trip
+         * @param minTripMillis    shortest trip which is kept
+         */
+        public void setTripMergeRules(long minStopMillis, long maxUnknownMillis, long minTripMillis) {
+            if (tripDetectionService != null) {
+                tripDetectionService.tripSegmenter.setMergeRules(minStopMillis, maxUnknownMillis, minTripMillis);
+            }
+        }
+
+        /**
+         * Turns the recording of the hot path metrics on or off.
+         */
+        public void setMetricsEnabled(boolean enabled) {
+            if (tripDetectionService != null) {
+                tripDetectionService.metrics.setEnabled(enabled);
+            }
+        }
+
+        /**
+         * Returns the metrics in the format of {@code dumpsys activity service}.
+         */
+        public String getMetricsReport() {
+            if (tripDetectionService == null) {
+                return "";
+            }
+
+            StringWriter report = new StringWriter();
+            PrintWriter writer = new PrintWriter(report);
+            tripDetectionService.dumpMetrics(writer);
+            writer.flush();
+            return report.toString();
+        }
+
         public boolean isWakeUpWithServiceRegistered() {
             return tripDetectionService != null && tripDetectionService.isWakeUpWithServiceRegistered();
         }
@@ -136,6 +385,56 @@ public class TripDetectionService extends Service {
             return tripDetectionService != null && tripDetectionService.isWakeUpWithBroadcastRegistered();
         }
 
+        /**
+         * Registers an additional listener called on the main thread.
+         */
+        public void addListener(TripDetectionServiceListener listener) {
+            addListener(listener, Looper.getMainLooper());
+        }
+
+        /**
+         * Registers an additional listener called on the given looper's thread.
+         */
+        public void addListener(TripDetectionServiceListener listener, Looper looper) {
+            addListener(listener, looper, false);
+        }
+
+        /**
+         * Registers an additional listener called on the given looper's thread.
+         *
+         * @param rawTripClasses whether the listener gets every trip class change as detected
+         *                       instead of the changes passed by the trip class filter
+         */
+        public void addListener(TripDetectionServiceListener listener, Looper looper, boolean rawTripClasses) {
+            if (tripDetectionService != null) {
+                tripDetectionService.addListener(listener, looper, rawTripClasses, true);
+            }
+        }
+
+        /**
+         * Sets how trip class flaps are suppressed before the changes reach the listeners.
+         *
+         * @param stationaryDwellMillis time for which a stationary class must last
+         * @param inTransitDwellMillis  time for which an in transit class must last
+         * @param unknownHoldMillis     time for which an unknown class must last before it
+         *                              replaces a known class
+         */
+        public void setTripClassFilter(long stationaryDwellMillis, long inTransitDwellMillis, long unknownHoldMillis) {
+            if (tripDetectionService != null) {
+                tripDetectionService.setTripClassFilter(new HysteresisTripClassFilter(
+                        stationaryDwellMillis, inTransitDwellMillis, unknownHoldMillis));
+            }
+        }
+
+        public void removeListener(TripDetectionServiceListener listener) {
+            if (tripDetectionService != null) {
+                tripDetectionService.removeListener(listener);
+            }
+        }
+
+        /**
+         * Replaces the listener previously set with this method, {@code null} only removes it.
+         */
         public void setListener(TripDetectionServiceListener listener) {
             if (tripDetectionService != null) {
                 tripDetectionService.setListener(listener);
@@ -144,13 +443,13 @@ public class TripDetectionService extends Service {
 
         public void startListening() {
             if (tripDetectionService != null) {
-                tripDetectionService.startListening();
+                tripDetectionService.submit(COMMAND_START_LISTENING);
             }
         }
 
         public void stopListening() {
             if (tripDetectionService != null) {
-                tripDetectionService.stopListening();
+                tripDetectionService.submit(COMMAND_STOP_LISTENING);
             }
         }
 
@@ -158,195 +457,721 @@ public class TripDetectionService extends Service {
 
         public void wakeUpOnInTransitEvent() {
             if (tripDetectionService != null) {
-                tripDetectionService.wakeUpOnInTransitEvent();
+                tripDetectionService.submit(COMMAND_WAKE_UP_WITH_BROADCAST);
             }
         }
 
         public void wakeUpServiceOnInTransitEvent() {
             if (tripDetectionService != null) {
-                tripDetectionService.wakeUpServiceOnInTransitEvent();
+                tripDetectionService.submit(COMMAND_WAKE_UP_WITH_SERVICE);
             }
         }
 
     }
 
-    private final CellematicsServiceClient.CellematicsServiceListener cellematicsServiceListener = new CellematicsServiceClient.CellematicsServiceListener() {
+    private static volatile TripDetectionBackend.Factory backendFactory = CellematicsBackend.FACTORY;
+
+    private final TripDetectionBackend.Callbacks backendCallbacks = new TripDetectionBackend.Callbacks() {
+
+        @Override
+        public void onConnected() {
+            // The registrations are queried across processes, keep that off the caller's thread.
+            // A wake up is about a trip which has just started, so it skips the queued commands.
+            Runnable handleConnected = new Runnable() {
+                @Override
+                public void run() {
+                    handleConnected();
+                }
+            };
+            if (connectionState.get() == ConnectionState.WOKEN) {
+                commandQueue.postAtFront(handleConnected);
+            } else {
+                commandQueue.post(handleConnected);
+            }
+        }
 
         @Override
-        public void detectedMalfunctions(Malfunctions malfunctions) {
-            ArrayList<String> issues = new ArrayList<>();
+        public void onConnectionFailed(final int errorCode) {
+            commandQueue.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleConnectionFailed(errorCode);
+                }
+            });
+        }
 
-            if ((malfunctions.getMalfunctions() & Malfunctions.GPS_TURNED_OFF) != 0) {
-                issues.add(MALFUNCTIONS[0]);
+        @Override
+        public void onMalfunctionsDetected(int malfunctions) {
+            long now = System.currentTimeMillis();
+            if (!healthMonitor.update(malfunctions, now)) {
+                return;
             }
-            if ((malfunctions.getMalfunctions() & Malfunctions.ENABLED_MOCK_LOCATIONS) != 0) {
-                issues.add(MALFUNCTIONS[1]);
+
+            TripEventJournal journal = TripDetectionService.this.journal;
+            if (journal != null) {
+                journal.append(now, TripEventJournal.TYPE_MALFUNCTIONS, malfunctions);
+                onEventAppended();
             }
-            if ((malfunctions.getMalfunctions() & Malfunctions.SERVICE_VERSION_UPDATE_REQUIRED) != 0) {
-                issues.add(MALFUNCTIONS[2]);
+
+            announceMalfunctions(now);
+        }
+
+        @Override
+        public void onTripClassChanged(long timestamp, int tripClass) {
+            TripEventJournal journal = TripDetectionService.this.journal;
+            if (journal != null) {
+                journal.append(timestamp, TripEventJournal.TYPE_TRIP_CLASS, tripClass);
+                onEventAppended();
             }
 
-            notifyListenersOfMissingPermissions(issues);
+            metrics.onRawTripClass();
+            tripSegmenter.onTripClassChanged(timestamp, tripClass);
+
+            rawTripClassTimestamp = timestamp;
+            rawTripClass = tripClass;
+            listeners.dispatchTripClassChanged(tripClass, timestamp, true);
+
+            filterTripClass(timestamp, tripClass);
+            saveTripClassLater();
         }
 
     };
 
-    private final CellematicsServiceClient.ConnectionCallbacks connectionCallbacks = new CellematicsServiceClient.ConnectionCallbacks() {
+    private TripDetectionServiceBinder binder;
+
+    private volatile int tripClass = TRIP_CLASS_NONE;
+    private volatile long tripClassTimestamp;
+    private volatile int rawTripClass = TRIP_CLASS_NONE;
+    private volatile long rawTripClassTimestamp;
 
+    private final HealthMonitor healthMonitor = new HealthMonitor();
+    private long healthDeadline = Long.MAX_VALUE;
+
+    private final Runnable healthDeadlineCheck = new Runnable() {
         @Override
-        public void onConnected() {
-            isConnected = true;
-            notifyListenersOfConnectionEstablished();
+        public void run() {
+            announceMalfunctions(System.currentTimeMillis());
+        }
+    };
 
-            if (wasWokenUp) {
-                startListening();
-                wakeUpServiceOnInTransitEvent();
-                wasWokenUp = false;
-            }
+    private TripClassFilter tripClassFilter = new HysteresisTripClassFilter();
+    private long filterDeadline = Long.MAX_VALUE;
+    private final Object filterLock = new Object();
+
+    private final Runnable filterDeadlineCheck = new Runnable() {
+        @Override
+        public void run() {
+            filterTripClass(backend.now(), TRIP_CLASS_NONE);
         }
+    };
+    private final ConnectionState connectionState = new ConnectionState();
+
+    // The state a scheduled reconnect connects into, only used on the worker thread.
+    private int reconnectState = ConnectionState.CONNECTING;
 
+    private volatile boolean wakeUpWithBroadcastRegistered;
+    private volatile boolean wakeUpWithServiceRegistered;
+
+    private final AdaptiveListening adaptiveListening = new AdaptiveListening();
+
+    // Listening was dropped to the service wake up after a stationary period.
+    private volatile boolean wakeOnly;
+    // The service wake up was registered by the adaptive mode, not asked for.
+    private volatile boolean adaptiveWakeUp;
+    private volatile long stationaryDeadline = Long.MAX_VALUE;
+
+    private final Runnable stationaryDeadlineCheck = new Runnable() {
         @Override
-        public void onConnectionFailed(ConnectionResult connectionResult) {
-            isConnected = false;
-            isListening = false;
-            tripClass = null;
-
-            if ((listener != null && !listener.isVisible())
-                    && (connectionResult.getErrorCode() == ConnectionResult.SERVICE_STOPPED
-                    || connectionResult.getErrorCode() == ConnectionResult.INITIALIZATION_ERROR
-                    || connectionResult.getErrorCode() == ConnectionResult.NO_NETWORK_CONNECTION
-                    || connectionResult.getErrorCode() == ConnectionResult.NETWORK_ERROR)) {
-                connect();
-            } else {
-                notifyListenersOfSetupFailure(connectionResult);
-            }
+        public void run() {
+            enterWakeOnly();
+        }
+    };
+
+    private final ServiceMetrics metrics = new ServiceMetrics();
+
+    private final TripListenerRegistry listeners = new TripListenerRegistry(metrics);
+    private final AtomicReference<TripDetectionServiceListener> primaryListener = new AtomicReference<>();
+
+    private TripDetectionBackend backend;
+
+    private volatile TripEventJournal journal;
 
+    private volatile TripEventUploader uploader;
+
+    private ServiceStateStore stateStore;
+    private TimeInStateRollups rollups;
+    private final AtomicBoolean stateSavePending = new AtomicBoolean();
+
+    private final Runnable saveState = new Runnable() {
+        @Override
+        public void run() {
+            saveState();
         }
+    };
 
+    private final Runnable rollupsCheckpoint = new Runnable() {
+        @Override
+        public void run() {
+            saveState();
+        }
     };
 
-    private TripDetectionServiceBinder binder;
+    // A trip class restored while connected waits for the reconnection to be counted again,
+    // only used on the worker thread.
+    private boolean restoredTripClassPending;
 
-    private TripClass tripClass;
-    private boolean isConnected;
-    private boolean isListening;
-    private boolean wasWokenUp;
+    private final TripSegmenter tripSegmenter = new TripSegmenter();
 
-    private TripDetectionServiceListener listener;
-    private final Object listenerLock = new Object();
+    private ReconnectScheduler reconnectScheduler;
 
-    private CellematicsServiceClient cellematicsService;
+    private final Map<IBinder, RemoteTripEventBatcher> remoteBatchers = new HashMap<>();
+    private HandlerThread remoteBatchThread;
 
-    private TripListener tripListener;
+    private final RemoteCallbackList<ITripEventCallback> remoteCallbacks = new RemoteCallbackList<ITripEventCallback>() {
+        @Override
+        public void onCallbackDied(ITripEventCallback callback, Object cookie) {
+            removeRemoteBatcher(callback.asBinder());
+        }
+    };
+
+    private final ITripDetectionService.Stub remoteBinder = new ITripDetectionService.Stub() {
+
+        @Override
+        public boolean isConnected() {
+            return TripDetectionService.this.isConnected();
+        }
+
+        @Override
+        public boolean isListening() {
+            return TripDetectionService.this.isListening();
+        }
+
+        @Override
+        public void connect() {
+            submit(COMMAND_CONNECT);
+        }
+
+        @Override
+        public void disconnect() {
+            submit(COMMAND_DISCONNECT);
+        }
+
+        @Override
+        public void startListening() {
+            submit(COMMAND_START_LISTENING);
+        }
+
+        @Override
+        public void stopListening() {
+            submit(COMMAND_STOP_LISTENING);
+        }
+
+        @Override
+        public void registerCallback(ITripEventCallback callback, int maxBatchSize, long maxDelayMillis,
+                                     boolean rawTripClasses) {
+            addRemoteCallback(callback, maxBatchSize, maxDelayMillis, rawTripClasses);
+        }
+
+        @Override
+        public void unregisterCallback(ITripEventCallback callback) {
+            remoteCallbacks.unregister(callback);
+            removeRemoteBatcher(callback.asBinder());
+        }
+
+    };
+
+    private TripDetectionCommandQueue commandQueue;
+
+    private final TripDetectionCommandQueue.Executor commandExecutor = new TripDetectionCommandQueue.Executor() {
+
+        @Override
+        public boolean execute(int command) {
+            switch (command) {
+                case COMMAND_CONNECT:
+                    if (!connectionState.isConnected()) {
+                        connect();
+                    }
+                    return true;
+                case COMMAND_DISCONNECT:
+                    disconnect();
+                    return true;
+                case COMMAND_START_LISTENING:
+                    if (!connectionState.isConnected()) {
+                        return false;
+                    }
+                    startListening();
+                    return true;
+                case COMMAND_STOP_LISTENING:
+                    stopListening();
+                    return true;
+                case COMMAND_WAKE_UP_WITH_BROADCAST:
+                    if (!connectionState.isConnected()) {
+                        return false;
+                    }
+                    wakeUpOnInTransitEvent();
+                    return true;
+                case COMMAND_CANCEL_WAKE_UP_WITH_BROADCAST:
+                    if (!connectionState.isConnected()) {
+                        return false;
+                    }
+                    cancelWakeUpWithBroadcast();
+                    return true;
+                case COMMAND_WAKE_UP_WITH_SERVICE:
+                    if (!connectionState.isConnected()) {
+                        return false;
+                    }
+                    // Asked for explicitly, it stays when listening resumes.
+                    adaptiveWakeUp = false;
+                    wakeUpServiceOnInTransitEvent();
+                    return true;
+                case COMMAND_CANCEL_WAKE_UP_WITH_SERVICE:
+                    if (!connectionState.isConnected()) {
+                        return false;
+                    }
+                    adaptiveWakeUp = false;
+                    cancelWakeUpWithService();
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public void onCommandCompleted(int command, boolean success) {
+            if (success) {
+                saveStateLater();
+            }
+            listeners.dispatchCommandCompleted(command, success);
+        }
+
+    };
     
     public TripDetectionService() {
     }
 
+    /**
+     * Replaces the backend of the services created afterwards, for example with a
+     * {@link SimulatedTripDetectionBackend}; {@code null} restores the Cellematics Service.
+     */
+    static void setBackendFactory(TripDetectionBackend.Factory factory) {
+        backendFactory = factory != null ? factory : CellematicsBackend.FACTORY;
+    }
+
     private void cancelWakeUpWithBroadcast() {
-        TripDetection.TripDetectionApi
-                .cancelWakeUpWithBroadcastOnTripStart(
-                        cellematicsService,
-                        WAKE_UP_ACTION);
+        backend.cancelWakeUpWithBroadcastOnTripStart(WAKE_UP_ACTION);
+        wakeUpWithBroadcastRegistered = false;
     }
 
     private void cancelWakeUpWithService() {
-        TripDetection.TripDetectionApi
-                .cancelWakeUpServiceOnTripStart(
-                        cellematicsService,
-                        getPackageName(),
-                        TripDetectionService.class.getName(),
-                        START_AND_INITIALIZE);
+        backend.cancelWakeUpServiceOnTripStart(
+                getPackageName(),
+                TripDetectionService.class.getName(),
+                START_AND_INITIALIZE);
+        wakeUpWithServiceRegistered = false;
+    }
+
+    private void handleConnected() {
+        if (connectionState.compareAndSet(ConnectionState.WOKEN, ConnectionState.LISTENING)) {
+            handleConnectedAfterWakeUp();
+            return;
+        }
+
+        if (!connectionState.compareAndSet(ConnectionState.CONNECTING, ConnectionState.CONNECTED)) {
+            // Disconnected meanwhile.
+            return;
+        }
+
+        refreshWakeUpRegistrations();
+        accountListeningMode();
+        resumeRestoredTripClass();
+        metrics.onConnected();
+        reconnectScheduler.reset();
+        notifyListenersOfConnectionEstablished();
+
+        saveStateLater();
+    }
+
+    /**
+     * Requests the trip updates and renews the service wake up back to back before anything
+     * else, the broadcast registration is queried once they are on their way.
+     */
+    private void handleConnectedAfterWakeUp() {
+        requestTripUpdates();
+        boolean renewWakeUp = wakeUpWithServiceRegistered && !adaptiveWakeUp;
+        resumeFromWakeOnly();
+        if (renewWakeUp) {
+            wakeUpServiceOnInTransitEvent();
+        }
+        accountListeningMode();
+        resumeRestoredTripClass();
+
+        metrics.onConnected();
+        reconnectScheduler.reset();
+        notifyListenersOfConnectionEstablished();
+
+        commandQueue.post(new Runnable() {
+            @Override
+            public void run() {
+                if (connectionState.isConnected()) {
+                    wakeUpWithBroadcastRegistered = backend.isWakeUpWithBroadcastRegistered(WAKE_UP_ACTION);
+                    saveStateLater();
+                }
+            }
+        });
+
+        saveStateLater();
+    }
+
+    private void handleConnectionFailed(int errorCode) {
+        int previousState = connectionState.get();
+        if (!connectionState.moveTo(ConnectionState.DISCONNECTED)) {
+            // Disconnected meanwhile.
+            return;
+        }
+        accountListeningMode();
+
+        // A reconnect picks up listening where the failure interrupted it.
+        reconnectState = previousState == ConnectionState.WOKEN || previousState == ConnectionState.LISTENING
+                ? ConnectionState.WOKEN
+                : ConnectionState.CONNECTING;
+
+        resetTripClass();
+        resetMalfunctions();
+        invalidateWakeUpRegistrations();
+
+        // Retry in the background only, a visible UI lets the user decide.
+        boolean reconnecting = !listeners.isEmpty()
+                && !listeners.isAnyVisible()
+                && reconnectScheduler.schedule(errorCode);
+
+        metrics.onConnectionFailed(errorCode, reconnecting);
+
+        if (!reconnecting) {
+            notifyListenersOfSetupFailure(errorCode);
+        }
+
+        saveStateLater();
     }
 
     private void connect() {
-        cellematicsService.connect();
+        reconnectScheduler.cancel();
+        connectionState.compareAndSet(ConnectionState.DISCONNECTED, ConnectionState.CONNECTING);
+        metrics.onConnectStarted();
+        backend.connect();
     }
 
     private void disconnect() {
-        isConnected = false;
-        isListening = false;
-        tripClass = null;
+        reconnectScheduler.reset();
 
-        cellematicsService.disconnect();
+        if (adaptiveWakeUp && connectionState.isConnected()) {
+            resumeFromWakeOnly();
+        }
+        wakeOnly = false;
+
+        connectionState.moveTo(ConnectionState.DISCONNECTED);
+        accountListeningMode();
+        resetTripClass();
+        resetMalfunctions();
+        invalidateWakeUpRegistrations();
+
+        backend.disconnect();
     }
 
     private boolean isConnected() {
-        return isConnected;
+        return connectionState.isConnected();
+    }
+
+    private int getReconnectAttemptCount() {
+        return reconnectScheduler.getTotalAttemptCount();
+    }
+
+    private Trip getCurrentTrip() {
+        tripSegmenter.advance(backend.now());
+        return tripSegmenter.getCurrentTrip();
+    }
+
+    private long getOldestEventTime() {
+        TripEventJournal journal = this.journal;
+        return journal != null ? journal.getOldestTimestamp() : Long.MAX_VALUE;
+    }
+
+    private TripEventPage getEvents(long from, long to, int maxEvents) {
+        TripEventJournal journal = this.journal;
+        if (journal == null || maxEvents <= 0) {
+            return TripEventPage.EMPTY;
+        }
+
+        TripEventPage page = new TripEventPage(Math.min(maxEvents, TripEventPage.MAX_SIZE));
+        page.size = journal.query(from, to, page.timestamps, page.types, page.values);
+        return page;
+    }
+
+    private int exportEvents(long from, long to, OutputStream out, boolean deflate) throws IOException {
+        TripEventExporter exporter = new TripEventExporter(out, deflate);
+        int count = 0;
+
+        try {
+            TripEventJournal journal = this.journal;
+            if (journal != null) {
+                TripEventJournal.Entry entry = new TripEventJournal.Entry();
+
+                // Events appended meanwhile are left for the next export.
+                long end = journal.getNextSequence();
+                for (long sequence = journal.findSequence(from); sequence < end; sequence++) {
+                    if (!journal.read(sequence, entry) || entry.timestamp < from) {
+                        continue;
+                    }
+                    if (entry.timestamp >= to) {
+                        break;
+                    }
+                    exporter.write(entry.timestamp, entry.type, entry.value);
+                    count++;
+                }
+            }
+
+            exporter.finish();
+        } finally {
+            exporter.release();
+        }
+
+        return count;
+    }
+
+    private List<Trip> getRecentTrips(int max) {
+        tripSegmenter.advance(backend.now());
+        return tripSegmenter.getRecentTrips(max);
     }
 
     private boolean isListening() {
-        return isListening;
+        return connectionState.isListening();
     }
 
     private boolean isWakeUpWithBroadcastRegistered() {
-        return TripDetection.TripDetectionApi
-                .isWakeUpWithBroadcastRegistered(cellematicsService, WAKE_UP_ACTION);
+        return wakeUpWithBroadcastRegistered;
     }
 
     private boolean isWakeUpWithServiceRegistered() {
-        return TripDetection.TripDetectionApi
-                .isWakeUpServiceRegistered(
-                        cellematicsService,
-                        getPackageName(),
-                        TripDetectionService.class.getName(),
-                        START_AND_INITIALIZE);
+        return wakeUpWithServiceRegistered;
+    }
+
+    /**
+     * Queries the wake up registrations once per connection, afterwards the cache is kept up
+     * to date by the wake up methods of this service.
+     */
+    private void refreshWakeUpRegistrations() {
+        wakeUpWithBroadcastRegistered = backend.isWakeUpWithBroadcastRegistered(WAKE_UP_ACTION);
+        wakeUpWithServiceRegistered = backend.isWakeUpServiceRegistered(
+                getPackageName(),
+                TripDetectionService.class.getName(),
+                START_AND_INITIALIZE);
+    }
+
+    private void invalidateWakeUpRegistrations() {
+        wakeUpWithBroadcastRegistered = false;
+        wakeUpWithServiceRegistered = false;
     }
 
     private void notifyListenersOfConnectionEstablished() {
-        new Handler(Looper.getMainLooper()).post(new Runnable() {
-            @Override
-            public void run() {
-                synchronized (listenerLock) {
-                    if (listener != null) {
-                        listener.onConnected();
-                    }
-                }
-            }
-        });
+        listeners.dispatchConnected();
     }
 
-    private void notifyListenersOfMissingPermissions(final ArrayList<String> issues) {
-        new Handler(Looper.getMainLooper()).post(new Runnable() {
-            @Override
-            public void run() {
-                synchronized (listenerLock) {
-                    if (listener != null) {
-                        listener.onMissingPermissions(issues);
-                    }
+    /**
+     * Notifies the listeners of the malfunctions if the rate limit lets them through, otherwise
+     * checks again once it does. The announcement is queued under the lock of the monitor, so
+     * concurrent announcements reach the listeners in the order they were polled.
+     */
+    private void announceMalfunctions(long now) {
+        synchronized (healthMonitor) {
+            int malfunctions = healthMonitor.poll(now);
+            if (malfunctions != HealthMonitor.NOTHING_TO_ANNOUNCE) {
+                listeners.dispatchMalfunctionsChanged(malfunctions);
+            }
+
+            long deadline = healthMonitor.getDeadline();
+            if (deadline != healthDeadline) {
+                healthDeadline = deadline;
+
+                Handler handler = commandQueue.getHandler();
+                handler.removeCallbacks(healthDeadlineCheck);
+                if (deadline != Long.MAX_VALUE) {
+                    handler.postDelayed(healthDeadlineCheck, Math.max(0, deadline - now));
                 }
             }
-        });
+        }
     }
 
-    private void notifyListenersOfSetupFailure(final ConnectionResult reason) {
-        new Handler(Looper.getMainLooper()).post(new Runnable() {
-            @Override
-            public void run() {
-                synchronized (listenerLock) {
-                    if (listener != null) {
-                        listener.onConnectionFailed(reason);
-                    }
-                }
+    /**
+     * Forgets the malfunctions of the lost connection and tells the listeners, so that they
+     * are neither shown nor replayed to new listeners until the next connection reports its own.
+     */
+    private void resetMalfunctions() {
+        long now = System.currentTimeMillis();
+        synchronized (healthMonitor) {
+            healthMonitor.reset(now);
+            announceMalfunctions(now);
+        }
+    }
+
+    private void notifyListenersOfSetupFailure(int errorCode) {
+        listeners.dispatchConnectionFailed(errorCode);
+    }
+
+    private void notifyListenersOfTripClassChanged(int tripClass, long timestamp) {
+        listeners.dispatchTripClassChanged(tripClass, timestamp, false);
+    }
+
+    /**
+     * Runs a raw trip class change, or only the deadline check for {@link #TRIP_CLASS_NONE},
+     * through the trip class filter and notifies the listeners of what passes. Called from the
+     * backend thread and the worker, the change is published under the filter lock so that a
+     * class released by the deadline check cannot overtake a newer one.
+     */
+    private void filterTripClass(long timestamp, int rawTripClass) {
+        synchronized (filterLock) {
+            boolean changed = rawTripClass == TRIP_CLASS_NONE
+                    ? tripClassFilter.poll(timestamp)
+                    : tripClassFilter.offer(timestamp, rawTripClass);
+
+            long deadline = tripClassFilter.getDeadline();
+            // A deadline check which ran ahead of the backend clock is posted again.
+            if (deadline != filterDeadline || rawTripClass == TRIP_CLASS_NONE) {
+                filterDeadline = deadline;
+                postDeadlineCheck(filterDeadlineCheck, deadline);
             }
-        });
+
+            if (changed) {
+                int tripClass = tripClassFilter.getTripClass();
+                long tripClassTimestamp = tripClassFilter.getTimestamp();
+
+                saveTripClassLater();
+                metrics.onFilteredTripClass();
+                this.tripClassTimestamp = tripClassTimestamp;
+                this.tripClass = tripClass;
+                notifyListenersOfTripClassChanged(tripClass, tripClassTimestamp);
+                rollups.onTripClassChanged(tripClassTimestamp, tripClass);
+
+                scheduleStationaryDeadline(adaptiveListening.getDeadline(tripClass, tripClassTimestamp));
+            } else if (timestamp >= stationaryDeadline) {
+                // The handler does not run in deep sleep, a late event catches up with the deadline.
+                scheduleStationaryDeadline(stationaryDeadline);
+            }
+        }
     }
 
-    private void notifyListenersOfTripClassChanged(final TripClass tripClass) {
-        new Handler(Looper.getMainLooper()).post(new Runnable() {
-            @Override
-            public void run() {
-                synchronized (listenerLock) {
-                    if (listener != null) {
-                        listener.onTripClassChanged(tripClass);
-                    }
-                }
+    private void scheduleStationaryDeadline(long deadline) {
+        stationaryDeadline = deadline;
+        postDeadlineCheck(stationaryDeadlineCheck, deadline);
+    }
+
+    /**
+     * Replaces the pending {@code check} with one for a deadline on the backend clock, the
+     * handler runs on uptime.
+     */
+    private void postDeadlineCheck(Runnable check, long deadline) {
+        Handler handler = commandQueue.getHandler();
+        handler.removeCallbacks(check);
+        if (deadline != Long.MAX_VALUE) {
+            handler.postDelayed(check, backend.toUptimeMillis(Math.max(0, deadline - backend.now())));
+        }
+    }
+
+    private void setStationaryTimeout(long stationaryTimeoutMillis) {
+        adaptiveListening.setStationaryTimeout(stationaryTimeoutMillis);
+        scheduleStationaryDeadline(adaptiveListening.getDeadline(tripClass, tripClassTimestamp));
+        saveStateLater();
+    }
+
+    /**
+     * Removes the trip updates once the device has been stationary for the timeout and leaves
+     * only the service wake up registered, runs on the worker thread.
+     */
+    private void enterWakeOnly() {
+        long deadline = stationaryDeadline;
+        if (deadline == Long.MAX_VALUE) {
+            return;
+        }
+        long now = backend.now();
+        if (now < deadline) {
+            // Moved by a trip class change meanwhile, or the handler ran ahead of the backend
+            // clock. A check pending for a moved deadline finds nothing to do.
+            commandQueue.getHandler().postDelayed(stationaryDeadlineCheck, backend.toUptimeMillis(deadline - now));
+            return;
+        }
+        stationaryDeadline = Long.MAX_VALUE;
+
+        if (tripClass != TripClass.STATIONARY
+                || !connectionState.compareAndSet(ConnectionState.LISTENING, ConnectionState.CONNECTED)) {
+            return;
+        }
+
+        backend.removeTripUpdates();
+        if (!wakeUpWithServiceRegistered) {
+            wakeUpServiceOnInTransitEvent();
+            adaptiveWakeUp = true;
+        }
+        wakeOnly = true;
+        accountListeningMode();
+
+        Log.i(TAG, "Stationary for " + adaptiveListening.getStationaryTimeout() + " ms, waiting for a trip start");
+
+        saveStateLater();
+        listeners.dispatchCommandCompleted(COMMAND_STOP_LISTENING, true);
+    }
+
+    /**
+     * Leaves the wake only mode, the service wake up is cancelled unless it was asked for.
+     */
+    private void resumeFromWakeOnly() {
+        wakeOnly = false;
+        if (adaptiveWakeUp) {
+            adaptiveWakeUp = false;
+            cancelWakeUpWithService();
+        }
+    }
+
+    private void accountListeningMode() {
+        int mode = connectionState.isListening() || connectionState.get() == ConnectionState.WOKEN
+                ? AdaptiveListening.MODE_LISTENING
+                : wakeOnly ? AdaptiveListening.MODE_WAKE_ONLY : AdaptiveListening.MODE_OFF;
+        adaptiveListening.enter(mode, SystemClock.elapsedRealtime());
+    }
+
+    private void setTripClassFilter(TripClassFilter filter) {
+        synchronized (filterLock) {
+            // Starts from the class already shown, so that its next report is not a change.
+            if (tripClass != TRIP_CLASS_NONE) {
+                filter.offer(tripClassTimestamp, tripClass);
             }
-        });
+            tripClassFilter = filter;
+            filterDeadline = Long.MAX_VALUE;
+        }
+        commandQueue.getHandler().removeCallbacks(filterDeadlineCheck);
+    }
+
+    private void resetTripClass() {
+        // The time until the next trip class is unknown, it pauses the current trip like an
+        // UNKNOWN class would and ends it if the service does not come back in time.
+        long now = backend.now();
+        synchronized (filterLock) {
+            tripClassFilter.reset();
+            filterDeadline = Long.MAX_VALUE;
+            scheduleStationaryDeadline(Long.MAX_VALUE);
+            rollups.onTripClassChanged(now, TRIP_CLASS_NONE);
+            tripClass = TRIP_CLASS_NONE;
+        }
+        commandQueue.getHandler().removeCallbacks(filterDeadlineCheck);
+        restoredTripClassPending = false;
+        tripSegmenter.onTripClassChanged(now, TRIP_CLASS_NONE);
+
+        rawTripClass = TRIP_CLASS_NONE;
     }
 
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
+        if (REMOTE_ACTION.equals(intent.getAction())) {
+            return remoteBinder;
+        }
         return binder;
     }
 
@@ -356,22 +1181,242 @@ public class TripDetectionService extends Service {
 
         this.binder = new TripDetectionServiceBinder(this);
 
-        this.cellematicsService = new CellematicsServiceClient.Builder(
-                getApplicationContext())
-                .addApi(TripDetection.API)
-                .setLicenseKey(LICENSE_KEY)
-                .addConnectionCallbacks(connectionCallbacks)
-                .addEventListener(cellematicsServiceListener)
-                .build();
+        this.commandQueue = new TripDetectionCommandQueue(commandExecutor);
+
+        this.reconnectScheduler = new ReconnectScheduler(this, commandQueue.getHandler(), new Runnable() {
+            @Override
+            public void run() {
+                if (connectionState.compareAndSet(ConnectionState.DISCONNECTED, reconnectState)) {
+                    metrics.onConnectStarted();
+                    backend.connect();
+                }
+            }
+        });
+
+        this.backend = backendFactory.create(this, backendCallbacks);
+
+        this.stateStore = new ServiceStateStore(new File(getFilesDir(), STATE_FILE_NAME));
+
+        this.rollups = new TimeInStateRollups(new File(getFilesDir(), ROLLUPS_FILE_NAME));
+
+        // Reading the saved state and mapping the journal touch the disk, keep them off the
+        // main thread. They are queued before any command, so the state is restored and the
+        // journal open by the time the first command runs and the first trip class arrives.
+        commandQueue.post(new Runnable() {
+            @Override
+            public void run() {
+                rollups.load();
+                openJournal();
+                restoreState();
+            }
+        });
+    }
+
+    /**
+     * Picks up the state saved by a previous instance of the service, if the process was
+     * killed while connected this reconnects and resumes listening right away. Runs on the
+     * worker thread.
+     */
+    private void restoreState() {
+        if (!stateStore.load()) {
+            return;
+        }
+
+        int tripClass = stateStore.getTripClass();
+        if (tripClass != TRIP_CLASS_NONE) {
+            synchronized (filterLock) {
+                tripClassFilter.offer(stateStore.getTripClassTimestamp(), tripClass);
+            }
+            this.tripClassTimestamp = stateStore.getTripClassTimestamp();
+            this.tripClass = tripClass;
+        }
+        this.rawTripClassTimestamp = stateStore.getRawTripClassTimestamp();
+        this.rawTripClass = stateStore.getRawTripClass();
+
+        wakeUpWithBroadcastRegistered = stateStore.hasFlag(ServiceStateStore.FLAG_WAKE_UP_WITH_BROADCAST);
+        wakeUpWithServiceRegistered = stateStore.hasFlag(ServiceStateStore.FLAG_WAKE_UP_WITH_SERVICE);
+        wakeOnly = stateStore.hasFlag(ServiceStateStore.FLAG_WAKE_ONLY);
+        adaptiveWakeUp = stateStore.hasFlag(ServiceStateStore.FLAG_ADAPTIVE_WAKE_UP);
+        adaptiveListening.setStationaryTimeout(Math.max(0, stateStore.getStationaryTimeout()));
+
+        if (stateStore.hasFlag(ServiceStateStore.FLAG_CONNECTED)) {
+            Log.i(TAG, "Restoring the state saved " + (System.currentTimeMillis() - stateStore.getSavedAt())
+                    + " ms ago");
+            connectionState.moveTo(stateStore.hasFlag(ServiceStateStore.FLAG_LISTENING)
+                    ? ConnectionState.WOKEN
+                    : ConnectionState.CONNECTING);
+            restoredTripClassPending = tripClass != TRIP_CLASS_NONE;
+            submit(COMMAND_CONNECT);
+        }
+
+        accountListeningMode();
+    }
+
+    /**
+     * Saves the state on the worker thread, changes made before the save runs are coalesced
+     * into one write.
+     */
+    private void saveStateLater() {
+        stateSavePending.set(true);
+
+        Handler handler = commandQueue.getHandler();
+        handler.removeCallbacks(saveState);
+        handler.post(saveState);
+    }
+
+    /**
+     * Like {@link #saveStateLater()} but waits a moment, trip classes may change far more
+     * often than the state is worth writing.
+     */
+    private void saveTripClassLater() {
+        if (stateSavePending.compareAndSet(false, true)) {
+            commandQueue.getHandler().postDelayed(saveState, TRIP_CLASS_SAVE_DELAY_MILLIS);
+        }
+    }
+
+    private void saveState() {
+        stateSavePending.set(false);
+
+        // Serialized with the final save of onDestroy(), which runs on the main thread.
+        synchronized (stateStore) {
+            writeState();
+        }
+
+        // While a class is open, save again once it crosses into the next hour, so that a
+        // crash loses at most that hour of it.
+        postDeadlineCheck(rollupsCheckpoint, rollups.getCheckpointTime());
+    }
+
+    /**
+     * Opens the interval of the trip class restored from the saved state once the service is
+     * connected again, the class holds until the service reports a new one.
+     */
+    private void resumeRestoredTripClass() {
+        if (!restoredTripClassPending) {
+            return;
+        }
+        restoredTripClassPending = false;
+
+        int tripClass = this.tripClass;
+        if (tripClass != TRIP_CLASS_NONE) {
+            rollups.onTripClassChanged(backend.now(), tripClass);
+        }
+    }
+
+    private void writeState() {
+        // A service killed on its way to the connection or to listening resumes that way.
+        int state = connectionState.get();
+        int flags = 0;
+        if (connectionState.isActive()) {
+            flags |= ServiceStateStore.FLAG_CONNECTED;
+        }
+        if (state == ConnectionState.WOKEN || state == ConnectionState.LISTENING) {
+            flags |= ServiceStateStore.FLAG_LISTENING;
+        }
+        if (wakeUpWithBroadcastRegistered) {
+            flags |= ServiceStateStore.FLAG_WAKE_UP_WITH_BROADCAST;
+        }
+        if (wakeUpWithServiceRegistered) {
+            flags |= ServiceStateStore.FLAG_WAKE_UP_WITH_SERVICE;
+        }
+        if (wakeOnly) {
+            flags |= ServiceStateStore.FLAG_WAKE_ONLY;
+        }
+        if (adaptiveWakeUp) {
+            flags |= ServiceStateStore.FLAG_ADAPTIVE_WAKE_UP;
+        }
+
+        try {
+            stateStore.save(flags, tripClass, tripClassTimestamp, rawTripClass, rawTripClassTimestamp,
+                    adaptiveListening.getStationaryTimeout());
+        } catch (IOException e) {
+            Log.w(TAG, "Service state could not be saved", e);
+        }
+
+        try {
+            rollups.save(backend.now());
+        } catch (IOException e) {
+            Log.w(TAG, "Time in state rollups could not be saved", e);
+        }
+    }
+
+    private void openJournal() {
+        try {
+            this.journal = TripEventJournal.open(
+                    new File(getFilesDir(), JOURNAL_FILE_NAME),
+                    TripEventJournal.DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            Log.w(TAG, "Trip event journal is not available", e);
+            return;
+        }
+
+        startUpload();
+    }
+
+    /**
+     * Starts uploading the journal to the configured URL, without one the events stay on the
+     * device.
+     */
+    private void startUpload() {
+        String url = getString(R.string.upload_url);
+        if (url.isEmpty()) {
+            return;
+        }
+
+        try {
+            TripEventUploader uploader = new TripEventUploader(this, journal, new URL(url));
+            uploader.start();
+            this.uploader = uploader;
+        } catch (IOException e) {
+            Log.w(TAG, "Trip events will not be uploaded", e);
+        }
+    }
+
+    private void onEventAppended() {
+        TripEventUploader uploader = this.uploader;
+        if (uploader != null) {
+            uploader.onEventsAppended();
+        }
     }
 
     @Override
     public void onDestroy() {
 
+        reconnectScheduler.cancel();
+        commandQueue.quit();
+
+        // The quit drops a pending save, and a snapshot saved while connected would make the
+        // next instance reconnect. The backend is torn down below, so the service is
+        // disconnected for good.
+        connectionState.moveTo(ConnectionState.DISCONNECTED);
+        synchronized (stateStore) {
+            writeState();
+        }
+
+        TripEventJournal journal = this.journal;
+
+        TripEventUploader uploader = this.uploader;
+        if (uploader != null) {
+            uploader.stop();
+        }
+
+        listeners.clear();
+        remoteCallbacks.kill();
+        synchronized (remoteBatchers) {
+            remoteBatchers.clear();
+            if (remoteBatchThread != null) {
+                remoteBatchThread.quit();
+            }
+        }
+
         binder.detachFromService();
         binder = null;
 
-        cellematicsService.teardown();
+        backend.teardown();
+
+        if (journal != null) {
+            journal.close();
+        }
 
         super.onDestroy();
     }
@@ -383,11 +1428,29 @@ public class TripDetectionService extends Service {
                 && intent.getAction() != null) {
 
             if (intent.getAction().equals(START_AND_INITIALIZE)) {
-                if (!isConnected) {
-                    wasWokenUp = true;
-                    connect();
-                } else {
-                    wakeUpServiceOnInTransitEvent();
+                if (!intent.getBooleanExtra(WakeCoalescer.EXTRA_ACCEPTED, false)
+                        && !WakeCoalescer.getInstance().tryWake(
+                        WakeCoalescer.SOURCE_SERVICE, SystemClock.elapsedRealtime())) {
+                    // The same trip start woke the service through the other path already.
+                    return START_STICKY;
+                }
+
+                if (connectionState.moveTo(ConnectionState.WOKEN)) {
+                    // The registration which woke the service is renewed once connected.
+                    wakeUpWithServiceRegistered = true;
+                    metrics.onWokenUp();
+                    submit(COMMAND_CONNECT);
+                } else if (connectionState.isConnected()) {
+                    // Listening resumes from the wake only mode here, which also drops the
+                    // wake up registered by the adaptive mode instead of renewing it.
+                    boolean renewWakeUp = !adaptiveWakeUp;
+                    if (!connectionState.isListening()) {
+                        metrics.onWokenUp();
+                        submit(COMMAND_START_LISTENING);
+                    }
+                    if (renewWakeUp) {
+                        submit(COMMAND_WAKE_UP_WITH_SERVICE);
+                    }
                 }
             }
         }
@@ -395,52 +1458,179 @@ public class TripDetectionService extends Service {
         return START_STICKY;
     }
 
-    private void setListener(final TripDetectionServiceListener listener) {
-        synchronized (listenerLock) {
-            this.listener = listener;
+    private void addListener(TripDetectionServiceListener listener, Looper looper, boolean rawTripClasses,
+                             boolean coalesceTripClasses) {
+        TripEventDispatcher dispatcher = listeners.add(listener, looper, rawTripClasses, coalesceTripClasses);
 
-            if (isConnected) {
-                listener.onConnected();
+        if (connectionState.isConnected()) {
+            dispatcher.dispatchConnected();
+        }
 
-                if (tripClass != null) {
-                    listener.onTripClassChanged(tripClass);
-                }
+        // Under the lock of the monitor, like the announcements, so that the replay cannot
+        // overtake an announcement queued meanwhile.
+        synchronized (healthMonitor) {
+            int malfunctions = healthMonitor.getAnnouncedMalfunctions();
+            if (malfunctions != 0) {
+                dispatcher.dispatchMalfunctionsChanged(malfunctions);
+            }
+        }
+
+        // A restored trip class is replayed while reconnecting, its timestamp tells its age.
+        long timestamp = rawTripClasses ? rawTripClassTimestamp : tripClassTimestamp;
+        int tripClass = rawTripClasses ? rawTripClass : this.tripClass;
+        if (tripClass != TRIP_CLASS_NONE) {
+            dispatcher.dispatchTripClassChanged(tripClass, timestamp);
+        }
+    }
+
+    private void removeListener(TripDetectionServiceListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Registers a callback of another process, its events are batched on a thread of their own
+     * which is started with the first remote callback.
+     */
+    private void addRemoteCallback(ITripEventCallback callback, int maxBatchSize, long maxDelayMillis,
+                                   boolean rawTripClasses) {
+        RemoteTripEventBatcher batcher;
+
+        synchronized (remoteBatchers) {
+            if (remoteBatchThread == null) {
+                remoteBatchThread = new HandlerThread("TripEventBatches", Process.THREAD_PRIORITY_BACKGROUND);
+                remoteBatchThread.start();
+            }
+
+            removeRemoteBatcher(callback.asBinder());
+
+            batcher = new RemoteTripEventBatcher(callback, remoteBatchThread.getLooper(), maxBatchSize, maxDelayMillis);
+            if (!remoteCallbacks.register(callback)) {
+                // Died before it got registered.
+                return;
+            }
+            remoteBatchers.put(callback.asBinder(), batcher);
+        }
+
+        // The batcher packs every change itself, coalescing in front of it would drop the
+        // intermediate trip classes the remote side asked for.
+        addListener(batcher, remoteBatchThread.getLooper(), rawTripClasses, false);
+    }
+
+    private void removeRemoteBatcher(IBinder binder) {
+        RemoteTripEventBatcher batcher;
+        synchronized (remoteBatchers) {
+            batcher = remoteBatchers.remove(binder);
+        }
 
+        if (batcher != null) {
+            removeListener(batcher);
+            batcher.cancel();
+        }
+    }
+
+    private void submit(int command) {
+        commandQueue.submit(command);
+
+        if (metrics.isEnabled()) {
+            metrics.onCommandQueueDepth(commandQueue.size());
+        }
+    }
+
+    private void dumpMetrics(PrintWriter writer) {
+        metrics.dump(writer,
+                commandQueue.size(),
+                listeners.getQueueDepth(),
+                reconnectScheduler.getTotalAttemptCount());
+
+        TripEventUploader uploader = this.uploader;
+        if (uploader != null) {
+            uploader.dump(writer);
+        }
+    }
+
+    /**
+     * Prints the metrics, {@code metrics on}, {@code metrics off} and {@code metrics reset}
+     * control the recording.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length == 2 && "metrics".equals(args[0])) {
+            switch (args[1]) {
+                case "on":
+                    metrics.setEnabled(true);
+                    break;
+                case "off":
+                    metrics.setEnabled(false);
+                    break;
+                case "reset":
+                    metrics.reset();
+                    break;
+                default:
+                    writer.println("Unknown metrics command: " + args[1]);
+                    return;
             }
         }
+
+        writer.print("State: ");
+        writer.println(ConnectionState.nameOf(connectionState.get()));
+
+        adaptiveListening.dump(writer, SystemClock.elapsedRealtime());
+        WakeCoalescer.getInstance().dump(writer);
+
+        reconnectScheduler.dump(writer);
+
+        writer.print("  Shared Cellematics connection handles: ");
+        writer.println(SharedCellematicsConnection.getHandleCount());
+
+        dumpMetrics(writer);
+    }
+
+    private void setListener(TripDetectionServiceListener listener) {
+        TripDetectionServiceListener previous = primaryListener.getAndSet(listener);
+
+        if (previous != null && previous != listener) {
+            removeListener(previous);
+        }
+
+        if (listener != null) {
+            addListener(listener, Looper.getMainLooper(), false, true);
+        }
     }
 
     private void startListening() {
-        TripDetection.TripDetectionApi.requestTripUpdates(
-                cellematicsService,
-                tripListener = new TripListener() {
-                    @Override
-                    public void tripClassChanged(long l, TripClass tripClass) {
-                        TripDetectionService.this.tripClass = tripClass;
-                        notifyListenersOfTripClassChanged(tripClass);
-                    }
-                }
-        );
-        isListening = true;
+        if (connectionState.compareAndSet(ConnectionState.CONNECTED, ConnectionState.LISTENING)) {
+            requestTripUpdates();
+            resumeFromWakeOnly();
+            accountListeningMode();
+        }
+    }
+
+    private void requestTripUpdates() {
+        metrics.onListeningStarted();
+        backend.requestTripUpdates();
     }
 
     private void stopListening() {
-        isListening = false;
-        TripDetection.TripDetectionApi.removeTripUpdates(
-                cellematicsService,
-                tripListener);
+        scheduleStationaryDeadline(Long.MAX_VALUE);
+        wakeOnly = false;
+
+        if (connectionState.compareAndSet(ConnectionState.LISTENING, ConnectionState.CONNECTED)) {
+            backend.removeTripUpdates();
+        }
+        accountListeningMode();
     }
 
     private void wakeUpOnInTransitEvent() {
-        TripDetection.TripDetectionApi.wakeUpWithBroadcastOnTripStart(cellematicsService, WAKE_UP_ACTION);
+        backend.wakeUpWithBroadcastOnTripStart(WAKE_UP_ACTION);
+        wakeUpWithBroadcastRegistered = true;
     }
 
     private void wakeUpServiceOnInTransitEvent() {
-        TripDetection.TripDetectionApi.wakeUpServiceOnTripStart(
-                cellematicsService,
+        backend.wakeUpServiceOnTripStart(
                 getPackageName(),
                 TripDetectionService.class.getName(),
                 START_AND_INITIALIZE);
+        wakeUpWithServiceRegistered = true;
     }
 
 }
@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+/**
+ * Delivers service events to a {@link TripEventListener} on the thread of a given
+ * {@link Looper}.
+ * <p>
+ * A single {@link Handler} is owned for the lifetime of the dispatcher and events travel in
+ * pooled {@link Message}s, trip classes in reused slots, so posting an event allocates nothing.
+ * Connection and malfunction events are delivered strictly in the order they were posted. Trip
+ * class changes are coalesced: while a trip class message is still waiting in the queue, newer
+ * values replace its payload instead of queueing another message, so only the newest pending
+ * trip class is delivered. A dispatcher created without coalescing queues every trip class
+ * change, for listeners which keep the whole stream.
+ * <p>
+ * Every message carries the epoch it was sent in, {@link #clear()} starts a new one. A message
+ * which the looper took off the queue before the clear is dropped when it runs, so the queue
+ * depth and the slot pool stay exact when clearing from another thread.
+ *
+ * @author Daniel Waslicki
+ */
+class TripEventDispatcher implements Handler.Callback {
+
+    private static final int MSG_CONNECTED = 1;
+    private static final int MSG_CONNECTION_FAILED = 2;
+    private static final int MSG_MALFUNCTIONS_CHANGED = 3;
+    private static final int MSG_TRIP_CLASS_CHANGED = 4;
+    private static final int MSG_COMMAND_COMPLETED = 5;
+
+    /**
+     * Payload of a trip class message, recycled once the message is handled or removed.
+     */
+    private static final class TripClassSlot {
+
+        int tripClass;
+        long timestamp;
+        TripClassSlot next;
+
+    }
+
+    private final Handler handler;
+    private final TripEventListener listener;
+    private final boolean rawTripClasses;
+    private final boolean coalesceTripClasses;
+    private final ServiceMetrics metrics;
+
+    /**
+     * Trip class message which is still queued and may have its payload replaced. Cleared as
+     * soon as the message is handled or an ordered event is queued behind it, guarded by
+     * {@code this}.
+     */
+    private Message pendingTripClassMessage;
+
+    /**
+     * Recycled trip class slots, guarded by {@code this}.
+     */
+    private TripClassSlot freeSlots;
+
+    /**
+     * Slots of the queued trip class messages in the order they were sent, which is the order
+     * they are handled in, guarded by {@code this}.
+     */
+    private TripClassSlot queuedSlots;
+    private TripClassSlot lastQueuedSlot;
+
+    /**
+     * Number of messages which are queued, guarded by {@code this}.
+     */
+    private int queued;
+
+    /**
+     * Epoch of the messages sent since the last {@link #clear()}, guarded by {@code this}.
+     */
+    private int epoch;
+
+    TripEventDispatcher(Looper looper, TripEventListener listener,
+                        boolean rawTripClasses, boolean coalesceTripClasses, ServiceMetrics metrics) {
+        this.handler = new Handler(looper, this);
+        this.listener = listener;
+        this.rawTripClasses = rawTripClasses;
+        this.coalesceTripClasses = coalesceTripClasses;
+        this.metrics = metrics;
+    }
+
+    TripEventListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Returns whether the listener gets the unfiltered trip class changes.
+     */
+    boolean isRawTripClasses() {
+        return rawTripClasses;
+    }
+
+    synchronized int getQueueDepth() {
+        return queued;
+    }
+
+    void dispatchConnected() {
+        sendOrdered(MSG_CONNECTED, 0, null);
+    }
+
+    void dispatchConnectionFailed(int errorCode) {
+        sendOrdered(MSG_CONNECTION_FAILED, errorCode, null);
+    }
+
+    void dispatchMalfunctionsChanged(int malfunctions) {
+        sendOrdered(MSG_MALFUNCTIONS_CHANGED, malfunctions, null);
+    }
+
+    void dispatchCommandCompleted(int command, boolean success) {
+        sendOrdered(MSG_COMMAND_COMPLETED, command, success ? Boolean.TRUE : Boolean.FALSE);
+    }
+
+    void dispatchTripClassChanged(int tripClass, long timestamp) {
+        synchronized (this) {
+            TripClassSlot slot;
+
+            if (pendingTripClassMessage != null) {
+                slot = (TripClassSlot) pendingTripClassMessage.obj;
+            } else {
+                slot = freeSlots;
+                if (slot != null) {
+                    freeSlots = slot.next;
+                    slot.next = null;
+                } else {
+                    slot = new TripClassSlot();
+                }
+                if (lastQueuedSlot != null) {
+                    lastQueuedSlot.next = slot;
+                } else {
+                    queuedSlots = slot;
+                }
+                lastQueuedSlot = slot;
+
+                Message message = handler.obtainMessage(MSG_TRIP_CLASS_CHANGED, 0, epoch, slot);
+                if (coalesceTripClasses) {
+                    pendingTripClassMessage = message;
+                }
+                handler.sendMessage(message);
+                metrics.onDispatchQueueDepth(++queued);
+            }
+
+            slot.tripClass = tripClass;
+            slot.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Drops every event which has not been delivered yet.
+     */
+    void clear() {
+        synchronized (this) {
+            handler.removeCallbacksAndMessages(null);
+            pendingTripClassMessage = null;
+            queued = 0;
+            epoch++;
+
+            // A message of the old epoch which is running already leaves its slot alone.
+            if (lastQueuedSlot != null) {
+                lastQueuedSlot.next = freeSlots;
+                freeSlots = queuedSlots;
+                queuedSlots = null;
+                lastQueuedSlot = null;
+            }
+        }
+    }
+
+    private void sendOrdered(int what, int arg1, Object obj) {
+        synchronized (this) {
+            // Seal the queued trip class so that later values are delivered after this event.
+            pendingTripClassMessage = null;
+            handler.sendMessage(handler.obtainMessage(what, arg1, epoch, obj));
+            metrics.onDispatchQueueDepth(++queued);
+        }
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        if (msg.what == MSG_TRIP_CLASS_CHANGED) {
+            handleTripClassChanged(msg);
+            return true;
+        }
+
+        synchronized (this) {
+            if (msg.arg2 != epoch) {
+                // Cleared while it was on its way.
+                return true;
+            }
+            queued--;
+        }
+
+        switch (msg.what) {
+            case MSG_CONNECTED:
+                listener.onConnected();
+                return true;
+            case MSG_CONNECTION_FAILED:
+                listener.onConnectionFailed(msg.arg1);
+                return true;
+            case MSG_MALFUNCTIONS_CHANGED:
+                listener.onMalfunctionsChanged(msg.arg1);
+                return true;
+            case MSG_COMMAND_COMPLETED:
+                listener.onCommandCompleted(msg.arg1, (Boolean) msg.obj);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void handleTripClassChanged(Message msg) {
+        int tripClass;
+        long timestamp;
+
+        synchronized (this) {
+            if (msg.arg2 != epoch) {
+                // Cleared while it was on its way, its slot went back to the pool already.
+                return;
+            }
+            queued--;
+            if (pendingTripClassMessage == msg) {
+                pendingTripClassMessage = null;
+            }
+            TripClassSlot slot = (TripClassSlot) msg.obj;
+            tripClass = slot.tripClass;
+            timestamp = slot.timestamp;
+
+            // Messages are handled in the order they were sent, the slot is the oldest one.
+            queuedSlots = slot.next;
+            if (queuedSlots == null) {
+                lastQueuedSlot = null;
+            }
+            slot.next = freeSlots;
+            freeSlots = slot;
+        }
+
+        if (metrics.isEnabled()) {
+            long start = SystemClock.uptimeMillis();
+            listener.onTripClassChanged(tripClass, timestamp);
+            metrics.onTripClassDelivered(timestamp, SystemClock.uptimeMillis() - start);
+        } else {
+            listener.onTripClassChanged(tripClass, timestamp);
+        }
+    }
+
+}
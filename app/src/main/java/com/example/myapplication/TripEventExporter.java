@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes trip events to a stream in a compact binary format, read back by
+ * {@link TripEventReader}.
+ * <p>
+ * The stream starts with a header of the magic number, the version and the flags, followed by
+ * the body, which is deflated if {@link #FLAG_DEFLATE} is set. The body is a sequence of
+ * blocks of up to {@link #BLOCK_SIZE} events terminated by an empty block. A block is the
+ * varint number of its events followed by its columns:
+ * <ol>
+ * <li>the timestamps, each a zigzag varint delta to the previous one,</li>
+ * <li>the types, one bit per event, set for {@link TripEventJournal#TYPE_MALFUNCTIONS},</li>
+ * <li>the trip classes, two bits per trip class event, {@link #CODE_ESCAPE} for classes without
+ * a code of their own,</li>
+ * <li>the values of the malfunction events and of the escaped trip classes, each a varint.</li>
+ * </ol>
+ * Events change every few minutes and mostly between three classes, so an event takes about
+ * three bytes before deflating. Only the current block is held in memory, in arrays allocated
+ * once.
+ *
+ * @author Daniel Waslicki
+ */
+class TripEventExporter implements Closeable {
+
+    static final int MAGIC = 0x54455850;
+    static final int VERSION = 1;
+
+    static final int FLAG_DEFLATE = 1;
+
+    static final int BLOCK_SIZE = 1024;
+
+    static final int CODE_UNKNOWN = 0;
+    static final int CODE_STATIONARY = 1;
+    static final int CODE_IN_TRANSIT = 2;
+    static final int CODE_ESCAPE = 3;
+
+    // Timestamp deltas take at most 10 bytes, values at most 5 and every event at most 3 bits.
+    private static final int MAX_BLOCK_BYTES = 5 + BLOCK_SIZE * (10 + 5 + 1);
+
+    private final OutputStream sink;
+    private final OutputStream body;
+    private final Deflater deflater;
+
+    private final long[] timestamps = new long[BLOCK_SIZE];
+    private final int[] types = new int[BLOCK_SIZE];
+    private final int[] values = new int[BLOCK_SIZE];
+    private int count;
+
+    private final byte[] block = new byte[MAX_BLOCK_BYTES];
+    private int position;
+
+    private long lastTimestamp;
+    private boolean finished;
+
+    TripEventExporter(OutputStream out, boolean deflate) throws IOException {
+        this.sink = out;
+
+        byte[] header = new byte[] {
+                (byte) (MAGIC >>> 24), (byte) (MAGIC >>> 16), (byte) (MAGIC >>> 8), (byte) MAGIC,
+                (byte) VERSION,
+                (byte) (deflate ? FLAG_DEFLATE : 0)
+        };
+        out.write(header);
+
+        if (deflate) {
+            deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            body = new DeflaterOutputStream(out, deflater, MAX_BLOCK_BYTES);
+        } else {
+            deflater = null;
+            body = out;
+        }
+    }
+
+    /**
+     * Appends an event, events of other than the journal types are rejected.
+     */
+    void write(long timestamp, int type, int value) throws IOException {
+        if (type != TripEventJournal.TYPE_TRIP_CLASS && type != TripEventJournal.TYPE_MALFUNCTIONS) {
+            throw new IllegalArgumentException("Unknown event type " + type);
+        }
+        if (finished) {
+            throw new IllegalStateException("Export is finished");
+        }
+
+        timestamps[count] = timestamp;
+        types[count] = type;
+        values[count] = value;
+        count++;
+
+        if (count == BLOCK_SIZE) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Writes the pending events and the end of the export without closing the stream.
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+
+        if (count > 0) {
+            writeBlock();
+        }
+
+        // The empty block ends the export.
+        position = 0;
+        putVarLong(0);
+        body.write(block, 0, position);
+
+        if (body instanceof DeflaterOutputStream) {
+            ((DeflaterOutputStream) body).finish();
+        }
+        sink.flush();
+
+        finished = true;
+        release();
+    }
+
+    /**
+     * Frees the native memory of the compressor, call it if the export fails before
+     * {@link #finish()}.
+     */
+    void release() {
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            release();
+            sink.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        position = 0;
+
+        putVarLong(count);
+
+        for (int i = 0; i < count; i++) {
+            long delta = timestamps[i] - lastTimestamp;
+            lastTimestamp = timestamps[i];
+            putVarLong((delta << 1) ^ (delta >> 63));
+        }
+
+        int bits = 0;
+        for (int i = 0; i < count; i++) {
+            if (types[i] == TripEventJournal.TYPE_MALFUNCTIONS) {
+                bits |= 1 << (i & 7);
+            }
+            if ((i & 7) == 7 || i == count - 1) {
+                block[position++] = (byte) bits;
+                bits = 0;
+            }
+        }
+
+        int classes = 0;
+        for (int i = 0; i < count; i++) {
+            if (types[i] != TripEventJournal.TYPE_TRIP_CLASS) {
+                continue;
+            }
+            bits |= codeOf(values[i]) << ((classes & 3) * 2);
+            classes++;
+            if ((classes & 3) == 0) {
+                block[position++] = (byte) bits;
+                bits = 0;
+            }
+        }
+        if ((classes & 3) != 0) {
+            block[position++] = (byte) bits;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (types[i] == TripEventJournal.TYPE_MALFUNCTIONS || codeOf(values[i]) == CODE_ESCAPE) {
+                putVarLong(values[i] & 0xffffffffL);
+            }
+        }
+
+        body.write(block, 0, position);
+        count = 0;
+    }
+
+    private void putVarLong(long value) {
+        while ((value & ~0x7fL) != 0) {
+            block[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        block[position++] = (byte) value;
+    }
+
+    static int codeOf(int tripClass) {
+        switch (tripClass) {
+            case TripClass.UNKNOWN:
+                return CODE_UNKNOWN;
+            case TripClass.STATIONARY:
+                return CODE_STATIONARY;
+            case TripClass.IN_TRANSIT:
+                return CODE_IN_TRANSIT;
+            default:
+                return CODE_ESCAPE;
+        }
+    }
+
+}
@@ -0,0 +1,454 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * Fixed-size ring of trip events stored in a memory-mapped file.
+ * <p>
+ * Every event is a 32 byte record holding a sequence number, the event timestamp, its type,
+ * an integer value and a checksum. Appending only stores into the mapping, nothing is
+ * allocated and nothing is synced, the kernel writes the dirty pages back on its own so the
+ * records survive the death of the process. A record is written payload first and sequence
+ * number last, and its checksum covers both, so a record torn by a crash is recognized and
+ * ignored when the journal is opened again. Once the ring is full the oldest records are
+ * overwritten.
+ * <p>
+ * The header holds a random generation, drawn whenever the file is formatted. Sequence numbers
+ * start over with a new generation, so whoever keeps a sequence number, like the upload cursor,
+ * keeps the generation with it. A file of another capacity is copied into a ring of the new
+ * capacity when it is opened, keeping the newest records with their sequence numbers and the
+ * generation.
+ *
+ * @author Daniel Waslicki
+ */
+class TripEventJournal {
+
+    /**
+     * The value of the event is {@link com.cellepathy.cellematicsservice.tripdetection.TripClass#getTripClass()}.
+     */
+    static final int TYPE_TRIP_CLASS = 1;
+
+    /**
+     * The value of the event is the {@code Malfunctions} bitmask.
+     */
+    static final int TYPE_MALFUNCTIONS = 2;
+
+    /**
+     * Room for a history of 100 000 events with some to spare, a 4 MB file.
+     */
+    static final int DEFAULT_CAPACITY = 128 * 1024;
+
+    private static final int MAGIC = 0x54524a4c;
+    private static final int VERSION = 2;
+
+    /**
+     * Version of the files written before the header held a generation, their records are
+     * kept when they are opened.
+     */
+    private static final int VERSION_WITHOUT_GENERATION = 1;
+
+    /**
+     * Suffix of the file which a journal of another capacity is moved to while its records are
+     * copied.
+     */
+    private static final String RESIZED_SUFFIX = ".resized";
+
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 32;
+
+    private static final int OFFSET_SEQUENCE = 0;
+    private static final int OFFSET_TIMESTAMP = 8;
+    private static final int OFFSET_TYPE = 16;
+    private static final int OFFSET_VALUE = 20;
+    private static final int OFFSET_CHECKSUM = 24;
+
+    /**
+     * Reusable holder of a single record, see {@link #read(long, Entry)}.
+     */
+    static final class Entry {
+
+        long sequence;
+        long timestamp;
+        int type;
+        int value;
+
+    }
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    private long generation;
+
+    /**
+     * Sequence number of the next appended record, sequence numbers start at 1.
+     */
+    private long nextSequence;
+
+    /**
+     * Smallest sequence number which may still be stored in the ring.
+     */
+    private long firstSequence;
+
+    private TripEventJournal(RandomAccessFile file, MappedByteBuffer buffer, int capacity) {
+        this.file = file;
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Opens the journal stored in the given file, creating it if needed. A file with a
+     * different layout is discarded, a file without a generation gets one and the records of
+     * a file with a different capacity are copied over.
+     */
+    static TripEventJournal open(File path, int capacity) throws IOException {
+        File resized = new File(path.getPath() + RESIZED_SUFFIX);
+
+        if (!resized.exists()) {
+            int storedCapacity = readCapacity(path);
+            if (storedCapacity == 0 || storedCapacity == capacity) {
+                return map(path, capacity, true);
+            }
+            if (!path.renameTo(resized)) {
+                throw new IOException("Cannot move " + path + " aside for resizing");
+            }
+        }
+
+        // Copied again from the start if the process died while copying.
+        TripEventJournal journal = map(path, capacity, false);
+        try {
+            int resizedCapacity = readCapacity(resized);
+            if (resizedCapacity != 0) {
+                TripEventJournal from = map(resized, resizedCapacity, true);
+                try {
+                    journal.copyFrom(from);
+                } finally {
+                    from.close();
+                }
+                journal.buffer.force();
+            }
+        } catch (IOException | RuntimeException e) {
+            journal.close();
+            throw e;
+        }
+
+        if (!resized.delete()) {
+            journal.close();
+            throw new IOException("Cannot delete " + resized);
+        }
+        return journal;
+    }
+
+    /**
+     * Maps the given file, recovering the journal stored in it if {@code keep} is set and the
+     * layout and capacity match, formatting it otherwise.
+     */
+    private static TripEventJournal map(File path, int capacity, boolean keep) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+
+        try {
+            long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+            boolean valid = keep && file.length() == size;
+
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            int version = buffer.getInt(4);
+            valid = valid
+                    && buffer.getInt(0) == MAGIC
+                    && (version == VERSION || version == VERSION_WITHOUT_GENERATION)
+                    && buffer.getInt(8) == capacity
+                    && buffer.getInt(12) == RECORD_SIZE;
+
+            TripEventJournal journal = new TripEventJournal(file, buffer, capacity);
+
+            if (valid) {
+                if (version == VERSION_WITHOUT_GENERATION) {
+                    buffer.putLong(16, newGeneration());
+                    buffer.putInt(4, VERSION);
+                }
+                journal.recover();
+            } else {
+                journal.format();
+            }
+
+            return journal;
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the capacity of the journal stored in the given file, 0 if there is none.
+     */
+    private static int readCapacity(File path) throws IOException {
+        if (!path.exists()) {
+            return 0;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            if (file.length() < HEADER_SIZE) {
+                return 0;
+            }
+
+            byte[] bytes = new byte[16];
+            file.readFully(bytes);
+            ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+
+            int version = header.getInt(4);
+            int capacity = header.getInt(8);
+            boolean valid = header.getInt(0) == MAGIC
+                    && (version == VERSION || version == VERSION_WITHOUT_GENERATION)
+                    && capacity > 0
+                    && header.getInt(12) == RECORD_SIZE
+                    && file.length() == HEADER_SIZE + (long) capacity * RECORD_SIZE;
+            return valid ? capacity : 0;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns the generation of the journal, which changes whenever its sequence numbers start
+     * over.
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    synchronized long getFirstSequence() {
+        return firstSequence;
+    }
+
+    synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Appends a record and returns its sequence number.
+     */
+    synchronized long append(long timestamp, int type, int value) {
+        long sequence = nextSequence++;
+        write(sequence, timestamp, type, value);
+
+        if (nextSequence - firstSequence > capacity) {
+            firstSequence = nextSequence - capacity;
+        }
+
+        return sequence;
+    }
+
+    /**
+     * Reads the record with the given sequence number.
+     *
+     * @return {@code false} if the record was overwritten, not written yet or is damaged
+     */
+    synchronized boolean read(long sequence, Entry entry) {
+        if (sequence < firstSequence || sequence >= nextSequence) {
+            return false;
+        }
+        return readAt(positionOf(sequence), sequence, entry);
+    }
+
+    /**
+     * Returns the timestamp of the oldest readable record, {@link Long#MAX_VALUE} if there is
+     * none.
+     */
+    synchronized long getOldestTimestamp() {
+        Entry entry = new Entry();
+        for (long sequence = firstSequence; sequence < nextSequence; sequence++) {
+            if (readAt(positionOf(sequence), sequence, entry)) {
+                return entry.timestamp;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the sequence number of the first record with a timestamp of at least
+     * {@code timestamp}, or {@link #getNextSequence()} if there is none.
+     * <p>
+     * The records are searched by bisection, which relies on their timestamps growing with
+     * their sequence numbers as they do when events are appended as they happen. A slightly
+     * late record only shifts the result by the records around it.
+     */
+    synchronized long findSequence(long timestamp) {
+        long low = firstSequence;
+        long high = nextSequence;
+
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (buffer.getLong(positionOf(middle) + OFFSET_TIMESTAMP) < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Reads the records with timestamps in {@code [from, to)} into the given arrays, at most
+     * as many as they hold. Damaged records are skipped.
+     *
+     * @return the number of records read
+     */
+    synchronized int query(long from, long to, long[] timestamps, int[] types, int[] values) {
+        Entry entry = new Entry();
+        int count = 0;
+
+        for (long sequence = findSequence(from); sequence < nextSequence && count < timestamps.length; sequence++) {
+            if (!readAt(positionOf(sequence), sequence, entry)) {
+                continue;
+            }
+            if (entry.timestamp >= to) {
+                break;
+            }
+            if (entry.timestamp < from) {
+                continue;
+            }
+
+            timestamps[count] = entry.timestamp;
+            types[count] = entry.type;
+            values[count] = entry.value;
+            count++;
+        }
+
+        return count;
+    }
+
+    synchronized void close() {
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void write(long sequence, long timestamp, int type, int value) {
+        int position = positionOf(sequence);
+
+        buffer.putLong(position + OFFSET_TIMESTAMP, timestamp);
+        buffer.putInt(position + OFFSET_TYPE, type);
+        buffer.putInt(position + OFFSET_VALUE, value);
+        buffer.putInt(position + OFFSET_CHECKSUM, checksum(sequence, timestamp, type, value));
+        buffer.putLong(position + OFFSET_SEQUENCE, sequence);
+    }
+
+    /**
+     * Takes the generation and the newest readable records of a journal of another capacity
+     * into this freshly formatted one, the records keep their sequence numbers.
+     */
+    private void copyFrom(TripEventJournal from) {
+        Entry entry = new Entry();
+        long last = from.getNextSequence();
+        for (long sequence = Math.max(from.getFirstSequence(), last - capacity); sequence < last; sequence++) {
+            if (from.read(sequence, entry)) {
+                write(sequence, entry.timestamp, entry.type, entry.value);
+            }
+        }
+
+        generation = from.getGeneration();
+        buffer.putLong(16, generation);
+        nextSequence = last;
+        firstSequence = Math.max(1, nextSequence - capacity);
+    }
+
+    private boolean readAt(int position, long sequence, Entry entry) {
+        if (buffer.getLong(position + OFFSET_SEQUENCE) != sequence) {
+            return false;
+        }
+
+        long timestamp = buffer.getLong(position + OFFSET_TIMESTAMP);
+        int type = buffer.getInt(position + OFFSET_TYPE);
+        int value = buffer.getInt(position + OFFSET_VALUE);
+
+        if (buffer.getInt(position + OFFSET_CHECKSUM) != checksum(sequence, timestamp, type, value)) {
+            return false;
+        }
+
+        entry.sequence = sequence;
+        entry.timestamp = timestamp;
+        entry.type = type;
+        entry.value = value;
+        return true;
+    }
+
+    private void format() {
+        for (int i = 0; i < HEADER_SIZE + capacity * RECORD_SIZE; i += 8) {
+            buffer.putLong(i, 0L);
+        }
+
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, capacity);
+        buffer.putInt(12, RECORD_SIZE);
+        generation = newGeneration();
+        buffer.putLong(16, generation);
+
+        nextSequence = 1;
+        firstSequence = 1;
+    }
+
+    /**
+     * Finds the newest intact record; its successor is the next one to be written.
+     */
+    private void recover() {
+        generation = buffer.getLong(16);
+
+        Entry entry = new Entry();
+        long last = 0;
+
+        for (int slot = 0; slot < capacity; slot++) {
+            int position = HEADER_SIZE + slot * RECORD_SIZE;
+            long sequence = buffer.getLong(position + OFFSET_SEQUENCE);
+
+            if (sequence > last
+                    && positionOf(sequence) == position
+                    && readAt(position, sequence, entry)) {
+                last = sequence;
+            }
+        }
+
+        nextSequence = last + 1;
+        firstSequence = Math.max(1, nextSequence - capacity);
+    }
+
+    private static long newGeneration() {
+        Random random = new Random();
+        long generation;
+        do {
+            generation = random.nextLong();
+        } while (generation == 0);
+        return generation;
+    }
+
+    private int positionOf(long sequence) {
+        return HEADER_SIZE + (int) ((sequence - 1) % capacity) * RECORD_SIZE;
+    }
+
+    private static int checksum(long sequence, long timestamp, int type, int value) {
+        long hash = sequence * 0x9e3779b97f4a7c15L;
+        hash = (hash ^ timestamp) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ ((long) type << 32 | (value & 0xffffffffL))) * 0x94d049bb133111ebL;
+        hash ^= hash >>> 31;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+}
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+/**
+ * Events of {@link TripDetectionService}, delivered by a {@link TripEventDispatcher} on the
+ * thread the listener was registered for. Listeners of the service implement it through
+ * {@link TripDetectionService.TripDetectionServiceListener}.
+ *
+ * @author Daniel Waslicki
+ */
+public interface TripEventListener {
+
+    boolean isVisible();
+
+    void onConnected();
+
+    /**
+     * @param errorCode one of the {@code ConnectionResult} error codes
+     */
+    void onConnectionFailed(int errorCode);
+
+    /**
+     * Called when the detected malfunctions change, at most once per
+     * {@link HealthMonitor#DEFAULT_MIN_INTERVAL_MILLIS}.
+     *
+     * @param malfunctions bitmask of the {@code Malfunctions} detected, 0 once they are
+     *                     all cleared
+     */
+    void onMalfunctionsChanged(int malfunctions);
+
+    /**
+     * @param tripClass one of the {@code TripClass} classes
+     * @param timestamp time at which the class was detected
+     */
+    void onTripClassChanged(int tripClass, long timestamp);
+
+    /**
+     * Called once a command requested through
+     * {@link TripDetectionService.TripDetectionServiceBinder} was executed.
+     *
+     * @param command one of the {@code COMMAND_*} constants of {@link TripDetectionService}
+     */
+    void onCommandCompleted(int command, boolean success);
+
+}
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+/**
+ * Stored events of a time range, read from {@link TripEventJournal} by
+ * {@link TripDetectionService.TripDetectionServiceBinder#getEvents(long, long, int)}.
+ *
+ * @author Daniel Waslicki
+ */
+public final class TripEventPage {
+
+    /**
+     * The value of the event is a {@code TripClass} class.
+     */
+    public static final int TYPE_TRIP_CLASS = TripEventJournal.TYPE_TRIP_CLASS;
+
+    /**
+     * The value of the event is a {@code Malfunctions} bitmask.
+     */
+    public static final int TYPE_MALFUNCTIONS = TripEventJournal.TYPE_MALFUNCTIONS;
+
+    /**
+     * Largest number of events a page holds.
+     */
+    public static final int MAX_SIZE = 4096;
+
+    static final TripEventPage EMPTY = new TripEventPage(0);
+
+    final long[] timestamps;
+    final int[] types;
+    final int[] values;
+    int size;
+
+    TripEventPage(int capacity) {
+        timestamps = new long[capacity];
+        types = new int[capacity];
+        values = new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns whether the page is full, in which case the range may hold more events.
+     */
+    public boolean isTruncated() {
+        return size == timestamps.length && size > 0;
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    /**
+     * Returns one of the {@code TYPE_*} constants.
+     */
+    public int getType(int index) {
+        return types[index];
+    }
+
+    public int getValue(int index) {
+        return values[index];
+    }
+
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the events written by {@link TripEventExporter} one at a time.
+ * <p>
+ * Only the block of the current event is decoded and held in memory, so an export of any
+ * length is read in constant space. A stream which is not an export, has a newer version or
+ * ends early fails with an {@link IOException}.
+ *
+ * @author Daniel Waslicki
+ */
+class TripEventReader implements Closeable {
+
+    private final InputStream source;
+    private final InputStream body;
+    private final Inflater inflater;
+
+    private final long[] timestamps = new long[TripEventExporter.BLOCK_SIZE];
+    private final int[] types = new int[TripEventExporter.BLOCK_SIZE];
+    private final int[] values = new int[TripEventExporter.BLOCK_SIZE];
+    private int count;
+    private int index = -1;
+
+    private long lastTimestamp;
+    private boolean ended;
+
+    TripEventReader(InputStream in) throws IOException {
+        this.source = in;
+
+        int magic = readByte(in) << 24 | readByte(in) << 16 | readByte(in) << 8 | readByte(in);
+        if (magic != TripEventExporter.MAGIC) {
+            throw new IOException("Not a trip event export");
+        }
+
+        int version = readByte(in);
+        if (version != TripEventExporter.VERSION) {
+            throw new IOException("Unsupported trip event export version " + version);
+        }
+
+        int flags = readByte(in);
+        if ((flags & TripEventExporter.FLAG_DEFLATE) != 0) {
+            inflater = new Inflater();
+            body = new BufferedInputStream(new InflaterInputStream(in, inflater));
+        } else {
+            inflater = null;
+            body = new BufferedInputStream(in);
+        }
+    }
+
+    /**
+     * Moves to the next event.
+     *
+     * @return {@code false} at the end of the export
+     */
+    boolean next() throws IOException {
+        if (ended) {
+            return false;
+        }
+
+        index++;
+        if (index < count) {
+            return true;
+        }
+
+        readBlock();
+        index = 0;
+        if (count == 0) {
+            ended = true;
+            return false;
+        }
+        return true;
+    }
+
+    long getTimestamp() {
+        return timestamps[index];
+    }
+
+    /**
+     * Returns {@link TripEventJournal#TYPE_TRIP_CLASS} or
+     * {@link TripEventJournal#TYPE_MALFUNCTIONS}.
+     */
+    int getType() {
+        return types[index];
+    }
+
+    int getValue() {
+        return values[index];
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (inflater != null) {
+            inflater.end();
+        }
+        source.close();
+    }
+
+    private void readBlock() throws IOException {
+        long size = readVarLong();
+        if (size < 0 || size > TripEventExporter.BLOCK_SIZE) {
+            throw new IOException("Damaged trip event export, block of " + size + " events");
+        }
+        count = (int) size;
+
+        for (int i = 0; i < count; i++) {
+            long zigzag = readVarLong();
+            lastTimestamp += (zigzag >>> 1) ^ -(zigzag & 1);
+            timestamps[i] = lastTimestamp;
+        }
+
+        int bits = 0;
+        for (int i = 0; i < count; i++) {
+            if ((i & 7) == 0) {
+                bits = readByte(body);
+            }
+            if ((bits & (1 << (i & 7))) != 0) {
+                types[i] = TripEventJournal.TYPE_MALFUNCTIONS;
+            } else {
+                types[i] = TripEventJournal.TYPE_TRIP_CLASS;
+            }
+        }
+
+        // The codes are kept in the values until the escaped ones are read.
+        int code = 0;
+        for (int i = 0; i < count; i++) {
+            if (types[i] != TripEventJournal.TYPE_TRIP_CLASS) {
+                continue;
+            }
+            if ((code & 3) == 0) {
+                bits = readByte(body);
+            }
+            values[i] = (bits >>> ((code & 3) * 2)) & 3;
+            code++;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (types[i] == TripEventJournal.TYPE_MALFUNCTIONS || values[i] == TripEventExporter.CODE_ESCAPE) {
+                values[i] = (int) readVarLong();
+            } else {
+                values[i] = tripClassOf(values[i]);
+            }
+        }
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(body);
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Damaged trip event export, varint too long");
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Trip event export ends early");
+        }
+        return b;
+    }
+
+    private static int tripClassOf(int code) {
+        switch (code) {
+            case TripEventExporter.CODE_UNKNOWN:
+                return TripClass.UNKNOWN;
+            case TripEventExporter.CODE_STATIONARY:
+                return TripClass.STATIONARY;
+            default:
+                return TripClass.IN_TRANSIT;
+        }
+    }
+
+}
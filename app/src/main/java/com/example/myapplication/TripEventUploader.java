@@ -0,0 +1,370 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Uploads the events of the {@link TripEventJournal} to a collector in batches.
+ * <p>
+ * A batch is sent once {@link #BATCH_EVENTS} events are pending or the oldest of them waited
+ * {@link #MAX_BATCH_DELAY_CHARGING_MILLIS}, or {@link #MAX_BATCH_DELAY_ON_BATTERY_MILLIS} while
+ * the device is not charging, and only while the device has a network connection. A batch
+ * holds at most {@link #MAX_BATCH_EVENTS} events in the deflated {@link TripEventExporter}
+ * format and is posted with the generation of the journal and the sequence numbers of its
+ * first and last event, so the collector can drop a batch it has received already. Failed posts are retried with the
+ * backoff of {@link ReconnectScheduler}.
+ * <p>
+ * The sequence number of the last accepted event is committed to the preferences before the
+ * next batch is built, so the upload resumes where it left off after the process dies. It is
+ * stored with the generation of the journal and starts over when the journal is formatted
+ * again. All the work is done on a background thread of the uploader.
+ *
+ * @author Daniel Waslicki
+ */
+class TripEventUploader {
+
+    static final String CONTENT_TYPE = "application/vnd.cellepathy.trip-events";
+    static final String HEADER_FIRST_SEQUENCE = "X-Trip-Events-First";
+    static final String HEADER_LAST_SEQUENCE = "X-Trip-Events-Last";
+    static final String HEADER_GENERATION = "X-Trip-Events-Generation";
+
+    static final int BATCH_EVENTS = 500;
+    static final int MAX_BATCH_EVENTS = 2000;
+    static final long MAX_BATCH_DELAY_CHARGING_MILLIS = 15 * 60 * 1000;
+    static final long MAX_BATCH_DELAY_ON_BATTERY_MILLIS = 60 * 60 * 1000;
+
+    private static final String TAG = "TripEventUploader";
+
+    private static final String PREFERENCES_NAME = "trip_event_upload";
+    private static final String KEY_CURSOR = "cursor";
+    private static final String KEY_GENERATION = "generation";
+
+    private static final int TIMEOUT_MILLIS = 30 * 1000;
+
+    private static final ReconnectScheduler.Policy RETRY_POLICY =
+            new ReconnectScheduler.Policy(30 * 1000, 30 * 60 * 1000, 2f, 0.2f, 0, true);
+
+    private final Context context;
+    private final TripEventJournal journal;
+    private final URL url;
+    private final SharedPreferences preferences;
+
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    private final AtomicBoolean checkPending = new AtomicBoolean();
+
+    private final Runnable check = new Runnable() {
+        @Override
+        public void run() {
+            check();
+        }
+    };
+
+    private final BroadcastReceiver conditionsReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onConditionsChanged();
+                }
+            });
+        }
+    };
+
+    // Owned by the upload thread.
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream(16 * 1024);
+    private final TripEventJournal.Entry entry = new TripEventJournal.Entry();
+    private final Random random = new Random();
+    private boolean receiverRegistered;
+    private boolean networkConnected;
+    private int failedAttempts;
+    private long retryAt;
+
+    /**
+     * Sequence number of the last event accepted by the collector.
+     */
+    private volatile long cursor;
+
+    private volatile int uploadedBatches;
+    private volatile long uploadedEvents;
+    private volatile long uploadedBytes;
+    private volatile long uploadMillis;
+    private volatile int failedUploads;
+    private volatile int rejectedBatches;
+
+    TripEventUploader(Context context, TripEventJournal journal, URL url) {
+        this.context = context;
+        this.journal = journal;
+        this.url = url;
+        this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+
+        thread = new HandlerThread("TripEventUpload", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    void start() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                restoreCursor();
+                check();
+            }
+        });
+    }
+
+    /**
+     * Called after every append to the journal, cheap enough for the event path.
+     */
+    void onEventsAppended() {
+        if (checkPending.compareAndSet(false, true)) {
+            handler.post(check);
+        }
+    }
+
+    void stop() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                handler.removeCallbacksAndMessages(null);
+                unregisterReceiver();
+                thread.quit();
+            }
+        });
+    }
+
+    void dump(PrintWriter writer) {
+        int batches = uploadedBatches;
+        long events = uploadedEvents;
+        long bytes = uploadedBytes;
+        long millis = uploadMillis;
+
+        writer.print("  Upload to ");
+        writer.print(url);
+        writer.print(": pending=");
+        writer.print(journal.getNextSequence() - Math.max(cursor + 1, journal.getFirstSequence()));
+        writer.print(" batches=");
+        writer.print(batches);
+        writer.print(" events=");
+        writer.print(events);
+        writer.print(" bytes=");
+        writer.print(bytes);
+        writer.print(" bytes/event=");
+        writer.print(events > 0 ? bytes / (double) events : 0);
+        writer.print(" events/s=");
+        writer.print(millis > 0 ? events * 1000 / millis : 0);
+        writer.print(" failures=");
+        writer.print(failedUploads);
+        writer.print(" rejected=");
+        writer.println(rejectedBatches);
+    }
+
+    private void onConditionsChanged() {
+        boolean connected = isNetworkConnected();
+        if (connected && !networkConnected) {
+            // The connection is back, the failure was most likely caused by its loss.
+            retryAt = 0;
+        }
+        networkConnected = connected;
+
+        check();
+    }
+
+    private void check() {
+        // Appends made from now on post a new check, earlier ones are seen by this one.
+        handler.removeCallbacks(check);
+        checkPending.set(false);
+
+        long nextSequence = journal.getNextSequence();
+        long first = Math.max(cursor + 1, journal.getFirstSequence());
+        long pending = nextSequence - first;
+        if (pending <= 0) {
+            unregisterReceiver();
+            return;
+        }
+
+        // Wait for the network, the charger or the next deadline, whichever comes first.
+        registerReceiver();
+
+        long now = SystemClock.uptimeMillis();
+        long wait = retryAt - now;
+
+        if (pending < BATCH_EVENTS && journal.read(first, entry)) {
+            long maxDelay = isCharging() ? MAX_BATCH_DELAY_CHARGING_MILLIS : MAX_BATCH_DELAY_ON_BATTERY_MILLIS;
+            wait = Math.max(wait, entry.timestamp + maxDelay - System.currentTimeMillis());
+        }
+
+        if (wait > 0) {
+            handler.postDelayed(check, wait);
+            return;
+        }
+
+        networkConnected = isNetworkConnected();
+        if (!networkConnected) {
+            return;
+        }
+
+        upload(first, Math.min(nextSequence - 1, first + MAX_BATCH_EVENTS - 1));
+
+        // Drain the backlog, one batch per message so that stop() is not held up.
+        handler.post(check);
+    }
+
+    private void upload(long first, long last) {
+        long start = SystemClock.elapsedRealtime();
+        int events = 0;
+        int responseCode;
+
+        try {
+            batch.reset();
+            TripEventExporter exporter = new TripEventExporter(batch, true);
+            try {
+                for (long sequence = first; sequence <= last; sequence++) {
+                    if (journal.read(sequence, entry)) {
+                        exporter.write(entry.timestamp, entry.type, entry.value);
+                        events++;
+                    }
+                }
+                exporter.finish();
+            } finally {
+                exporter.release();
+            }
+
+            responseCode = post(first, last);
+        } catch (IOException e) {
+            Log.w(TAG, "Batch upload failed", e);
+            responseCode = -1;
+        }
+
+        if (responseCode >= 200 && responseCode < 300) {
+            saveCursor(last);
+            failedAttempts = 0;
+            retryAt = 0;
+
+            uploadedBatches++;
+            uploadedEvents += events;
+            uploadedBytes += batch.size();
+            uploadMillis += SystemClock.elapsedRealtime() - start;
+        } else if (responseCode >= 400 && responseCode < 500 && responseCode != 408 && responseCode != 429) {
+            // Posting the same batch again would be refused again.
+            Log.w(TAG, "Batch " + first + "-" + last + " rejected with " + responseCode);
+            saveCursor(last);
+            rejectedBatches++;
+        } else {
+            failedUploads++;
+            retryAt = SystemClock.uptimeMillis() + RETRY_POLICY.delayOf(failedAttempts++, random);
+        }
+    }
+
+    private int post(long first, long last) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setFixedLengthStreamingMode(batch.size());
+            connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+            connection.setRequestProperty(HEADER_FIRST_SEQUENCE, String.valueOf(first));
+            connection.setRequestProperty(HEADER_LAST_SEQUENCE, String.valueOf(last));
+            connection.setRequestProperty(HEADER_GENERATION, String.valueOf(journal.getGeneration()));
+
+            OutputStream out = connection.getOutputStream();
+            try {
+                batch.writeTo(out);
+            } finally {
+                out.close();
+            }
+
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Reads the cursor stored for the generation of the journal, a cursor of another generation
+     * starts over.
+     */
+    private void restoreCursor() {
+        long generation = journal.getGeneration();
+        long cursor = preferences.getLong(KEY_CURSOR, 0);
+
+        if (!preferences.contains(KEY_GENERATION)) {
+            // Stored before the cursor had a generation, it is only known to be stale if it
+            // is ahead of the journal.
+            saveCursor(cursor < journal.getNextSequence() ? cursor : 0);
+        } else if (preferences.getLong(KEY_GENERATION, 0) != generation) {
+            saveCursor(0);
+        } else {
+            this.cursor = cursor;
+        }
+    }
+
+    private void saveCursor(long sequence) {
+        cursor = sequence;
+        // Committed synchronously, the next batch must not be built before it is stored.
+        preferences.edit()
+                .putLong(KEY_CURSOR, sequence)
+                .putLong(KEY_GENERATION, journal.getGeneration())
+                .commit();
+    }
+
+    private void registerReceiver() {
+        if (!receiverRegistered) {
+            IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+            filter.addAction(Intent.ACTION_POWER_CONNECTED);
+            context.registerReceiver(conditionsReceiver, filter);
+            receiverRegistered = true;
+        }
+    }
+
+    private void unregisterReceiver() {
+        if (receiverRegistered) {
+            context.unregisterReceiver(conditionsReceiver);
+            receiverRegistered = false;
+        }
+    }
+
+    private boolean isCharging() {
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private boolean isNetworkConnected() {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.os.Looper;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copy-on-write registry of {@link TripEventListener}s.
+ * <p>
+ * Every listener gets its own {@link TripEventDispatcher} bound to the {@link Looper} it wants
+ * to be called on. Registration swaps an immutable snapshot array with a compare-and-set, so
+ * dispatching only reads one reference and never waits for {@link #add} or {@link #remove}.
+ *
+ * @author Daniel Waslicki
+ */
+class TripListenerRegistry {
+
+    private static final TripEventDispatcher[] EMPTY = new TripEventDispatcher[0];
+
+    private final AtomicReference<TripEventDispatcher[]> dispatchers =
+            new AtomicReference<>(EMPTY);
+
+    private final ServiceMetrics metrics;
+
+    TripListenerRegistry(ServiceMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Registers the listener to be called on the given looper's thread. A listener which is
+     * already registered keeps its current looper and trip class stream.
+     *
+     * @param rawTripClasses whether the listener gets the unfiltered trip class changes
+     * @param coalesceTripClasses whether a trip class change still waiting to be delivered is
+     *                            replaced by the next one, otherwise every change is delivered
+     * @return the dispatcher of the listener
+     */
+    TripEventDispatcher add(TripEventListener listener, Looper looper,
+                            boolean rawTripClasses, boolean coalesceTripClasses) {
+        TripEventDispatcher dispatcher = null;
+
+        while (true) {
+            TripEventDispatcher[] current = dispatchers.get();
+            int index = indexOf(current, listener);
+            if (index >= 0) {
+                return current[index];
+            }
+
+            if (dispatcher == null) {
+                dispatcher = new TripEventDispatcher(looper, listener, rawTripClasses, coalesceTripClasses,
+                        metrics);
+            }
+
+            TripEventDispatcher[] updated = new TripEventDispatcher[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = dispatcher;
+
+            if (dispatchers.compareAndSet(current, updated)) {
+                return dispatcher;
+            }
+        }
+    }
+
+    /**
+     * Unregisters the listener and drops the events which were not delivered to it yet.
+     *
+     * @return {@code true} if the listener was registered
+     */
+    boolean remove(TripEventListener listener) {
+        while (true) {
+            TripEventDispatcher[] current = dispatchers.get();
+            int index = indexOf(current, listener);
+            if (index < 0) {
+                return false;
+            }
+
+            TripEventDispatcher[] updated;
+            if (current.length == 1) {
+                updated = EMPTY;
+            } else {
+                updated = new TripEventDispatcher[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, index);
+                System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            }
+
+            if (dispatchers.compareAndSet(current, updated)) {
+                current[index].clear();
+                return true;
+            }
+        }
+    }
+
+    void clear() {
+        for (TripEventDispatcher dispatcher : dispatchers.getAndSet(EMPTY)) {
+            dispatcher.clear();
+        }
+    }
+
+    boolean isEmpty() {
+        return dispatchers.get().length == 0;
+    }
+
+    /**
+     * Returns the number of events queued for all listeners.
+     */
+    int getQueueDepth() {
+        int depth = 0;
+        for (TripEventDispatcher dispatcher : dispatchers.get()) {
+            depth += dispatcher.getQueueDepth();
+        }
+        return depth;
+    }
+
+    boolean isAnyVisible() {
+        for (TripEventDispatcher dispatcher : dispatchers.get()) {
+            if (dispatcher.getListener().isVisible()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void dispatchConnected() {
+        for (TripEventDispatcher dispatcher : dispatchers.get()) {
+            dispatcher.dispatchConnected();
+        }
+    }
+
+    void dispatchConnectionFailed(int errorCode) {
+        for (TripEventDispatcher dispatcher : dispatchers.get()) {
+            dispatcher.dispatchConnectionFailed(errorCode);
+        }
+    }
+
+    void dispatchMalfunctionsChanged(int malfunctions) {
+        for (TripEventDispatcher dispatcher : dispatchers.get()) {
+            dispatcher.dispatchMalfunctionsChanged(malfunctions);
+        }
+    }
+
+    void dispatchCommandCompleted(int command, boolean success) {
+        for (TripEventDispatcher dispatcher : dispatchers.get()) {
+            dispatcher.dispatchCommandCompleted(command, success);
+        }
+    }
+
+    void dispatchTripClassChanged(int tripClass, long timestamp, boolean raw) {
+        for (TripEventDispatcher dispatcher : dispatchers.get()) {
+            if (dispatcher.isRawTripClasses() == raw) {
+                dispatcher.dispatchTripClassChanged(tripClass, timestamp);
+            }
+        }
+    }
+
+    private static int indexOf(TripEventDispatcher[] dispatchers, TripEventListener listener) {
+        for (int i = 0; i < dispatchers.length; i++) {
+            if (dispatchers[i].getListener() == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming segmentation of trip class changes into {@link Trip}s.
+ * <p>
+ * A trip starts when the device gets {@link TripClass#IN_TRANSIT}. Leaving the transit pauses
+ * the trip; when the transit resumes before the pause reaches {@code minStopMillis} (or
+ * {@code maxUnknownMillis} for a pause in which the class was only
+ * {@link TripClass#UNKNOWN}), the pause is merged into the trip, otherwise the trip ends where
+ * the pause began. Trips shorter than {@code minTripMillis} are dropped. Every event is
+ * handled in constant time without allocation, finished trips are kept in a ring of primitive
+ * arrays.
+ *
+ * @author Daniel Waslicki
+ */
+class TripSegmenter {
+
+    static final int DEFAULT_CAPACITY = 64;
+
+    static final long DEFAULT_MIN_STOP_MILLIS = 3 * 60 * 1000;
+    static final long DEFAULT_MAX_UNKNOWN_MILLIS = 5 * 60 * 1000;
+    static final long DEFAULT_MIN_TRIP_MILLIS = 60 * 1000;
+
+    private long minStopMillis = DEFAULT_MIN_STOP_MILLIS;
+    private long maxUnknownMillis = DEFAULT_MAX_UNKNOWN_MILLIS;
+    private long minTripMillis = DEFAULT_MIN_TRIP_MILLIS;
+
+    // Ring of finished trips.
+    private final long[] startTimes;
+    private final long[] endTimes;
+    private final long[] stationaryMillis;
+    private final long[] unknownMillis;
+    private final int[] stopCounts;
+    private int next;
+    private int count;
+
+    // The current trip.
+    private boolean inTrip;
+    private long tripStart;
+    private long tripStationaryMillis;
+    private long tripUnknownMillis;
+    private int tripStopCount;
+
+    // The pause of the current trip.
+    private boolean paused;
+    private long pauseStart;
+    private long pauseStationaryMillis;
+    private long pauseUnknownMillis;
+
+    private int lastClass = TripClassFilter.TRIP_CLASS_NONE;
+    private long lastTimestamp;
+
+    TripSegmenter() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    TripSegmenter(int capacity) {
+        startTimes = new long[capacity];
+        endTimes = new long[capacity];
+        stationaryMillis = new long[capacity];
+        unknownMillis = new long[capacity];
+        stopCounts = new int[capacity];
+    }
+
+    /**
+     * Sets the merge rules, they apply to the pauses which end afterwards.
+     */
+    synchronized void setMergeRules(long minStopMillis, long maxUnknownMillis, long minTripMillis) {
+        this.minStopMillis = minStopMillis;
+        this.maxUnknownMillis = maxUnknownMillis;
+        this.minTripMillis = minTripMillis;
+    }
+
+    synchronized void onTripClassChanged(long timestamp, int tripClass) {
+        if (timestamp < lastTimestamp) {
+            timestamp = lastTimestamp;
+        }
+
+        if (paused) {
+            accumulatePause(timestamp);
+            closeTripIfPauseTooLong(timestamp);
+        }
+
+        if (tripClass == TripClass.IN_TRANSIT) {
+            if (!inTrip) {
+                inTrip = true;
+                tripStart = timestamp;
+                tripStationaryMillis = 0;
+                tripUnknownMillis = 0;
+                tripStopCount = 0;
+            } else if (paused) {
+                paused = false;
+                tripStationaryMillis += pauseStationaryMillis;
+                tripUnknownMillis += pauseUnknownMillis;
+                if (pauseStationaryMillis > 0) {
+                    tripStopCount++;
+                }
+            }
+        } else if (inTrip && !paused) {
+            paused = true;
+            pauseStart = timestamp;
+            pauseStationaryMillis = 0;
+            pauseUnknownMillis = 0;
+        }
+
+        lastClass = tripClass;
+        lastTimestamp = timestamp;
+    }
+
+    /**
+     * Ends the current trip if it has been paused for too long by the given time.
+     */
+    synchronized void advance(long now) {
+        if (paused && now > lastTimestamp) {
+            long stationary = pauseStationaryMillis;
+            long unknown = pauseUnknownMillis;
+            accumulatePause(now);
+            closeTripIfPauseTooLong(now);
+            if (paused) {
+                // Only looking ahead, the pause is accumulated for real by the next event.
+                pauseStationaryMillis = stationary;
+                pauseUnknownMillis = unknown;
+            }
+        }
+    }
+
+    /**
+     * Returns the current trip or {@code null} if the device is not on a trip.
+     */
+    synchronized Trip getCurrentTrip() {
+        if (!inTrip) {
+            return null;
+        }
+
+        Trip trip = new Trip();
+        trip.startTime = tripStart;
+        trip.endTime = paused ? pauseStart : lastTimestamp;
+        trip.stationaryMillis = tripStationaryMillis;
+        trip.unknownMillis = tripUnknownMillis;
+        trip.stopCount = tripStopCount;
+        trip.ongoing = true;
+        return trip;
+    }
+
+    /**
+     * Returns up to {@code max} finished trips, the most recent first.
+     */
+    synchronized List<Trip> getRecentTrips(int max) {
+        int size = Math.min(max, count);
+        List<Trip> trips = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++) {
+            int index = (next - 1 - i + startTimes.length) % startTimes.length;
+
+            Trip trip = new Trip();
+            trip.startTime = startTimes[index];
+            trip.endTime = endTimes[index];
+            trip.stationaryMillis = stationaryMillis[index];
+            trip.unknownMillis = unknownMillis[index];
+            trip.stopCount = stopCounts[index];
+            trips.add(trip);
+        }
+
+        return trips;
+    }
+
+    private void accumulatePause(long timestamp) {
+        long elapsed = timestamp - lastTimestamp;
+        if (lastClass == TripClass.STATIONARY) {
+            pauseStationaryMillis += elapsed;
+        } else {
+            pauseUnknownMillis += elapsed;
+        }
+    }
+
+    private void closeTripIfPauseTooLong(long timestamp) {
+        long pause = timestamp - pauseStart;
+        long limit = pauseStationaryMillis > 0 ? minStopMillis : maxUnknownMillis;
+
+        if (pause >= limit) {
+            finishTrip(pauseStart);
+        }
+    }
+
+    private void finishTrip(long end) {
+        if (end - tripStart >= minTripMillis) {
+            startTimes[next] = tripStart;
+            endTimes[next] = end;
+            stationaryMillis[next] = tripStationaryMillis;
+            unknownMillis[next] = tripUnknownMillis;
+            stopCounts[next] = tripStopCount;
+            next = (next + 1) % startTimes.length;
+            count = Math.min(count + 1, startTimes.length);
+        }
+
+        inTrip = false;
+        paused = false;
+    }
+
+}
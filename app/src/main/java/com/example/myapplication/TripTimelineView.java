@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+/**
+ * Draws the trip classes of the last {@link #WINDOW_MILLIS} as a strip of colored
+ * segments, the newest at the right edge.
+ * <p>
+ * The changes are kept in a ring of primitive arrays and the paints are created once, so
+ * adding a change and drawing allocate nothing. Adding a change does not redraw the view, the
+ * owner invalidates it once per frame.
+ *
+ * @author Daniel Waslicki
+ */
+public class TripTimelineView extends View {
+
+    static final long WINDOW_MILLIS = 10 * 60 * 1000;
+
+    private static final int CAPACITY = 256;
+
+    private final long[] timestamps = new long[CAPACITY];
+    private final int[] tripClasses = new int[CAPACITY];
+    private int next;
+    private int count;
+
+    private final Paint inTransitPaint = new Paint();
+    private final Paint stationaryPaint = new Paint();
+    private final Paint unknownPaint = new Paint();
+
+    public TripTimelineView(Context context) {
+        this(context, null);
+    }
+
+    public TripTimelineView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    @SuppressWarnings("deprecation")
+    public TripTimelineView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+
+        inTransitPaint.setColor(getResources().getColor(R.color.tripClassInTransit));
+        stationaryPaint.setColor(getResources().getColor(R.color.tripClassStationary));
+        unknownPaint.setColor(getResources().getColor(R.color.tripClassUnknown));
+    }
+
+    /**
+     * Appends a trip class change, the oldest change is dropped once the ring is full.
+     */
+    void addTripClass(int tripClass, long timestamp) {
+        if (count > 0 && timestamp < timestamps[(next - 1 + CAPACITY) % CAPACITY]) {
+            // Out of order, keep the strip monotonic.
+            return;
+        }
+
+        timestamps[next] = timestamp;
+        tripClasses[next] = tripClass;
+        next = (next + 1) % CAPACITY;
+        count = Math.min(count + 1, CAPACITY);
+    }
+
+    void clear() {
+        next = 0;
+        count = 0;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        if (count == 0) {
+            return;
+        }
+
+        int left = getPaddingLeft();
+        int top = getPaddingTop();
+        int width = getWidth() - left - getPaddingRight();
+        int bottom = getHeight() - getPaddingBottom();
+        if (width <= 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long windowStart = now - WINDOW_MILLIS;
+        float pixelsPerMilli = (float) width / WINDOW_MILLIS;
+
+        int oldest = (next - count + CAPACITY) % CAPACITY;
+        for (int i = 0; i < count; i++) {
+            int index = (oldest + i) % CAPACITY;
+            long start = timestamps[index];
+            long end = i == count - 1 ? now : timestamps[(index + 1) % CAPACITY];
+
+            if (end <= windowStart) {
+                continue;
+            }
+
+            float x0 = left + Math.max(0, start - windowStart) * pixelsPerMilli;
+            float x1 = left + Math.min(WINDOW_MILLIS, end - windowStart) * pixelsPerMilli;
+            canvas.drawRect(x0, top, x1, bottom, paintOf(tripClasses[index]));
+        }
+
+        // Let the strip scroll by about one pixel at a time while nothing changes.
+        postInvalidateDelayed(Math.max(FrameScheduler.FALLBACK_FRAME_MILLIS, WINDOW_MILLIS / width));
+    }
+
+    private Paint paintOf(int tripClass) {
+        switch (tripClass) {
+            case TripClass.IN_TRANSIT:
+                return inTransitPaint;
+            case TripClass.STATIONARY:
+                return stationaryPaint;
+            default:
+                return unknownPaint;
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Recorded sequence of trip detection events replayed by {@link SimulatedTripDetectionBackend}.
+ * <p>
+ * The text form has one event per line, {@code <offset millis> <event> <value>}, where the
+ * event is {@code CLASS} with a {@code TripClass} class, {@code FAIL} with a
+ * {@code ConnectionResult} error code or {@code MALFUNCTIONS} with a {@code Malfunctions}
+ * bitmask. Empty lines and lines starting with {@code #} are ignored. Offsets must not
+ * decrease.
+ * <pre>
+ * # parked, then a short drive
+ * 0      CLASS 1
+ * 60000  CLASS 2
+ * 61000  MALFUNCTIONS 1
+ * 90000  FAIL 5
+ * 300000 CLASS 1
+ * </pre>
+ *
+ * @author Daniel Waslicki
+ */
+final class TripTrace {
+
+    static final int EVENT_TRIP_CLASS = 1;
+    static final int EVENT_CONNECTION_FAILED = 2;
+    static final int EVENT_MALFUNCTIONS = 3;
+
+    private long[] offsets;
+    private int[] events;
+    private int[] values;
+    private int size;
+
+    TripTrace() {
+        this(16);
+    }
+
+    TripTrace(int initialCapacity) {
+        offsets = new long[initialCapacity];
+        events = new int[initialCapacity];
+        values = new int[initialCapacity];
+    }
+
+    static TripTrace parse(Reader reader) throws IOException {
+        TripTrace trace = new TripTrace();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int number = 0;
+
+        while ((line = lines.readLine()) != null) {
+            number++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] parts = line.split("\\s+");
+            if (parts.length != 3) {
+                throw new IOException("Malformed trace line " + number + ": " + line);
+            }
+
+            int event;
+            switch (parts[1]) {
+                case "CLASS":
+                    event = EVENT_TRIP_CLASS;
+                    break;
+                case "FAIL":
+                    event = EVENT_CONNECTION_FAILED;
+                    break;
+                case "MALFUNCTIONS":
+                    event = EVENT_MALFUNCTIONS;
+                    break;
+                default:
+                    throw new IOException("Unknown trace event at line " + number + ": " + parts[1]);
+            }
+
+            try {
+                trace.add(Long.parseLong(parts[0]), event, Integer.parseInt(parts[2]));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed trace line " + number + ": " + line, e);
+            }
+        }
+
+        return trace;
+    }
+
+    TripTrace add(long offsetMillis, int event, int value) {
+        if (size > 0 && offsetMillis < offsets[size - 1]) {
+            throw new IllegalArgumentException("Trace offsets must not decrease");
+        }
+
+        if (size == offsets.length) {
+            int capacity = Math.max(16, size * 2);
+            offsets = Arrays.copyOf(offsets, capacity);
+            events = Arrays.copyOf(events, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        offsets[size] = offsetMillis;
+        events[size] = event;
+        values[size] = value;
+        size++;
+        return this;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long offsetAt(int index) {
+        return offsets[index];
+    }
+
+    int eventAt(int index) {
+        return events[index];
+    }
+
+    int valueAt(int index) {
+        return values[index];
+    }
+
+    /**
+     * Returns the offset of the last event.
+     */
+    long duration() {
+        return size == 0 ? 0 : offsets[size - 1];
+    }
+
+}
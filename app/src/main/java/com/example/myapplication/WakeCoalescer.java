@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import java.io.PrintWriter;
+
+/**
+ * Folds the wake up triggers of one trip start into one.
+ * <p>
+ * A trip start may wake the app both through the {@link WakeReceiver} broadcast and through the
+ * service wake up, and broadcasts may come in bursts. The first trigger opens a window of
+ * {@link #DEFAULT_WINDOW_MILLIS} in which every further trigger, from either path, is
+ * suppressed and counted. The state is shared by the whole process, which is where both paths
+ * end up.
+ *
+ * @author Daniel Waslicki
+ */
+class WakeCoalescer {
+
+    static final int SOURCE_BROADCAST = 0;
+    static final int SOURCE_SERVICE = 1;
+
+    private static final String[] SOURCE_NAMES = {"broadcast", "service"};
+
+    /**
+     * Marks a {@code START_AND_INITIALIZE} intent whose trigger was let through already.
+     */
+    static final String EXTRA_ACCEPTED = "com.example.myapplication.extra.WAKE_ACCEPTED";
+
+    static final long DEFAULT_WINDOW_MILLIS = 10 * 1000;
+
+    private static final WakeCoalescer INSTANCE = new WakeCoalescer();
+
+    private long windowMillis = DEFAULT_WINDOW_MILLIS;
+    private boolean woken;
+    private long wokenAt;
+
+    private final int[] acceptedCounts = new int[SOURCE_NAMES.length];
+    private final int[] suppressedCounts = new int[SOURCE_NAMES.length];
+
+    static WakeCoalescer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns whether a trigger from the given source at {@code now}, an
+     * {@link android.os.SystemClock#elapsedRealtime()} time, should wake the service.
+     */
+    synchronized boolean tryWake(int source, long now) {
+        // A trigger from before the window, on a clock which was reset, does not fall in it.
+        if (woken && now >= wokenAt && now - wokenAt < windowMillis) {
+            suppressedCounts[source]++;
+            return false;
+        }
+
+        woken = true;
+        wokenAt = now;
+        acceptedCounts[source]++;
+        return true;
+    }
+
+    synchronized long getWindow() {
+        return windowMillis;
+    }
+
+    /**
+     * Sets the window in which further triggers are suppressed, 0 lets every trigger through.
+     */
+    synchronized void setWindow(long windowMillis) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("Window must not be negative");
+        }
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Returns the number of triggers suppressed so far, from both sources.
+     */
+    synchronized int getSuppressedCount() {
+        int count = 0;
+        for (int suppressedCount : suppressedCounts) {
+            count += suppressedCount;
+        }
+        return count;
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.print("  Wake triggers (window ");
+        writer.print(windowMillis);
+        writer.print(" ms):");
+        for (int i = 0; i < SOURCE_NAMES.length; i++) {
+            writer.print(' ');
+            writer.print(SOURCE_NAMES[i]);
+            writer.print('=');
+            writer.print(acceptedCounts[i]);
+            writer.print(" (suppressed ");
+            writer.print(suppressedCounts[i]);
+            writer.print(')');
+        }
+        writer.println();
+    }
+
+}
@@ -10,17 +10,41 @@ package com.example.myapplication;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.AsyncTask;
+import android.os.SystemClock;
 
 /**
+ * Starts {@link TripDetectionService} when a trip starts, unless the {@link WakeCoalescer}
+ * folds the broadcast into a wake up handled already.
+ * <p>
+ * The broadcast is finished off the main thread through {@link #goAsync()}, so a burst of
+ * broadcasts does not queue up behind the main thread of a process which is just starting.
+ *
  * @author Daniel Waslicki
  */
 public class WakeReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        Intent newIntent = new Intent(context, TripDetectionService.class);
-        newIntent.setAction(TripDetectionService.START_AND_INITIALIZE);
-        context.startService(newIntent);
+        final long receivedAt = SystemClock.elapsedRealtime();
+        final Context applicationContext = context.getApplicationContext();
+        final PendingResult result = goAsync();
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (WakeCoalescer.getInstance().tryWake(WakeCoalescer.SOURCE_BROADCAST, receivedAt)) {
+                        Intent newIntent = new Intent(applicationContext, TripDetectionService.class);
+                        newIntent.setAction(TripDetectionService.START_AND_INITIALIZE);
+                        newIntent.putExtra(WakeCoalescer.EXTRA_ACCEPTED, true);
+                        applicationContext.startService(newIntent);
+                    }
+                } finally {
+                    result.finish();
+                }
+            }
+        });
     }
 
 }
@@ -0,0 +1,350 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+/**
+ * In-process HTTP stand-in for the collector of {@link TripEventUploader}, for testing the
+ * upload end to end.
+ * <p>
+ * Listens on the loopback interface only and serves one connection at a time. Every batch is
+ * decoded with {@link TripEventReader}, batches whose events were received already are
+ * acknowledged without being counted again, a new journal generation starts the sequence
+ * numbers over, and the traffic is counted so the pipeline can be
+ * measured end to end, including the bytes on the wire. {@link #failNext(int)} and
+ * {@link #dropNextResponses(int)} make the uploader retry. The collector keeps to the wall
+ * clock, the Robolectric clock is locked while the test thread runs the uploader.
+ *
+ * @author Daniel Waslicki
+ */
+class LocalCollector implements Runnable {
+
+    private static final String TAG = "LocalCollector";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final int TIMEOUT_MILLIS = 10 * 1000;
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+    private static final int MAX_BODY_SIZE = 1024 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final Thread thread;
+
+    // Owned by the collector thread.
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private long wireBytes;
+    private long lastSequence;
+    private long lastGeneration;
+
+    private volatile int batches;
+    private volatile int failedBatches;
+    private volatile int droppedResponses;
+    private volatile int duplicateBatches;
+    private volatile int gaps;
+    private volatile int badRequests;
+    private volatile long events;
+    private volatile long bodyBytes;
+    private volatile long totalWireBytes;
+    private volatile long receiveNanos;
+    private volatile long receivedSequence;
+
+    private volatile int failures;
+    private volatile int drops;
+
+    private volatile boolean stopped;
+
+    private LocalCollector(ServerSocket serverSocket) {
+        this.serverSocket = serverSocket;
+        this.thread = new Thread(this, TAG);
+    }
+
+    /**
+     * Binds a free port on the loopback interface and starts serving.
+     */
+    static LocalCollector start() throws IOException {
+        LocalCollector collector = new LocalCollector(
+                new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1")));
+        collector.thread.start();
+        return collector;
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/events";
+    }
+
+    void stop() {
+        stopped = true;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Answers the next {@code batches} batches with a server error, without taking them.
+     */
+    void failNext(int batches) {
+        failures = batches;
+    }
+
+    /**
+     * Takes the next {@code batches} batches but closes the connection without answering, as
+     * if the response got lost.
+     */
+    void dropNextResponses(int batches) {
+        drops = batches;
+    }
+
+    int getBatches() {
+        return batches;
+    }
+
+    int getFailedBatches() {
+        return failedBatches;
+    }
+
+    int getDroppedResponses() {
+        return droppedResponses;
+    }
+
+    int getDuplicateBatches() {
+        return duplicateBatches;
+    }
+
+    int getGaps() {
+        return gaps;
+    }
+
+    int getBadRequests() {
+        return badRequests;
+    }
+
+    long getEvents() {
+        return events;
+    }
+
+    /**
+     * Returns the sequence number of the last event taken.
+     */
+    long getReceivedSequence() {
+        return receivedSequence;
+    }
+
+    long getBodyBytes() {
+        return bodyBytes;
+    }
+
+    long getWireBytes() {
+        return totalWireBytes;
+    }
+
+    /**
+     * Returns the time spent receiving the batches which were taken.
+     */
+    long getReceiveNanos() {
+        return receiveNanos;
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!stopped) {
+                    Log.w(TAG, "Collector stopped", e);
+                }
+                return;
+            }
+
+            try {
+                socket.setSoTimeout(TIMEOUT_MILLIS);
+                serve(socket);
+            } catch (IOException e) {
+                Log.w(TAG, "Request failed", e);
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        long start = System.nanoTime();
+        wireBytes = 0;
+
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+
+        String requestLine = readLine(in);
+
+        int contentLength = -1;
+        long first = -1;
+        long last = -1;
+        long generation = 0;
+
+        String header;
+        while (!(header = readLine(in)).isEmpty()) {
+            int colon = header.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = header.substring(0, colon).trim();
+            String value = header.substring(colon + 1).trim();
+
+            try {
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    contentLength = Integer.parseInt(value);
+                } else if (TripEventUploader.HEADER_FIRST_SEQUENCE.equalsIgnoreCase(name)) {
+                    first = Long.parseLong(value);
+                } else if (TripEventUploader.HEADER_LAST_SEQUENCE.equalsIgnoreCase(name)) {
+                    last = Long.parseLong(value);
+                } else if (TripEventUploader.HEADER_GENERATION.equalsIgnoreCase(name)) {
+                    generation = Long.parseLong(value);
+                }
+            } catch (NumberFormatException e) {
+                respond(out, 400, "Bad Request");
+                return;
+            }
+        }
+
+        if (!requestLine.startsWith("POST ")) {
+            respond(out, 405, "Method Not Allowed");
+            return;
+        }
+        if (contentLength < 0 || first <= 0 || last < first || generation == 0) {
+            respond(out, 400, "Bad Request");
+            return;
+        }
+        if (contentLength > MAX_BODY_SIZE) {
+            respond(out, 413, "Payload Too Large");
+            return;
+        }
+
+        byte[] body = new byte[contentLength];
+        for (int read = 0; read < contentLength; ) {
+            int count = in.read(body, read, contentLength - read);
+            if (count < 0) {
+                throw new IOException("Request body ends early");
+            }
+            read += count;
+        }
+        wireBytes += contentLength;
+
+        if (generation != lastGeneration) {
+            // The journal was formatted again.
+            lastGeneration = generation;
+            lastSequence = 0;
+        }
+
+        if (last <= lastSequence) {
+            // A retry of a batch whose response got lost.
+            duplicateBatches++;
+            respond(out, 204, "No Content");
+            return;
+        }
+
+        if (failures > 0) {
+            failures--;
+            failedBatches++;
+            respond(out, 503, "Service Unavailable");
+            return;
+        }
+
+        int count = 0;
+        try {
+            TripEventReader reader = new TripEventReader(new ByteArrayInputStream(body));
+            try {
+                while (reader.next()) {
+                    count++;
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            respond(out, 400, "Bad Request");
+            return;
+        }
+
+        if (lastSequence > 0 && first > lastSequence + 1) {
+            // Events overwritten in the journal before they were uploaded.
+            gaps++;
+        }
+        lastSequence = last;
+
+        batches++;
+        events += count;
+        bodyBytes += contentLength;
+        receivedSequence = last;
+
+        if (drops > 0) {
+            drops--;
+            droppedResponses++;
+            return;
+        }
+
+        respond(out, 204, "No Content");
+
+        totalWireBytes += wireBytes;
+        receiveNanos += System.nanoTime() - start;
+    }
+
+    private void respond(OutputStream out, int code, String reason) throws IOException {
+        if (code >= 400 && code < 500) {
+            badRequests++;
+        }
+
+        byte[] response = ("HTTP/1.1 " + code + " " + reason + "\r\n"
+                + "Content-Length: 0\r\n"
+                + "Connection: close\r\n"
+                + "\r\n").getBytes(ASCII);
+        out.write(response);
+        out.flush();
+        wireBytes += response.length;
+    }
+
+    /**
+     * Reads a line of the request head without its terminator.
+     */
+    private String readLine(InputStream in) throws IOException {
+        int length = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Request ends early");
+            }
+            wireBytes++;
+            if (b == '\n') {
+                break;
+            }
+            if (length == line.length) {
+                throw new IOException("Request line too long");
+            }
+            line[length++] = (byte) b;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, ASCII);
+    }
+
+}
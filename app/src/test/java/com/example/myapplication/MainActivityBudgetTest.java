@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.content.ComponentName;
+import android.widget.TextView;
+
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ActivityController;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hard budgets on the trip events {@link MainActivity} takes on the main thread while it is
+ * shown, on top of the budgets of {@link TripDetectionServiceBudgetTest}.
+ * <p>
+ * The activity is bound to the service of a {@link ServiceDriver}. It needs the theme of the
+ * support library, so it runs on the resources merged by the Gradle build.
+ *
+ * @author Daniel Waslicki
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class MainActivityBudgetTest {
+
+    private static final float SPEED_UP = 1000;
+
+    private static final int EVENTS = 50 * 1000;
+
+    private static final double MAX_MAIN_THREAD_ALLOCATED_BYTES_PER_EVENT = 16;
+    private static final double MAX_MAIN_LOOPER_MESSAGES_PER_EVENT = 1;
+    private static final long MAX_MAIN_THREAD_CPU_NANOS_PER_EVENT = 5 * 1000;
+
+    private ServiceDriver driver;
+    private ActivityController<MainActivity> activity;
+
+    @After
+    public void tearDown() {
+        if (activity != null) {
+            driver.run(new Runnable() {
+                @Override
+                public void run() {
+                    activity.pause().stop().destroy();
+                }
+            });
+        }
+        if (driver != null) {
+            driver.destroy();
+        }
+    }
+
+    @Test
+    public void tripEventsStayWithinBudgetsWhileShown() throws Exception {
+        driver = new ServiceDriver(TripDetectionServiceBudgetTest.alternatingTrace(EVENTS), SPEED_UP, false);
+        final SimulatedTripDetectionBackend backend = driver.getBackend();
+
+        Shadows.shadowOf(RuntimeEnvironment.application).setComponentNameAndServiceForBindService(
+                new ComponentName(RuntimeEnvironment.application, TripDetectionService.class), driver.binder);
+        driver.run(new Runnable() {
+            @Override
+            public void run() {
+                activity = Robolectric.buildActivity(MainActivity.class).create().start().resume();
+            }
+        });
+
+        final RecordingListener listener = new RecordingListener();
+        TripDetectionServiceBudgetTest.startListening(driver, listener);
+
+        TripDetectionServiceBudgetTest.Usage before = new TripDetectionServiceBudgetTest.Usage(driver);
+        driver.pumpUntil("the last event", new ServiceDriver.Condition() {
+            @Override
+            public boolean isMet() {
+                // Drawn by the activity at the last frame.
+                TextView tripClass = (TextView) activity.get().findViewById(R.id.trip_class);
+                return backend.getDeliveredEventCount() == EVENTS && listener.tripClass == TripClass.IN_TRANSIT
+                        && "IN TRANSIT".equals(tripClass.getText().toString());
+            }
+        });
+        TripDetectionServiceBudgetTest.Usage used = new TripDetectionServiceBudgetTest.Usage(driver).minus(before);
+
+        assertTrue("Only " + used.events + " events were measured", used.events > EVENTS / 2);
+        assertTrue("Allocated " + used.mainThreadAllocatedBytesPerEvent() + " bytes on the main thread per event",
+                used.mainThreadAllocatedBytesPerEvent() <= MAX_MAIN_THREAD_ALLOCATED_BYTES_PER_EVENT);
+        assertTrue("Posted " + used.messagesPerEvent() + " main looper messages per event",
+                used.messagesPerEvent() <= MAX_MAIN_LOOPER_MESSAGES_PER_EVENT);
+        assertTrue("Spent " + used.cpuNanosPerEvent() + " ns of CPU time on the main thread per event",
+                used.cpuNanosPerEvent() <= MAX_MAIN_THREAD_CPU_NANOS_PER_EVENT);
+    }
+
+}
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+/**
+ * {@link TripDetectionService.TripDetectionServiceListener} which counts what it hears, for
+ * the tests driven by {@link ServiceDriver}. Called on the test thread only.
+ *
+ * @author Daniel Waslicki
+ */
+class RecordingListener implements TripDetectionService.TripDetectionServiceListener {
+
+    int connectedCount;
+    int connectionFailedCount;
+    int malfunctionsChangedCount;
+    int tripClassChangedCount;
+    int commandCompletedCount;
+
+    int malfunctions;
+    int tripClass = TripDetectionService.TRIP_CLASS_NONE;
+    long timestamp;
+
+    /**
+     * {@link System#nanoTime()} of the first trip class change, 0 until there is one.
+     */
+    long firstTripClassNanos;
+
+    @Override
+    public boolean isVisible() {
+        return false;
+    }
+
+    @Override
+    public void onConnected() {
+        connectedCount++;
+    }
+
+    @Override
+    public void onConnectionFailed(int errorCode) {
+        connectionFailedCount++;
+    }
+
+    @Override
+    public void onMalfunctionsChanged(int malfunctions) {
+        malfunctionsChangedCount++;
+        this.malfunctions = malfunctions;
+    }
+
+    @Override
+    public void onTripClassChanged(int tripClass, long timestamp) {
+        if (tripClassChangedCount++ == 0) {
+            firstTripClassNanos = System.nanoTime();
+        }
+        this.tripClass = tripClass;
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public void onCommandCompleted(int command, boolean success) {
+        commandCompletedCount++;
+    }
+
+}
@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.content.Context;
+import android.content.Intent;
+
+import org.robolectric.Robolectric;
+import org.robolectric.RoboSettings;
+import org.robolectric.util.Scheduler;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Runs a {@link TripDetectionService} against a {@link SimulatedTripDetectionBackend} in a
+ * Robolectric test.
+ * <p>
+ * Every looper shares the paused scheduler of the main looper, so the command worker and the
+ * listeners run on the test thread only when it calls {@link #pump()}, while the simulator
+ * reports its events on a thread of its own like the real client. Call {@link #destroy()}
+ * when done.
+ * <p>
+ * The scheduler runs its tasks under its own lock, which every handler and clock call takes,
+ * so a callback which holds a lock of the service while posting would deadlock with a task
+ * waiting for that lock. The callbacks of the simulator and the pumps exclude each other
+ * instead, the simulator still reports from its own thread.
+ *
+ * @author Daniel Waslicki
+ */
+class ServiceDriver {
+
+    static final long TIMEOUT_MILLIS = 10 * 1000;
+
+    interface Condition {
+
+        boolean isMet();
+
+    }
+
+    final TripDetectionService service;
+    final TripDetectionService.TripDetectionServiceBinder binder;
+
+    private final Object lock = new Object();
+
+    private final long startNanos = System.nanoTime();
+    private long advancedMillis;
+
+    private SimulatedTripDetectionBackend backend;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private boolean pumpedUntilMark;
+    private final Runnable pumpMark = new Runnable() {
+        @Override
+        public void run() {
+            pumpedUntilMark = true;
+        }
+    };
+
+    private int pumpedMessages;
+    private long pumpCpuNanos;
+    private long pumpAllocatedBytes;
+
+    ServiceDriver(TripTrace trace, float speedUp, boolean loop) {
+        RoboSettings.setUseGlobalScheduler(true);
+
+        final TripDetectionBackend.Factory factory = SimulatedTripDetectionBackend.factory(trace, speedUp, loop);
+        TripDetectionService.setBackendFactory(new TripDetectionBackend.Factory() {
+            @Override
+            public TripDetectionBackend create(Context context, TripDetectionBackend.Callbacks callbacks) {
+                backend = (SimulatedTripDetectionBackend) factory.create(context, new LockedCallbacks(callbacks));
+                return backend;
+            }
+        });
+
+        service = Robolectric.setupService(TripDetectionService.class);
+        binder = (TripDetectionService.TripDetectionServiceBinder) service.onBind(
+                new Intent(service, TripDetectionService.class));
+
+        // Commands of the test thread wait for the next pump rather than running right away.
+        Robolectric.getForegroundThreadScheduler().pause();
+    }
+
+    SimulatedTripDetectionBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Runs the tasks which are due on the shared scheduler, moving its clock on with the wall
+     * clock so that the delayed tasks come due in step with the simulator.
+     */
+    void pump() {
+        Scheduler scheduler = Robolectric.getForegroundThreadScheduler();
+        long threadId = Thread.currentThread().getId();
+        long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+
+        synchronized (lock) {
+            // Runs the tasks one by one up to a mark at the new time, so that only the tasks
+            // which ran are counted.
+            pumpedUntilMark = false;
+            scheduler.postDelayed(pumpMark, elapsedMillis - advancedMillis);
+
+            long cpuNanosBefore = threads.getCurrentThreadCpuTime();
+            long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+            while (scheduler.runOneTask() && !pumpedUntilMark) {
+                pumpedMessages++;
+            }
+
+            pumpAllocatedBytes += threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            pumpCpuNanos += threads.getCurrentThreadCpuTime() - cpuNanosBefore;
+        }
+        advancedMillis = elapsedMillis;
+    }
+
+    /**
+     * Runs the given calls of the test, such as the lifecycle of an activity, apart from the
+     * callbacks of the simulator.
+     */
+    void run(Runnable runnable) {
+        synchronized (lock) {
+            runnable.run();
+        }
+    }
+
+    /**
+     * Pumps until the condition is met, fails after {@link #TIMEOUT_MILLIS}.
+     */
+    void pumpUntil(String what, Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            pump();
+            if (condition.isMet()) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Timed out waiting for " + what);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Returns the number of tasks run by {@link #pump()} so far.
+     */
+    int getPumpedMessages() {
+        return pumpedMessages;
+    }
+
+    /**
+     * Returns the CPU time the test thread spent running tasks so far.
+     */
+    long getPumpCpuNanos() {
+        return pumpCpuNanos;
+    }
+
+    /**
+     * Returns the bytes the test thread allocated running tasks so far, those of the scheduler
+     * included.
+     */
+    long getPumpAllocatedBytes() {
+        return pumpAllocatedBytes;
+    }
+
+    void connect() throws InterruptedException {
+        binder.connect();
+        pumpUntil("the connection", new Condition() {
+            @Override
+            public boolean isMet() {
+                return binder.isConnected();
+            }
+        });
+    }
+
+    void destroy() {
+        try {
+            synchronized (lock) {
+                service.onDestroy();
+            }
+            pump();
+        } finally {
+            TripDetectionService.setBackendFactory(null);
+            RoboSettings.setUseGlobalScheduler(false);
+        }
+    }
+
+    /**
+     * Returns the thread the simulator replays on, the newest one as threads of earlier tests
+     * may linger.
+     */
+    static Thread findSimulatorThread() {
+        Thread newest = null;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("SimulatedTripDetection".equals(thread.getName()) && thread.isAlive()
+                    && (newest == null || thread.getId() > newest.getId())) {
+                newest = thread;
+            }
+        }
+        if (newest == null) {
+            throw new AssertionError("The simulator is not running");
+        }
+        return newest;
+    }
+
+    /**
+     * Makes the callbacks of the simulator under the lock of the pumps.
+     */
+    private class LockedCallbacks implements TripDetectionBackend.Callbacks {
+
+        private final TripDetectionBackend.Callbacks callbacks;
+
+        LockedCallbacks(TripDetectionBackend.Callbacks callbacks) {
+            this.callbacks = callbacks;
+        }
+
+        @Override
+        public void onConnected() {
+            synchronized (lock) {
+                callbacks.onConnected();
+            }
+        }
+
+        @Override
+        public void onConnectionFailed(int errorCode) {
+            synchronized (lock) {
+                callbacks.onConnectionFailed(errorCode);
+            }
+        }
+
+        @Override
+        public void onMalfunctionsDetected(int malfunctions) {
+            synchronized (lock) {
+                callbacks.onMalfunctionsDetected(malfunctions);
+            }
+        }
+
+        @Override
+        public void onTripClassChanged(long timestamp, int tripClass) {
+            synchronized (lock) {
+                callbacks.onTripClassChanged(timestamp, tripClass);
+            }
+        }
+
+    }
+
+}
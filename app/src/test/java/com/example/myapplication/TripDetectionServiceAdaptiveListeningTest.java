@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.content.Intent;
+
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drops {@link TripDetectionService} to the wake up registration and brings it back with a
+ * {@link SimulatedTripDetectionBackend} replaying faster than real time, so the stationary
+ * deadline only lands right if it is kept on the clock of the backend.
+ *
+ * @author Daniel Waslicki
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TripDetectionServiceAdaptiveListeningTest {
+
+    private static final float SPEED_UP = 1000;
+
+    private static final long STATIONARY_TIMEOUT_MILLIS = 10 * 60 * 1000;
+    private static final long STATIONARY_MILLIS = 30 * 60 * 1000;
+    private static final long IN_TRANSIT_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * How late on the trace clock the drop may be, a tenth of a second at the speed up.
+     */
+    private static final long MAX_LATENESS_MILLIS = 100 * 1000;
+
+    private ServiceDriver driver;
+
+    @After
+    public void tearDown() {
+        if (driver != null) {
+            driver.destroy();
+        }
+    }
+
+    @Test
+    public void dropsToWakeOnlyAtTheStationaryDeadlineAndResumesOnATripStart() throws Exception {
+        driver = new ServiceDriver(stationaryThenInTransitTrace(), SPEED_UP, false);
+        final TripDetectionService.TripDetectionServiceBinder binder = driver.binder;
+
+        final RecordingListener listener = new RecordingListener();
+        binder.addListener(listener);
+        binder.setTripClassFilter(0, 0, 0);
+        binder.setStationaryTimeout(STATIONARY_TIMEOUT_MILLIS);
+
+        driver.connect();
+        binder.startListening();
+        driver.pumpUntil("listening", new ServiceDriver.Condition() {
+            @Override
+            public boolean isMet() {
+                return binder.isListening();
+            }
+        });
+
+        driver.pumpUntil("the wake only mode", new ServiceDriver.Condition() {
+            @Override
+            public boolean isMet() {
+                return binder.getListeningMode() == TripDetectionService.LISTENING_MODE_WAKE_ONLY;
+            }
+        });
+        long droppedAt = driver.getBackend().now();
+
+        assertEquals(TripClass.STATIONARY, listener.tripClass);
+        long deadline = listener.timestamp + STATIONARY_TIMEOUT_MILLIS;
+        assertTrue("Dropped " + (deadline - droppedAt) + " ms before the deadline", droppedAt >= deadline);
+        assertTrue("Dropped " + (droppedAt - deadline) + " ms after the deadline",
+                droppedAt - deadline <= MAX_LATENESS_MILLIS);
+        assertTrue(binder.isConnected());
+
+        final Intent[] wakeUp = new Intent[1];
+        driver.pumpUntil("the wake up", new ServiceDriver.Condition() {
+            @Override
+            public boolean isMet() {
+                wakeUp[0] = Shadows.shadowOf(RuntimeEnvironment.application).getNextStartedService();
+                return wakeUp[0] != null;
+            }
+        });
+        assertEquals(TripDetectionService.START_AND_INITIALIZE, wakeUp[0].getAction());
+        assertEquals(1, driver.getBackend().getWakeUpCount());
+
+        driver.service.onStartCommand(wakeUp[0], 0, 1);
+        driver.pumpUntil("the trip start", new ServiceDriver.Condition() {
+            @Override
+            public boolean isMet() {
+                return listener.tripClass == TripClass.IN_TRANSIT;
+            }
+        });
+
+        assertEquals(TripDetectionService.LISTENING_MODE_LISTENING, binder.getListeningMode());
+        assertTrue(binder.getTimeInListeningMode(TripDetectionService.LISTENING_MODE_WAKE_ONLY) > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnUnknownListeningMode() {
+        driver = new ServiceDriver(stationaryThenInTransitTrace(), SPEED_UP, false);
+        driver.binder.getTimeInListeningMode(TripDetectionService.LISTENING_MODE_WAKE_ONLY + 1);
+    }
+
+    /**
+     * Returns a trace which is stationary for {@link #STATIONARY_MILLIS} and then in transit
+     * with an event every trace second. The stationary period has a single event, so that the
+     * drop is left to the deadline check rather than to a late event.
+     */
+    private static TripTrace stationaryThenInTransitTrace() {
+        TripTrace trace = new TripTrace();
+        trace.add(0, TripTrace.EVENT_TRIP_CLASS, TripClass.STATIONARY);
+        for (long offset = 0; offset < IN_TRANSIT_MILLIS; offset += 1000) {
+            trace.add(STATIONARY_MILLIS + offset, TripTrace.EVENT_TRIP_CLASS, TripClass.IN_TRANSIT);
+        }
+        return trace;
+    }
+
+}
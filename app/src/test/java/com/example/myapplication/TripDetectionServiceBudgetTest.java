@@ -0,0 +1,351 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.content.Intent;
+
+import com.cellepathy.cellematicsservice.common.ConnectionResult;
+import com.cellepathy.cellematicsservice.common.Malfunctions;
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hard budgets on the hot path of {@link TripDetectionService}, a change which makes the
+ * delivery of a trip event, a malfunction report or a reconnect allocate more, post more
+ * messages or take more CPU time fails them.
+ * <p>
+ * The service runs against a {@link SimulatedTripDetectionBackend}, which starts replaying
+ * once the service listens, at a thousand times the real speed. The simulator thread stands
+ * for the binder thread of the client, the test thread for the main thread, which runs the
+ * command worker, the dispatcher and the listeners while {@link ServiceDriver} pumps. The
+ * budgets of the test thread include the share of the Robolectric scheduler, and its time is
+ * CPU time, so that a loaded machine does not fail them.
+ *
+ * @author Daniel Waslicki
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TripDetectionServiceBudgetTest {
+
+    private static final float SPEED_UP = 1000;
+
+    private static final int EVENTS = 50 * 1000;
+    private static final int MALFUNCTION_REPORTS = 20 * 1000;
+    private static final int RECONNECTS = 3;
+
+    private static final double MAX_ALLOCATED_BYTES_PER_EVENT = 8;
+    private static final double MAX_MAIN_THREAD_ALLOCATED_BYTES_PER_EVENT = 8;
+    private static final double MAX_MAIN_LOOPER_MESSAGES_PER_EVENT = 1;
+    private static final long MAX_MAIN_THREAD_CPU_NANOS_PER_EVENT = 5 * 1000;
+
+    /**
+     * Mostly the entries the Robolectric scheduler allocates for the rate limit check, which
+     * is posted and removed as the malfunctions flap.
+     */
+    private static final double MAX_ALLOCATED_BYTES_PER_MALFUNCTION_REPORT = 1024;
+    private static final double MAX_MAIN_LOOPER_MESSAGES_PER_MALFUNCTION_REPORT = 0.01;
+
+    private static final double MAX_ALLOCATED_BYTES_PER_RECONNECT = 128 * 1024;
+    private static final double MAX_MAIN_LOOPER_MESSAGES_PER_RECONNECT = 32;
+    private static final long MAX_MAIN_THREAD_CPU_NANOS_PER_RECONNECT = 50 * 1000 * 1000;
+
+    /**
+     * A regression margin rather than a target, the wall clock of a loaded machine is slow.
+     */
+    private static final long MAX_WAKE_TO_FIRST_EVENT_MILLIS = 2000;
+
+    private ServiceDriver driver;
+
+    @After
+    public void tearDown() {
+        if (driver != null) {
+            driver.destroy();
+        }
+    }
+
+    @Test
+    public void highRateTripEventsStayWithinBudgets() throws Exception {
+        driver = new ServiceDriver(alternatingTrace(EVENTS), SPEED_UP, false);
+        final SimulatedTripDetectionBackend backend = driver.getBackend();
+
+        final RecordingListener listener = new RecordingListener();
+        startListening(driver, listener);
+
+        Usage before = new Usage(driver);
+        driver.pumpUntil("the last event", new ServiceDriver.Condition() {
+            @Override
+            public boolean isMet() {
+                return backend.getDeliveredEventCount() == EVENTS && listener.tripClass == lastClassOf(EVENTS);
+            }
+        });
+        Usage used = new Usage(driver).minus(before);
+
+        assertTrue("Only " + used.events + " events were measured", used.events > EVENTS / 2);
+        assertTrue("Allocated " + used.simulatorAllocatedBytesPerEvent() + " bytes per event",
+                used.simulatorAllocatedBytesPerEvent() <= MAX_ALLOCATED_BYTES_PER_EVENT);
+        assertTrue("Allocated " + used.mainThreadAllocatedBytesPerEvent() + " bytes on the main thread per event",
+                used.mainThreadAllocatedBytesPerEvent() <= MAX_MAIN_THREAD_ALLOCATED_BYTES_PER_EVENT);
+        assertTrue("Posted " + used.messagesPerEvent() + " main looper messages per event",
+                used.messagesPerEvent() <= MAX_MAIN_LOOPER_MESSAGES_PER_EVENT);
+        assertTrue("Spent " + used.cpuNanosPerEvent() + " ns of CPU time on the main thread per event",
+                used.cpuNanosPerEvent() <= MAX_MAIN_THREAD_CPU_NANOS_PER_EVENT);
+        assertTrue(listener.tripClassChangedCount <= used.events);
+    }
+
+    @Test
+    public void flappingMalfunctionsStayWithinBudgets() throws Exception {
+        driver = new ServiceDriver(flappingMalfunctionsTrace(MALFUNCTION_REPORTS), SPEED_UP, false);
+        final SimulatedTripDetectionBackend backend = driver.getBackend();
+
+        final RecordingListener listener = new RecordingListener();
+        startListening(driver, listener);
+
+        Usage before = new Usage(driver);
+        driver.pumpUntil("the last malfunction report", new ServiceDriver.Condition() {
+            @Override
+            public boolean isMet() {
+                return backend.getDeliveredEventCount() == MALFUNCTION_REPORTS;
+            }
+        });
+        Usage used = new Usage(driver).minus(before);
+
+        assertTrue("Only " + used.events + " reports were measured", used.events > MALFUNCTION_REPORTS / 2);
+        assertTrue("Allocated " + used.allocatedBytesPerEvent() + " bytes per malfunction report",
+                used.allocatedBytesPerEvent() <= MAX_ALLOCATED_BYTES_PER_MALFUNCTION_REPORT);
+        assertTrue("Posted " + used.messagesPerEvent() + " main looper messages per malfunction report",
+                used.messagesPerEvent() <= MAX_MAIN_LOOPER_MESSAGES_PER_MALFUNCTION_REPORT);
+
+        // The rate limit holds the flapping back, it ends where it was first announced.
+        assertEquals(1, listener.malfunctionsChangedCount);
+        assertEquals(Malfunctions.GPS_TURNED_OFF, listener.malfunctions);
+    }
+
+    @Test
+    public void reconnectsStayWithinBudgets() throws Exception {
+        TripTrace trace = reconnectingTrace(RECONNECTS);
+        driver = new ServiceDriver(trace, SPEED_UP, false);
+        final TripDetectionService.TripDetectionServiceBinder binder = driver.binder;
+        final SimulatedTripDetectionBackend backend = driver.getBackend();
+
+        final RecordingListener listener = new RecordingListener();
+        startListening(driver, listener);
+
+        final int events = trace.size();
+        Usage before = new Usage(driver);
+        driver.pumpUntil("the last reconnect", new ServiceDriver.Condition() {
+            @Override
+            public boolean isMet() {
+                return backend.getDeliveredEventCount() == events && binder.getReconnectAttemptCount() == RECONNECTS
+                        && binder.isListening() && listener.tripClass == TripClass.STATIONARY;
+            }
+        });
+        Usage used = new Usage(driver).minus(before);
+
+        assertEquals(0, listener.connectionFailedCount);
+        assertEquals(RECONNECTS + 1, listener.connectedCount);
+        assertTrue("Allocated " + used.allocatedBytes / RECONNECTS + " bytes per reconnect",
+                (double) used.allocatedBytes / RECONNECTS <= MAX_ALLOCATED_BYTES_PER_RECONNECT);
+        assertTrue("Posted " + used.messages / RECONNECTS + " main looper messages per reconnect",
+                (double) used.messages / RECONNECTS <= MAX_MAIN_LOOPER_MESSAGES_PER_RECONNECT);
+        assertTrue("Spent " + used.cpuNanos / RECONNECTS + " ns of CPU time on the main thread per reconnect",
+                used.cpuNanos / RECONNECTS <= MAX_MAIN_THREAD_CPU_NANOS_PER_RECONNECT);
+    }
+
+    @Test
+    public void wakeUpDeliversTheFirstEventWithinBudget() throws Exception {
+        driver = new ServiceDriver(tripStartTrace(), SPEED_UP, false);
+        final TripDetectionService.TripDetectionServiceBinder binder = driver.binder;
+
+        final RecordingListener listener = new RecordingListener();
+        binder.addListener(listener);
+        binder.setWakeCoalescingWindow(0);
+
+        // Connected and waiting for a trip start, like the adaptive wake only mode.
+        driver.connect();
+        binder.wakeUpServiceOnInTransitEvent();
+
+        final Intent[] wakeUp = new Intent[1];
+        driver.pumpUntil("the wake up", new ServiceDriver.Condition() {
+            @Override
+            public boolean isMet() {
+                wakeUp[0] = Shadows.shadowOf(RuntimeEnvironment.application).getNextStartedService();
+                return wakeUp[0] != null;
+            }
+        });
+        long wokenNanos = System.nanoTime();
+        assertEquals(TripDetectionService.START_AND_INITIALIZE, wakeUp[0].getAction());
+
+        driver.service.onStartCommand(wakeUp[0], 0, 1);
+        driver.pumpUntil("the first trip class", new ServiceDriver.Condition() {
+            @Override
+            public boolean isMet() {
+                return listener.tripClassChangedCount > 0;
+            }
+        });
+
+        long wakeToFirstEventMillis = (listener.firstTripClassNanos - wokenNanos) / 1000000;
+        assertTrue("First event " + wakeToFirstEventMillis + " ms after the wake up",
+                wakeToFirstEventMillis <= MAX_WAKE_TO_FIRST_EVENT_MILLIS);
+        assertTrue(binder.isListening());
+        assertNotNull(driver.getBackend());
+        assertTrue(driver.getBackend().getWakeUpCount() > 0);
+    }
+
+    /**
+     * Connects with every class passing the filter and nothing scheduled per event, and
+     * starts the replay by listening.
+     */
+    static void startListening(ServiceDriver driver, RecordingListener listener) throws InterruptedException {
+        final TripDetectionService.TripDetectionServiceBinder binder = driver.binder;
+        binder.addListener(listener);
+        binder.setTripClassFilter(0, 0, 0);
+        binder.setStationaryTimeout(0);
+
+        driver.connect();
+        binder.startListening();
+        driver.pumpUntil("listening", new ServiceDriver.Condition() {
+            @Override
+            public boolean isMet() {
+                return binder.isListening();
+            }
+        });
+    }
+
+    /**
+     * Returns a trace which alternates between stationary and in transit every trace
+     * millisecond, ending in transit for an even number of events.
+     */
+    static TripTrace alternatingTrace(int events) {
+        TripTrace trace = new TripTrace();
+        for (int i = 1; i <= events; i++) {
+            trace.add(i, TripTrace.EVENT_TRIP_CLASS, lastClassOf(i));
+        }
+        return trace;
+    }
+
+    /**
+     * Returns a trace which turns the GPS off and on every trace millisecond, an odd number
+     * of reports ending with it off.
+     */
+    private static TripTrace flappingMalfunctionsTrace(int reports) {
+        TripTrace trace = new TripTrace();
+        for (int i = 1; i <= reports; i++) {
+            trace.add(i, TripTrace.EVENT_MALFUNCTIONS, i % 2 == 1 ? Malfunctions.GPS_TURNED_OFF : 0);
+        }
+        return trace;
+    }
+
+    /**
+     * Returns a trace which loses the connection the given number of times. Like the drive of
+     * {@link TripDetectionServiceReplayTest}, each new connection reports the GPS first and
+     * leaves the service time to ask for the trip updates again before a short drive.
+     */
+    private static TripTrace reconnectingTrace(int reconnects) {
+        TripTrace trace = new TripTrace();
+        long offset = 0;
+        for (int i = 0; i <= reconnects; i++) {
+            trace.add(offset, TripTrace.EVENT_MALFUNCTIONS, Malfunctions.GPS_TURNED_OFF);
+            trace.add(offset + 300 * 1000, TripTrace.EVENT_TRIP_CLASS, TripClass.IN_TRANSIT);
+            trace.add(offset + 360 * 1000, TripTrace.EVENT_TRIP_CLASS, TripClass.STATIONARY);
+            if (i < reconnects) {
+                trace.add(offset + 420 * 1000, TripTrace.EVENT_CONNECTION_FAILED, ConnectionResult.SERVICE_STOPPED);
+            }
+            offset += 480 * 1000;
+        }
+        return trace;
+    }
+
+    /**
+     * Returns a trace which starts a trip after a minute and stays in transit for an hour with
+     * an event every trace second, long enough for the woken service to catch some of it.
+     */
+    private static TripTrace tripStartTrace() {
+        TripTrace trace = new TripTrace();
+        trace.add(0, TripTrace.EVENT_TRIP_CLASS, TripClass.STATIONARY);
+        for (long offset = 60 * 1000; offset <= 60 * 60 * 1000; offset += 1000) {
+            trace.add(offset, TripTrace.EVENT_TRIP_CLASS, TripClass.IN_TRANSIT);
+        }
+        return trace;
+    }
+
+    private static int lastClassOf(int events) {
+        return events % 2 == 0 ? TripClass.IN_TRANSIT : TripClass.STATIONARY;
+    }
+
+    /**
+     * What the simulator thread and the test thread used up to a point of a test, or between
+     * two points.
+     */
+    static final class Usage {
+
+        final long events;
+        final long simulatorAllocatedBytes;
+        final long mainThreadAllocatedBytes;
+        final long allocatedBytes;
+        final long messages;
+        final long cpuNanos;
+
+        Usage(ServiceDriver driver) {
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+            events = driver.getBackend().getDeliveredEventCount();
+            simulatorAllocatedBytes = threads.getThreadAllocatedBytes(ServiceDriver.findSimulatorThread().getId());
+            mainThreadAllocatedBytes = driver.getPumpAllocatedBytes();
+            allocatedBytes = simulatorAllocatedBytes + mainThreadAllocatedBytes;
+            messages = driver.getPumpedMessages();
+            cpuNanos = driver.getPumpCpuNanos();
+        }
+
+        private Usage(Usage to, Usage from) {
+            events = to.events - from.events;
+            simulatorAllocatedBytes = to.simulatorAllocatedBytes - from.simulatorAllocatedBytes;
+            mainThreadAllocatedBytes = to.mainThreadAllocatedBytes - from.mainThreadAllocatedBytes;
+            allocatedBytes = to.allocatedBytes - from.allocatedBytes;
+            messages = to.messages - from.messages;
+            cpuNanos = to.cpuNanos - from.cpuNanos;
+        }
+
+        Usage minus(Usage earlier) {
+            return new Usage(this, earlier);
+        }
+
+        double simulatorAllocatedBytesPerEvent() {
+            return (double) simulatorAllocatedBytes / events;
+        }
+
+        double mainThreadAllocatedBytesPerEvent() {
+            return (double) mainThreadAllocatedBytes / events;
+        }
+
+        double allocatedBytesPerEvent() {
+            return (double) allocatedBytes / events;
+        }
+
+        double messagesPerEvent() {
+            return (double) messages / events;
+        }
+
+        long cpuNanosPerEvent() {
+            return cpuNanos / events;
+        }
+
+    }
+
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.Calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loads a history of 100 000 stored events the way {@link HistoryActivity} does, a page of
+ * events per day segmented into trips, and holds the load to a budget.
+ *
+ * @author Daniel Waslicki
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TripDetectionServiceHistoryTest {
+
+    private static final int EVENTS = 100 * 1000;
+
+    /**
+     * Fewer events a day than a page of {@link HistoryActivity} holds, some 58 days in all.
+     */
+    private static final long EVENT_INTERVAL_MILLIS = 50 * 1000;
+
+    private static final long MAX_RANGE_MILLIS = 50;
+    private static final long MAX_MONTH_MILLIS = 500;
+
+    private long newest;
+    private long oldest;
+
+    private ServiceDriver driver;
+
+    @Before
+    public void setUp() throws Exception {
+        newest = System.currentTimeMillis();
+        oldest = newest - (EVENTS - 1) * EVENT_INTERVAL_MILLIS;
+
+        // Stored by an earlier run of the service.
+        File path = new File(RuntimeEnvironment.application.getFilesDir(), TripDetectionService.JOURNAL_FILE_NAME);
+        TripEventJournal journal = TripEventJournal.open(path, TripEventJournal.DEFAULT_CAPACITY);
+        try {
+            for (int i = 0; i < EVENTS; i++) {
+                journal.append(oldest + i * EVENT_INTERVAL_MILLIS, TripEventJournal.TYPE_TRIP_CLASS,
+                        i % 2 == 0 ? TripClass.IN_TRANSIT : TripClass.STATIONARY);
+            }
+        } finally {
+            journal.close();
+        }
+
+        driver = new ServiceDriver(new TripTrace(), 1, false);
+    }
+
+    @After
+    public void tearDown() {
+        if (driver != null) {
+            driver.destroy();
+        }
+    }
+
+    @Test
+    public void loadsAMonthOfHistoryWithinBudget() {
+        TripDetectionService.TripDetectionServiceBinder binder = driver.binder;
+
+        long start = System.nanoTime();
+        long oldestEventTime = binder.getOldestEventTime();
+        long rangeMillis = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(oldest, oldestEventTime);
+        assertTrue("Found the oldest event in " + rangeMillis + " ms", rangeMillis <= MAX_RANGE_MILLIS);
+
+        start = System.nanoTime();
+        int events = 0;
+        int trips = 0;
+        for (int position = 0; position < HistoryActivity.CACHED_DAYS; position++) {
+            TripEventPage page = loadDay(binder, position);
+            assertFalse(page.isTruncated());
+            events += page.size();
+            trips += segment(page, dayStart(position - 1));
+        }
+        long monthMillis = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(countEvents(dayStart(HistoryActivity.CACHED_DAYS - 1), dayStart(-1)), events);
+        assertTrue(trips > 0);
+        assertTrue("Loaded a month of " + events + " events in " + monthMillis + " ms",
+                monthMillis <= MAX_MONTH_MILLIS);
+    }
+
+    @Test
+    public void pagesThroughTheWholeHistory() {
+        TripDetectionService.TripDetectionServiceBinder binder = driver.binder;
+
+        int events = 0;
+        for (int position = 0; dayStart(position - 1) > oldest; position++) {
+            events += loadDay(binder, position).size();
+        }
+
+        assertEquals(EVENTS, events);
+    }
+
+    private static TripEventPage loadDay(TripDetectionService.TripDetectionServiceBinder binder, int position) {
+        TripEventPage page = binder.getEvents(dayStart(position), dayStart(position - 1),
+                HistoryActivity.MAX_EVENTS_PER_DAY);
+        assertTrue(page.size() <= HistoryActivity.MAX_EVENTS_PER_DAY);
+        return page;
+    }
+
+    /**
+     * Derives the trips of a day like {@link HistoryActivity}, returns their number.
+     */
+    private int segment(TripEventPage page, long to) {
+        TripSegmenter segmenter = new TripSegmenter(HistoryActivity.MAX_TRIPS_PER_DAY);
+        for (int i = 0; i < page.size(); i++) {
+            if (page.getType(i) == TripEventPage.TYPE_TRIP_CLASS) {
+                segmenter.onTripClassChanged(page.getTimestamp(i), page.getValue(i));
+            }
+        }
+        segmenter.advance(Math.min(to, newest));
+        return segmenter.getRecentTrips(HistoryActivity.MAX_TRIPS_PER_DAY).size()
+                + (segmenter.getCurrentTrip() != null ? 1 : 0);
+    }
+
+    private int countEvents(long from, long to) {
+        int count = 0;
+        for (int i = 0; i < EVENTS; i++) {
+            long timestamp = oldest + i * EVENT_INTERVAL_MILLIS;
+            if (timestamp >= from && timestamp < to) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the start of the day at the given position of the history, today is at 0.
+     */
+    private static long dayStart(int position) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.DAY_OF_MONTH, -position);
+        return calendar.getTimeInMillis();
+    }
+
+}
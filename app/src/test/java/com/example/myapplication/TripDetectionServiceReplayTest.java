@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import com.cellepathy.cellematicsservice.common.ConnectionResult;
+import com.cellepathy.cellematicsservice.common.Malfunctions;
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replays a recorded drive through {@link TripDetectionService} with a
+ * {@link SimulatedTripDetectionBackend}, including a lost connection and a malfunction, and
+ * checks what reaches the listeners and the journal.
+ *
+ * @author Daniel Waslicki
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TripDetectionServiceReplayTest {
+
+    private static final float SPEED_UP = 1000;
+
+    /**
+     * Parked, then a drive which turns the GPS off and loses the connection on the way.
+     */
+    private static final String DRIVE =
+            "# parked, then a drive\n"
+                    + "0      CLASS " + TripClass.UNKNOWN + "\n"
+                    + "60000  CLASS " + TripClass.STATIONARY + "\n"
+                    + "120000 CLASS " + TripClass.IN_TRANSIT + "\n"
+                    + "130000 MALFUNCTIONS " + Malfunctions.GPS_TURNED_OFF + "\n"
+                    + "160000 CLASS " + TripClass.IN_TRANSIT + "\n"
+                    + "\n"
+                    + "# the connection is lost and restored in the background, the new one reports\n"
+                    + "# the GPS first and leaves the service time to ask for the trip updates again\n"
+                    + "180000 FAIL " + ConnectionResult.SERVICE_STOPPED + "\n"
+                    + "240000 MALFUNCTIONS " + Malfunctions.GPS_TURNED_OFF + "\n"
+                    + "540000 CLASS " + TripClass.IN_TRANSIT + "\n"
+                    + "600000 CLASS " + TripClass.STATIONARY + "\n";
+
+    private static final int DRIVE_TRIP_CLASSES = 6;
+
+    private ServiceDriver driver;
+
+    @After
+    public void tearDown() {
+        if (driver != null) {
+            driver.destroy();
+        }
+    }
+
+    @Test
+    public void replaysADriveWithALostConnection() throws Exception {
+        TripTrace trace = TripTrace.parse(new StringReader(DRIVE));
+        assertEquals(DRIVE_TRIP_CLASSES + 3, trace.size());
+
+        driver = new ServiceDriver(trace, SPEED_UP, false);
+        final TripDetectionService.TripDetectionServiceBinder binder = driver.binder;
+        final SimulatedTripDetectionBackend backend = driver.getBackend();
+
+        final RecordingListener listener = new RecordingListener();
+        binder.addListener(listener);
+        binder.setTripClassFilter(0, 0, 0);
+
+        driver.connect();
+        binder.startListening();
+        driver.pumpUntil("listening", new ServiceDriver.Condition() {
+            @Override
+            public boolean isMet() {
+                return binder.isListening();
+            }
+        });
+
+        // The replay waits for the service to listen, nothing is missed.
+        final int events = trace.size();
+        driver.pumpUntil("the end of the drive", new ServiceDriver.Condition() {
+            @Override
+            public boolean isMet() {
+                return backend.getDeliveredEventCount() == events && listener.tripClass == TripClass.STATIONARY;
+            }
+        });
+
+        assertEquals(0, backend.getWakeUpCount());
+        assertEquals(1, binder.getReconnectAttemptCount());
+        assertEquals(0, listener.connectionFailedCount);
+        // Told of the malfunction and of its clear with the lost connection, the report of the
+        // new connection is held back by the rate limit.
+        assertEquals(2, listener.malfunctionsChangedCount);
+        assertEquals(0, listener.malfunctions);
+        assertEquals(trace.offsetAt(trace.size() - 1) - trace.offsetAt(1),
+                listener.timestamp - timestampOfFirstStationary(binder));
+
+        TripEventPage page = binder.getEvents(0, Long.MAX_VALUE, TripEventPage.MAX_SIZE);
+        int tripClasses = 0;
+        for (int i = 0; i < page.size(); i++) {
+            if (page.getType(i) == TripEventPage.TYPE_TRIP_CLASS) {
+                tripClasses++;
+            }
+        }
+        assertEquals(DRIVE_TRIP_CLASSES, tripClasses);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAnUnknownEvent() throws Exception {
+        TripTrace.parse(new StringReader("0 CLASS " + TripClass.STATIONARY + "\n1000 PARK 1\n"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAMalformedLine() throws Exception {
+        TripTrace.parse(new StringReader("0 CLASS\n"));
+    }
+
+    private static long timestampOfFirstStationary(TripDetectionService.TripDetectionServiceBinder binder) {
+        TripEventPage page = binder.getEvents(0, Long.MAX_VALUE, TripEventPage.MAX_SIZE);
+        for (int i = 0; i < page.size(); i++) {
+            if (page.getType(i) == TripEventPage.TYPE_TRIP_CLASS && page.getValue(i) == TripClass.STATIONARY) {
+                return page.getTimestamp(i);
+            }
+        }
+        throw new AssertionError("No stationary event in the journal");
+    }
+
+}
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Throughput, allocation and recovery of {@link TripEventJournal} on the JVM.
+ *
+ * @author Daniel Waslicki
+ */
+public class TripEventJournalTest {
+
+    private static final int CAPACITY = TripEventJournal.DEFAULT_CAPACITY;
+
+    private static final int WARM_UP_EVENTS = 50 * 1000;
+    private static final int EVENTS = 500 * 1000;
+
+    private static final long MIN_APPENDS_PER_SECOND = 1000 * 1000;
+    private static final double MAX_ALLOCATED_BYTES_PER_APPEND = 0.01;
+
+    private static final long TIMESTAMP = 1466000000000L;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File path;
+    private TripEventJournal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        path = folder.newFile("journal");
+        journal = TripEventJournal.open(path, CAPACITY);
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+    }
+
+    @Test
+    public void appendsWithinBudget() {
+        append(WARM_UP_EVENTS);
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        append(EVENTS);
+        long nanos = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        long appendsPerSecond = EVENTS * 1000000000L / nanos;
+        double allocatedPerAppend = (double) allocated / EVENTS;
+
+        assertTrue("Appended " + appendsPerSecond + " events per second",
+                appendsPerSecond >= MIN_APPENDS_PER_SECOND);
+        assertTrue("Allocated " + allocatedPerAppend + " bytes per append",
+                allocatedPerAppend <= MAX_ALLOCATED_BYTES_PER_APPEND);
+        assertEquals(WARM_UP_EVENTS + EVENTS + 1, journal.getNextSequence());
+    }
+
+    @Test
+    public void recoversTheEventsOfADeadProcess() throws Exception {
+        append(1000);
+
+        // The process dies without closing the journal, its mapping is all that was written.
+        TripEventJournal recovered = TripEventJournal.open(path, CAPACITY);
+        try {
+            assertEquals(journal.getGeneration(), recovered.getGeneration());
+            assertEquals(1001, recovered.getNextSequence());
+            assertEquals(1, recovered.getFirstSequence());
+
+            TripEventJournal.Entry entry = new TripEventJournal.Entry();
+            for (long sequence = 1; sequence <= 1000; sequence++) {
+                assertTrue(recovered.read(sequence, entry));
+                assertEquals(TIMESTAMP + sequence - 1, entry.timestamp);
+                assertEquals(TripEventJournal.TYPE_TRIP_CLASS, entry.type);
+                assertEquals(classOf(sequence - 1), entry.value);
+            }
+            assertFalse(recovered.read(1001, entry));
+        } finally {
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void keepsTheNewestEventsOnceFull() throws Exception {
+        int events = CAPACITY + CAPACITY / 2;
+        append(events);
+
+        journal.close();
+        journal = TripEventJournal.open(path, CAPACITY);
+
+        assertEquals(events + 1, journal.getNextSequence());
+        assertEquals(events - CAPACITY + 1, journal.getFirstSequence());
+        assertEquals(TIMESTAMP + events - CAPACITY, journal.getOldestTimestamp());
+
+        TripEventJournal.Entry entry = new TripEventJournal.Entry();
+        assertFalse(journal.read(journal.getFirstSequence() - 1, entry));
+        assertTrue(journal.read(journal.getFirstSequence(), entry));
+        assertTrue(journal.read(events, entry));
+        assertEquals(TIMESTAMP + events - 1, entry.timestamp);
+    }
+
+    @Test
+    public void keepsTheEventsWhenResized() throws Exception {
+        File resizedPath = folder.newFile("resized");
+        TripEventJournal small = TripEventJournal.open(resizedPath, 1000);
+        for (int i = 0; i < 1500; i++) {
+            small.append(TIMESTAMP + i, TripEventJournal.TYPE_TRIP_CLASS, classOf(i));
+        }
+        long generation = small.getGeneration();
+        small.close();
+
+        TripEventJournal large = TripEventJournal.open(resizedPath, 4000);
+        try {
+            assertEquals(generation, large.getGeneration());
+            assertEquals(1501, large.getNextSequence());
+            assertEquals(TIMESTAMP + 500, large.getOldestTimestamp());
+
+            TripEventJournal.Entry entry = new TripEventJournal.Entry();
+            assertFalse(large.read(500, entry));
+            for (long sequence = 501; sequence <= 1500; sequence++) {
+                assertTrue(large.read(sequence, entry));
+                assertEquals(TIMESTAMP + sequence - 1, entry.timestamp);
+                assertEquals(classOf(sequence - 1), entry.value);
+            }
+
+            assertEquals(1501, large.append(TIMESTAMP + 1500, TripEventJournal.TYPE_TRIP_CLASS, classOf(1500)));
+        } finally {
+            large.close();
+        }
+
+        // Shrunk again, only the newest records fit.
+        small = TripEventJournal.open(resizedPath, 100);
+        try {
+            assertEquals(generation, small.getGeneration());
+            assertEquals(1502, small.getNextSequence());
+            assertEquals(TIMESTAMP + 1401, small.getOldestTimestamp());
+        } finally {
+            small.close();
+        }
+        assertFalse(new File(resizedPath.getPath() + ".resized").exists());
+    }
+
+    private void append(int events) {
+        long next = journal.getNextSequence() - 1;
+        for (int i = 0; i < events; i++) {
+            long index = next + i;
+            journal.append(TIMESTAMP + index, TripEventJournal.TYPE_TRIP_CLASS, classOf(index));
+        }
+    }
+
+    private static int classOf(long index) {
+        return index % 2 == 0 ? TripClass.STATIONARY : TripClass.IN_TRANSIT;
+    }
+
+}
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RoboSettings;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads a journal to a {@link LocalCollector} end to end and checks that every event arrives
+ * exactly once, also when the collector fails and responses get lost.
+ * <p>
+ * The looper of the uploader shares the scheduler of the main looper, so the uploader runs on
+ * the test thread and its retries come due as the test moves the clock on.
+ *
+ * @author Daniel Waslicki
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TripEventUploaderTest {
+
+    private static final int EVENTS = 5 * 1000;
+
+    private static final long STEP_MILLIS = 10 * 1000;
+    private static final long MAX_UPLOAD_MILLIS = 4 * 60 * 60 * 1000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File path;
+    private TripEventJournal journal;
+    private LocalCollector collector;
+    private TripEventUploader uploader;
+
+    @Before
+    public void setUp() throws Exception {
+        RoboSettings.setUseGlobalScheduler(true);
+
+        path = folder.newFile("journal");
+        journal = TripEventJournal.open(path, TripEventJournal.DEFAULT_CAPACITY);
+        collector = LocalCollector.start();
+        uploader = new TripEventUploader(RuntimeEnvironment.application, journal, new URL(collector.getUrl()));
+        uploader.start();
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            uploader.stop();
+            ShadowLooper.idleMainLooper();
+            collector.stop();
+            journal.close();
+        } finally {
+            RoboSettings.setUseGlobalScheduler(false);
+        }
+    }
+
+    @Test
+    public void everyEventArrivesOnce() {
+        append(EVENTS);
+        uploadAll();
+
+        assertEquals(EVENTS, collector.getEvents());
+        assertEquals(EVENTS, collector.getReceivedSequence());
+        assertEquals(0, collector.getGaps());
+        assertEquals(0, collector.getBadRequests());
+        assertEquals(0, collector.getDuplicateBatches());
+        assertEquals(0, collector.getFailedBatches());
+    }
+
+    @Test
+    public void retriedBatchesArriveOnce() {
+        collector.failNext(2);
+        collector.dropNextResponses(1);
+
+        append(EVENTS);
+        uploadAll();
+
+        assertEquals(2, collector.getFailedBatches());
+        assertEquals(1, collector.getDroppedResponses());
+        // The batch whose response got lost was posted again and acknowledged only.
+        assertEquals(1, collector.getDuplicateBatches());
+
+        assertEquals(EVENTS, collector.getEvents());
+        assertEquals(EVENTS, collector.getReceivedSequence());
+        assertEquals(0, collector.getGaps());
+        assertEquals(0, collector.getBadRequests());
+    }
+
+    @Test
+    public void eventsAppendedDuringRetriesArriveOnce() {
+        collector.failNext(1);
+
+        append(EVENTS);
+        ShadowLooper.idleMainLooper();
+        assertEquals(1, collector.getFailedBatches());
+
+        // More events while the uploader backs off, they go out with the backlog.
+        append(EVENTS);
+        uploadAll();
+
+        assertEquals(2 * EVENTS, collector.getEvents());
+        assertEquals(2 * EVENTS, collector.getReceivedSequence());
+        assertEquals(0, collector.getGaps());
+        assertEquals(0, collector.getDuplicateBatches());
+    }
+
+    @Test
+    public void eventsOfAFormattedJournalArriveOnce() throws Exception {
+        append(EVENTS);
+        uploadAll();
+
+        uploader.stop();
+        ShadowLooper.idleMainLooper();
+        journal.close();
+        assertTrue(path.delete());
+
+        // The new journal is ahead of the old cursor before the uploader first looks at it.
+        journal = TripEventJournal.open(path, TripEventJournal.DEFAULT_CAPACITY);
+        append(2 * EVENTS);
+        uploader = new TripEventUploader(RuntimeEnvironment.application, journal, new URL(collector.getUrl()));
+        uploader.start();
+        uploadAll();
+
+        assertEquals(3 * EVENTS, collector.getEvents());
+        assertEquals(2 * EVENTS, collector.getReceivedSequence());
+        assertEquals(0, collector.getGaps());
+        assertEquals(0, collector.getDuplicateBatches());
+    }
+
+    private void append(int events) {
+        long timestamp = System.currentTimeMillis();
+        for (int i = 0; i < events; i++) {
+            journal.append(timestamp + i, TripEventJournal.TYPE_TRIP_CLASS,
+                    i % 2 == 0 ? TripClass.STATIONARY : TripClass.IN_TRANSIT);
+            uploader.onEventsAppended();
+        }
+    }
+
+    /**
+     * Runs the uploader and moves the clock on for its retries until the collector has taken
+     * the whole journal.
+     */
+    private void uploadAll() {
+        long last = journal.getNextSequence() - 1;
+
+        ShadowLooper.idleMainLooper();
+        for (long elapsed = 0; collector.getReceivedSequence() < last; elapsed += STEP_MILLIS) {
+            assertTrue("Received " + collector.getReceivedSequence() + " of " + last + " events",
+                    elapsed < MAX_UPLOAD_MILLIS);
+            ShadowLooper.idleMainLooper(STEP_MILLIS);
+        }
+
+        // Nothing is sent again once the collector has taken everything.
+        int duplicates = collector.getDuplicateBatches();
+        ShadowLooper.idleMainLooper(MAX_UPLOAD_MILLIS);
+        assertEquals(duplicates, collector.getDuplicateBatches());
+    }
+
+}
@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package android.os;
+
+/**
+ * Stand-in for the Android class on the JVM, the part {@code TripEventDispatcher} uses.
+ *
+ * @author Daniel Waslicki
+ */
+public class Handler {
+
+    public interface Callback {
+
+        boolean handleMessage(Message msg);
+
+    }
+
+    private final Looper looper;
+    private final Callback callback;
+
+    public Handler(Looper looper, Callback callback) {
+        this.looper = looper;
+        this.callback = callback;
+    }
+
+    public final Message obtainMessage(int what, int arg1, int arg2, Object obj) {
+        Message message = Message.obtain();
+        message.target = this;
+        message.what = what;
+        message.arg1 = arg1;
+        message.arg2 = arg2;
+        message.obj = obj;
+        return message;
+    }
+
+    public final boolean sendMessage(Message msg) {
+        msg.target = this;
+        looper.enqueue(msg);
+        return true;
+    }
+
+    /**
+     * Removes every queued message of this handler, tokens are not supported.
+     */
+    public final void removeCallbacksAndMessages(Object token) {
+        looper.remove(this);
+    }
+
+    public void dispatchMessage(Message msg) {
+        if (callback != null) {
+            callback.handleMessage(msg);
+        }
+    }
+
+}
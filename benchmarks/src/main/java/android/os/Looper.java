@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package android.os;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Stand-in for the Android class on the JVM, a queue of messages which the benchmark handles
+ * by calling {@link #drain()} rather than a thread looping over it.
+ *
+ * @author Daniel Waslicki
+ */
+public final class Looper {
+
+    private final ArrayDeque<Message> queue = new ArrayDeque<>();
+
+    /**
+     * Handles the queued messages on the calling thread, the ones queued meanwhile included.
+     *
+     * @return the number of messages handled
+     */
+    public int drain() {
+        int handled = 0;
+        while (true) {
+            Message message;
+            synchronized (this) {
+                message = queue.poll();
+            }
+            if (message == null) {
+                return handled;
+            }
+            message.target.dispatchMessage(message);
+            message.recycle();
+            handled++;
+        }
+    }
+
+    synchronized void enqueue(Message message) {
+        queue.add(message);
+    }
+
+    synchronized void remove(Handler handler) {
+        Iterator<Message> messages = queue.iterator();
+        while (messages.hasNext()) {
+            Message message = messages.next();
+            if (message.target == handler) {
+                messages.remove();
+                message.recycle();
+            }
+        }
+    }
+
+}
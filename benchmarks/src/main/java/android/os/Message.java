@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package android.os;
+
+/**
+ * Stand-in for the Android class on the JVM, pooled like the original so that the allocations
+ * measured are those of the app.
+ *
+ * @author Daniel Waslicki
+ */
+public final class Message {
+
+    private static final int MAX_POOL_SIZE = 50;
+
+    private static final Object POOL_LOCK = new Object();
+    private static Message pool;
+    private static int poolSize;
+
+    public int what;
+    public int arg1;
+    public int arg2;
+    public Object obj;
+
+    Handler target;
+    private Message next;
+
+    public static Message obtain() {
+        synchronized (POOL_LOCK) {
+            Message message = pool;
+            if (message != null) {
+                pool = message.next;
+                message.next = null;
+                poolSize--;
+                return message;
+            }
+        }
+        return new Message();
+    }
+
+    void recycle() {
+        what = 0;
+        arg1 = 0;
+        arg2 = 0;
+        obj = null;
+        target = null;
+
+        synchronized (POOL_LOCK) {
+            if (poolSize < MAX_POOL_SIZE) {
+                next = pool;
+                pool = this;
+                poolSize++;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,24 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package android.util;
+
+/**
+ * Stand-in for the Android class on the JVM, which drops the messages.
+ *
+ * @author Daniel Waslicki
+ */
+public final class Log {
+
+    private Log() {
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import com.cellepathy.cellematicsservice.common.Malfunctions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a malfunction report passing {@link HealthMonitor} the way the service handles it,
+ * an update of the bitmask followed by a poll for the change to announce.
+ *
+ * @author Daniel Waslicki
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HealthMonitorBenchmark {
+
+    private static final int[] REPORTS = {
+            0,
+            Malfunctions.GPS_TURNED_OFF,
+            Malfunctions.GPS_TURNED_OFF | Malfunctions.ENABLED_MOCK_LOCATIONS,
+            Malfunctions.ENABLED_MOCK_LOCATIONS,
+    };
+
+    private final HealthMonitor monitor = new HealthMonitor();
+    private long now;
+    private int index;
+
+    /**
+     * Reports which repeat the previous one, as most reports do.
+     */
+    @Benchmark
+    public int reportUnchanged() {
+        now += 1000;
+        if (!monitor.update(Malfunctions.GPS_TURNED_OFF, now)) {
+            return HealthMonitor.NOTHING_TO_ANNOUNCE;
+        }
+        return monitor.poll(now);
+    }
+
+    /**
+     * Malfunctions flapping faster than the announcement interval, most changes are held
+     * back.
+     */
+    @Benchmark
+    public int reportFlapping() {
+        now += 1000;
+        if (!monitor.update(REPORTS[index++ & 3], now)) {
+            return HealthMonitor.NOTHING_TO_ANNOUNCE;
+        }
+        return monitor.poll(now);
+    }
+
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a raw trip class change passing {@link HysteresisTripClassFilter}, the first stage
+ * of every event on its way to the listeners.
+ *
+ * @author Daniel Waslicki
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HysteresisTripClassFilterBenchmark {
+
+    private static final int[] CLASSES = {
+            TripClass.IN_TRANSIT, TripClass.STATIONARY, TripClass.IN_TRANSIT, TripClass.UNKNOWN,
+    };
+
+    private final HysteresisTripClassFilter filter = new HysteresisTripClassFilter();
+    private long timestamp;
+    private int index;
+
+    /**
+     * Classes flapping faster than the dwell times, every change is held back and the
+     * candidate replaced.
+     */
+    @Benchmark
+    public boolean offerFlapping() {
+        timestamp += 1000;
+        return filter.offer(timestamp, CLASSES[index++ & 3]);
+    }
+
+    /**
+     * Classes which settle for longer than the dwell times, every change passes once polled.
+     */
+    @Benchmark
+    public boolean offerSettled() {
+        timestamp += 2 * HysteresisTripClassFilter.DEFAULT_UNKNOWN_HOLD_MILLIS;
+        filter.offer(timestamp, CLASSES[index++ & 3]);
+        return filter.poll(timestamp + HysteresisTripClassFilter.DEFAULT_UNKNOWN_HOLD_MILLIS);
+    }
+
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording into a {@link LatencyHistogram} from one thread and from several at once,
+ * as the listener threads of the service do, and of reading a percentile.
+ *
+ * @author Daniel Waslicki
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LatencyHistogramBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+
+        final LatencyHistogram histogram = new LatencyHistogram("shared");
+
+    }
+
+    @State(Scope.Thread)
+    public static class Local {
+
+        final LatencyHistogram histogram = new LatencyHistogram("local");
+        long millis;
+
+        /**
+         * Returns durations spread over the buckets, mostly short ones.
+         */
+        long nextMillis() {
+            millis = (millis * 31 + 7) & 0xffff;
+            return millis >>> (millis & 15);
+        }
+
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void record(Local local) {
+        local.histogram.record(local.nextMillis());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended(Shared shared, Local local) {
+        shared.histogram.record(local.nextMillis());
+    }
+
+    @Benchmark
+    public long percentile(Local local) {
+        local.histogram.record(local.nextMillis());
+        return local.histogram.percentile(99);
+    }
+
+}
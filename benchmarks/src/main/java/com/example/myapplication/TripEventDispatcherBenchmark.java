@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.os.Looper;
+
+import com.cellepathy.cellematicsservice.common.Malfunctions;
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of an event travelling through a {@link TripEventDispatcher} to its listener, posted
+ * and then handled on the looper, with trip classes delivered one by one and in bursts.
+ * <p>
+ * The dispatcher runs on the stand-ins for {@link android.os.Handler} and {@link Looper} of
+ * this module, which pool their messages like Android does.
+ *
+ * @author Daniel Waslicki
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TripEventDispatcherBenchmark {
+
+    private static final int BURST = 16;
+
+    /**
+     * Listener which keeps the last values it was called with.
+     */
+    static final class CountingListener implements TripEventListener {
+
+        int tripClass;
+        long timestamp;
+        int malfunctions;
+        int calls;
+
+        @Override
+        public boolean isVisible() {
+            return false;
+        }
+
+        @Override
+        public void onConnected() {
+            calls++;
+        }
+
+        @Override
+        public void onConnectionFailed(int errorCode) {
+            calls++;
+        }
+
+        @Override
+        public void onMalfunctionsChanged(int malfunctions) {
+            this.malfunctions = malfunctions;
+            calls++;
+        }
+
+        @Override
+        public void onTripClassChanged(int tripClass, long timestamp) {
+            this.tripClass = tripClass;
+            this.timestamp = timestamp;
+            calls++;
+        }
+
+        @Override
+        public void onCommandCompleted(int command, boolean success) {
+            calls++;
+        }
+
+    }
+
+    @Param({"false", "true"})
+    public boolean metricsEnabled;
+
+    private final Looper looper = new Looper();
+    private final CountingListener listener = new CountingListener();
+    private final ServiceMetrics metrics = new ServiceMetrics();
+
+    private TripEventDispatcher coalescing;
+    private TripEventDispatcher queueing;
+    private long timestamp;
+
+    @Setup
+    public void setUp() {
+        metrics.setEnabled(metricsEnabled);
+        coalescing = new TripEventDispatcher(looper, listener, false, true, metrics);
+        queueing = new TripEventDispatcher(looper, listener, false, false, metrics);
+    }
+
+    /**
+     * A change handled before the next one, as at the usual rate of the client.
+     */
+    @Benchmark
+    public int tripClass() {
+        timestamp += 1000;
+        coalescing.dispatchTripClassChanged(classOf(timestamp), timestamp);
+        looper.drain();
+        return listener.tripClass;
+    }
+
+    /**
+     * A burst of changes handled at once, only the newest reaches the listener.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int tripClassBurstCoalesced() {
+        for (int i = 0; i < BURST; i++) {
+            timestamp += 1000;
+            coalescing.dispatchTripClassChanged(classOf(timestamp), timestamp);
+        }
+        looper.drain();
+        return listener.tripClass;
+    }
+
+    /**
+     * The same burst for a listener which keeps every change.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int tripClassBurstQueued() {
+        for (int i = 0; i < BURST; i++) {
+            timestamp += 1000;
+            queueing.dispatchTripClassChanged(classOf(timestamp), timestamp);
+        }
+        looper.drain();
+        return listener.tripClass;
+    }
+
+    /**
+     * Malfunction changes, which are delivered in order and never coalesced.
+     */
+    @Benchmark
+    public int malfunctions() {
+        timestamp += 1000;
+        coalescing.dispatchMalfunctionsChanged((timestamp & 1000) != 0 ? Malfunctions.GPS_TURNED_OFF : 0);
+        looper.drain();
+        return listener.malfunctions;
+    }
+
+    static int classOf(long timestamp) {
+        return (timestamp & 1000) != 0 ? TripClass.IN_TRANSIT : TripClass.STATIONARY;
+    }
+
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import com.cellepathy.cellematicsservice.common.Malfunctions;
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per event of encoding an upload batch with {@link TripEventExporter}, with and without
+ * deflating, the way {@link TripEventUploader} builds its batches.
+ *
+ * @author Daniel Waslicki
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TripEventExporterBenchmark {
+
+    private static final int EVENTS = 2000;
+
+    @Param({"false", "true"})
+    public boolean deflate;
+
+    private final long[] timestamps = new long[EVENTS];
+    private final int[] types = new int[EVENTS];
+    private final int[] values = new int[EVENTS];
+
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream(16 * 1024);
+
+    /**
+     * A batch of trip class changes a few minutes apart with an occasional malfunction.
+     */
+    @Setup
+    public void setUp() {
+        long timestamp = 1466000000000L;
+        for (int i = 0; i < EVENTS; i++) {
+            timestamp += 60 * 1000 + (i * 7919) % (5 * 60 * 1000);
+            timestamps[i] = timestamp;
+            if (i % 50 == 49) {
+                types[i] = TripEventJournal.TYPE_MALFUNCTIONS;
+                values[i] = i % 100 == 99 ? 0 : Malfunctions.GPS_TURNED_OFF;
+            } else {
+                types[i] = TripEventJournal.TYPE_TRIP_CLASS;
+                values[i] = i % 3 == 0 ? TripClass.UNKNOWN : i % 2 == 0 ? TripClass.STATIONARY : TripClass.IN_TRANSIT;
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public int encodeBatch() throws IOException {
+        batch.reset();
+        TripEventExporter exporter = new TripEventExporter(batch, deflate);
+        try {
+            for (int i = 0; i < EVENTS; i++) {
+                exporter.write(timestamps[i], types[i], values[i]);
+            }
+            exporter.finish();
+        } finally {
+            exporter.release();
+        }
+        return batch.size();
+    }
+
+}
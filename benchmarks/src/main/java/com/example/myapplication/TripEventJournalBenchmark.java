@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of appending a trip class change to a {@link TripEventJournal}, which the service does
+ * for every raw event, and of reading the newest one back the way the uploader does.
+ *
+ * @author Daniel Waslicki
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TripEventJournalBenchmark {
+
+    private final TripEventJournal.Entry entry = new TripEventJournal.Entry();
+
+    private File path;
+    private TripEventJournal journal;
+    private long timestamp = 1466000000000L;
+
+    @Setup
+    public void setUp() throws IOException {
+        path = File.createTempFile("journal", null);
+        journal = TripEventJournal.open(path, TripEventJournal.DEFAULT_CAPACITY);
+        append();
+    }
+
+    @TearDown
+    public void tearDown() {
+        journal.close();
+        path.delete();
+    }
+
+    /**
+     * Appends in a full ring once the warm up wrapped it, as on a device after a few weeks.
+     */
+    @Benchmark
+    public long append() {
+        timestamp += 1000;
+        return journal.append(timestamp, TripEventJournal.TYPE_TRIP_CLASS,
+                TripEventDispatcherBenchmark.classOf(timestamp));
+    }
+
+    @Benchmark
+    public boolean readNewest() {
+        return journal.read(journal.getNextSequence() - 1, entry);
+    }
+
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import android.os.Looper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a trip class change fanning out to the listeners of a {@link TripListenerRegistry},
+ * the way the service notifies them, and of listeners registering and unregistering on other
+ * threads meanwhile, as activities binding the service do.
+ *
+ * @author Daniel Waslicki
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TripListenerRegistryBenchmark {
+
+    @State(Scope.Thread)
+    public static class FanOut {
+
+        @Param({"1", "4", "16"})
+        public int listeners;
+
+        final Looper looper = new Looper();
+        final TripListenerRegistry registry = new TripListenerRegistry(new ServiceMetrics());
+        long timestamp;
+
+        @Setup
+        public void setUp() {
+            for (int i = 0; i < listeners; i++) {
+                registry.add(new TripEventDispatcherBenchmark.CountingListener(), looper, false, true);
+            }
+        }
+
+    }
+
+    @State(Scope.Group)
+    public static class Shared {
+
+        final Looper looper = new Looper();
+        final TripListenerRegistry registry = new TripListenerRegistry(new ServiceMetrics());
+        long timestamp;
+
+        @Setup
+        public void setUp() {
+            registry.add(new TripEventDispatcherBenchmark.CountingListener(), looper, false, true);
+        }
+
+    }
+
+    @State(Scope.Thread)
+    public static class Registering {
+
+        final TripEventDispatcherBenchmark.CountingListener listener =
+                new TripEventDispatcherBenchmark.CountingListener();
+
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int fanOut(FanOut fanOut) {
+        fanOut.timestamp += 1000;
+        fanOut.registry.dispatchTripClassChanged(TripEventDispatcherBenchmark.classOf(fanOut.timestamp),
+                fanOut.timestamp, false);
+        return fanOut.looper.drain();
+    }
+
+    /**
+     * Changes dispatched and delivered while three threads keep registering listeners.
+     */
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public int dispatch(Shared shared) {
+        shared.timestamp += 1000;
+        shared.registry.dispatchTripClassChanged(TripEventDispatcherBenchmark.classOf(shared.timestamp),
+                shared.timestamp, false);
+        return shared.looper.drain();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public boolean addAndRemove(Shared shared, Registering registering) {
+        shared.registry.add(registering.listener, shared.looper, false, true);
+        return shared.registry.remove(registering.listener);
+    }
+
+}
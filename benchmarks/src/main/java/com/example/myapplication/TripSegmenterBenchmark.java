@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (c) Cellepathy Ltd.
+ *
+ * http://www.cellepathy.com
+ *
+ * All rights reserved.
+ ******************************************************************************/
+package com.example.myapplication;
+
+import com.cellepathy.cellematicsservice.tripdetection.TripClass;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of feeding {@link TripSegmenter} a filtered trip class change and of the periodic
+ * advance which ends a paused trip.
+ *
+ * @author Daniel Waslicki
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TripSegmenterBenchmark {
+
+    /**
+     * A drive with a short stop, a stretch without a class and a long stop which ends it, so
+     * that every path of the segmenter is taken and the ring of trips keeps turning.
+     */
+    private static final int[] CLASSES = {
+            TripClass.IN_TRANSIT, TripClass.STATIONARY, TripClass.IN_TRANSIT, TripClass.UNKNOWN,
+            TripClass.IN_TRANSIT, TripClass.STATIONARY,
+    };
+    private static final long[] DURATIONS = {
+            20 * 60 * 1000, 60 * 1000, 10 * 60 * 1000, 2 * 60 * 1000,
+            15 * 60 * 1000, 4 * 60 * 60 * 1000,
+    };
+
+    private final TripSegmenter segmenter = new TripSegmenter();
+    private long timestamp;
+    private int index;
+
+    @Benchmark
+    public void onTripClassChanged() {
+        int step = index++ % CLASSES.length;
+        segmenter.onTripClassChanged(timestamp, CLASSES[step]);
+        timestamp += DURATIONS[step];
+    }
+
+    @Benchmark
+    public void onTripClassChangedAndAdvance() {
+        int step = index++ % CLASSES.length;
+        segmenter.onTripClassChanged(timestamp, CLASSES[step]);
+        segmenter.advance(timestamp + DURATIONS[step] / 2);
+        timestamp += DURATIONS[step];
+    }
+
+}